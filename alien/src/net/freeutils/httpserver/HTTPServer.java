@@ -32,6 +32,8 @@ import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The {@code HTTPServer} class implements a light-weight HTTP server.
@@ -1523,27 +1525,71 @@ public class HTTPServer {
             try {
                 while (!serv.isClosed()) {
                     final Socket sock = serv.accept();
-                    executor.execute(new Runnable() {
-                        public void run() {
-                            try {
-                                sock.setSoTimeout(10000);
-                                handleConnection(sock);
-                            } catch (IOException ignore) {
-                            } finally {
+                    int max = maxConnections;
+                    if (max > 0 && activeConnections.get() + queuedConnections.get() >= max) {
+                        reject(sock);
+                        continue;
+                    }
+                    queuedConnections.incrementAndGet();
+                    try {
+                        executor.execute(new Runnable() {
+                            public void run() {
+                                queuedConnections.decrementAndGet();
+                                activeConnections.incrementAndGet();
                                 try {
-                                    sock.close();
-                                } catch (IOException ignore) {}
+                                    sock.setSoTimeout(socketTimeout);
+                                    handleConnection(sock);
+                                } catch (IOException ignore) {
+                                } finally {
+                                    activeConnections.decrementAndGet();
+                                    try {
+                                        sock.close();
+                                    } catch (IOException ignore) {}
+                                }
                             }
-                        }
-                    });
+                        });
+                    } catch (RejectedExecutionException ree) { // e.g. queue full
+                        queuedConnections.decrementAndGet();
+                        reject(sock);
+                    }
                 }
             } catch (IOException ignore) {}
         }
+
+        /**
+         * Sheds the load of a connection which can't be handled now, by
+         * sending a 503 response and closing it. This is done on the
+         * accepting thread, so it doesn't read the request.
+         *
+         * @param sock the socket to reject
+         */
+        protected void reject(Socket sock) {
+            rejectedConnections.incrementAndGet();
+            try {
+                sock.setSoTimeout(1000);
+                OutputStream out = sock.getOutputStream();
+                out.write(("HTTP/1.1 503 " + statuses[503] + "\r\n" +
+                           "Retry-After: 1\r\n" +
+                           "Content-Length: 0\r\n" +
+                           "Connection: close\r\n\r\n").getBytes("ISO8859_1"));
+                out.flush();
+            } catch (IOException ignore) {
+            } finally {
+                try {
+                    sock.close();
+                } catch (IOException ignore) {}
+            }
+        }
     }
     
     protected volatile int port;
     protected volatile Executor executor;
     protected volatile ServerSocket serv;
+    protected volatile int socketTimeout = 10000;
+    protected volatile int maxConnections;
+    protected final AtomicInteger activeConnections = new AtomicInteger();
+    protected final AtomicInteger queuedConnections = new AtomicInteger();
+    protected final AtomicLong rejectedConnections = new AtomicLong();
     protected final Map<String, VirtualHost> hosts =
         new ConcurrentHashMap<String, VirtualHost>();
     
@@ -1586,6 +1632,61 @@ public class HTTPServer {
     public void setExecutor(Executor executor) {
         this.executor = executor;
     }
+
+    /**
+     * Sets the socket timeout used for connections. This is also how long
+     * an idle keep-alive connection holds on to its thread. The default
+     * is 10 seconds.
+     *
+     * @param millis the timeout in milliseconds, or 0 for no timeout
+     */
+    public void setSocketTimeout(int millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("negative timeout");
+        this.socketTimeout = millis;
+    }
+
+    /**
+     * Sets the maximum number of connections which are being handled or
+     * are waiting for the executor. Connections accepted beyond this limit
+     * get a 503 response. Connections which the executor rejects are
+     * handled the same way.
+     *
+     * @param max the maximum number of connections, or 0 for no limit
+     */
+    public void setMaxConnections(int max) {
+        if (max < 0)
+            throw new IllegalArgumentException("negative limit");
+        this.maxConnections = max;
+    }
+
+    /**
+     * Returns the number of connections currently being handled.
+     *
+     * @return the number of active connections
+     */
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    /**
+     * Returns the number of accepted connections waiting for the executor.
+     *
+     * @return the number of queued connections
+     */
+    public int getQueuedConnections() {
+        return queuedConnections.get();
+    }
+
+    /**
+     * Returns the number of connections rejected with a 503 response since
+     * the server was created.
+     *
+     * @return the number of rejected connections
+     */
+    public long getRejectedConnections() {
+        return rejectedConnections.get();
+    }
     
     /**
      * Returns the virtual host with the given name.
@@ -24,6 +24,7 @@
 
 package wormarc;
 
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.io.IOException;
 
@@ -40,7 +41,10 @@ import wormarc.hgdeltacoder.HgDeltaCoder;
 public class Archive {
     private final DeltaCoder mCoder = new HgDeltaCoder();
     private final HistoryLinkMap mLinkMap = new HistoryLinkMap();
-    private final LinkDataFactory mLinkDataFactory = new RamLinkDataFactory();
+    private final LinkDataFactory mLinkDataFactory;
+    // null unless the owner sets one. Shared by deep copies.
+    private FileCache mFileCache;
+    private SnapshotPolicy mSnapshotPolicy = DEFAULT_SNAPSHOT_POLICY;
 
     ////////////////////////////////////////////////////////////
     // Total in memory non-transient rep of an archive.
@@ -50,6 +54,10 @@ public class Archive {
 
     private Block mUpdates;
 
+    // Links reachable from mRootObjects. Kept up to date as root objects
+    // change. null means rebuild from scratch the next time it's needed.
+    private ReachabilityIndex mReachable;
+
     public final static class RootObject implements Comparable<RootObject> {
         public final LinkDigest mDigest;
         public final int mKind;
@@ -65,11 +73,15 @@ public class Archive {
             return compareTo((RootObject)other) == 0;
         }
 
+        public int hashCode() {
+            return mDigest.hashCode() * 31 + mKind;
+        }
+
         // IMPORTANT: Must be able to sort stably so you get an identical binary rep for the same list.
         public int compareTo(final RootObject obj) {
             if (mKind - obj.mKind == 0) {
-                // Then by digest hex string.
-                return mDigest.toString().compareTo(obj.mDigest.toString());
+                // Then by digest. Same order as comparing the hex strings.
+                return mDigest.compareTo(obj.mDigest);
             }
             // First by kind.
             return mKind - obj.mKind;
@@ -133,22 +145,49 @@ public class Archive {
     }
 
     public final static int REPARTITION_MULTIPLE = 2;
-    public final static int MAX_CHAIN_LENGTH = 16;
+    public final static SnapshotPolicy DEFAULT_SNAPSHOT_POLICY = new CostSnapshotPolicy();
     public final static int MAX_BLOCKS = 4;
 
-    public Archive() {
+    // The factory decides where link payloads are stored. e.g. RAM or mapped files.
+    public Archive(final LinkDataFactory linkDataFactory) {
+        if (linkDataFactory == null) {
+            throw new IllegalArgumentException("linkDataFactory is null");
+        }
+        mLinkDataFactory = linkDataFactory;
         reset();
     }
 
+    public Archive() {
+        this(new RamLinkDataFactory());
+    }
+
+    public LinkDataFactory getLinkDataFactory() { return mLinkDataFactory; }
+
+    // Caches reconstructed files. null, the default, disables it.
+    public void setFileCache(FileCache cache) { mFileCache = cache; }
+    public FileCache getFileCache() { return mFileCache; }
+
+    // Decides when putFile() stores a full version instead of a delta.
+    public void setSnapshotPolicy(SnapshotPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("policy is null");
+        }
+        mSnapshotPolicy = policy;
+    }
+    public SnapshotPolicy getSnapshotPolicy() { return mSnapshotPolicy; }
+
     public Archive deepCopy() {
         if (mUpdates != null) {
             throw new IllegalStateException("Can't copy while updating.");
         }
-        Archive ret = new Archive();
+        Archive ret = new Archive(mLinkDataFactory);
         ret.mBlocks = new ArrayList<Block>(mBlocks);
         ret.mRootObjects = new ArrayList<RootObject>(mRootObjects);
         ret.mUpdates = null;
-        ret.mLinkMap.putAll(mLinkMap.getUnmodifiableMap());
+        ret.mFileCache = mFileCache;
+        ret.mSnapshotPolicy = mSnapshotPolicy;
+        ret.mReachable = (mReachable == null) ? null : mReachable.deepCopy();
+        ret.mLinkMap.putAll(mLinkMap);
         return ret;
     }
 
@@ -156,16 +195,33 @@ public class Archive {
         mBlocks = new ArrayList<Block>();
         mRootObjects = new ArrayList<RootObject>();
         mUpdates = null;
+        mReachable = null;
     }
 
     public ArchiveData getData() {
         return new ArchiveData(mBlocks, mRootObjects);
     }
 
+    // Total length of the binary rep of all the blocks.
+    // i.e. about how much link data holding this archive keeps around.
+    public long getBinaryLength() throws IOException {
+        long total = 0;
+        for (Block block : mBlocks) {
+            total += mLinkMap.getLength(block);
+        }
+        return total;
+    }
+
     public void setFromData(final ArchiveData data) {
         mBlocks = new ArrayList<Block>(data.mBlocks);
         mRootObjects = new ArrayList<RootObject>(data.mRootObjects);
         mUpdates = null;
+        mReachable = null;
+    }
+
+    // The links in one of this archive's blocks, in block order.
+    public Iterable<HistoryLink> getLinks(final Block block) throws IOException {
+        return mLinkMap.getLinks(block);
     }
 
     public InputStream getFile(final LinkDigest chainHead) throws IOException {
@@ -173,8 +229,21 @@ public class Archive {
             throw new IllegalArgumentException("chainHead is null");
         }
 
+        // The cache can be shared by several archives, so only trust
+        // it for chains this archive actually has.
+        if (mFileCache != null && mLinkMap.contains(chainHead)) {
+            final byte[] cached = mFileCache.get(chainHead);
+            if (cached != null) {
+                return new ByteArrayInputStream(cached);
+            }
+        }
+
         try {
-            return mCoder.applyDeltas(mLinkMap.getChain(chainHead, true));
+            final byte[] data = mCoder.applyDeltasToBytes(mLinkMap.getChain(chainHead, true));
+            if (mFileCache != null) {
+                mFileCache.put(chainHead, data);
+            }
+            return new ByteArrayInputStream(data);
         } catch (HistoryLinkMap.LinkNotFoundException lookupFailed) {
             lookupFailed.rethrowAsIOException();
             return null; // Unreachable.
@@ -200,6 +269,15 @@ public class Archive {
     }
 
     public LinkDigest putFile(final InputStream rawBytes, final LinkDigest prevChainHead) throws IOException {
+        return addFileLink(makeFileLink(rawBytes, prevChainHead));
+    }
+
+    // The expensive half of putFile(). Reconstructs the previous version, diffs
+    // and compresses, but doesn't modify the archive.
+    //
+    // It's safe to call this from multiple threads at once as long as
+    // nothing modifies the archive until they all finish.
+    public HistoryLink makeFileLink(final InputStream rawBytes, final LinkDigest prevChainHead) throws IOException {
         if (mUpdates == null) {
             IOUtil.silentlyClose(rawBytes);
             throw new IllegalStateException("Not updating. Did you forget to call startUpdate?");
@@ -215,29 +293,40 @@ public class Archive {
 
         InputStream prevStream = null; // Leaving this null causes a full reinsert.
         try {
-            if (!prevChainHead.isNullDigest() &&
-                mLinkMap.getChain(prevChainHead, true).size() < MAX_CHAIN_LENGTH) {
-                // Add to chain the existing chain.
-                prevStream = getFile(prevChainHead);
+            if (!prevChainHead.isNullDigest()) {
+                final ChainStats chain = mLinkMap.getChainStats(prevChainHead);
+                if (chain.mLinks + 1 < HistoryLinkMap.MAX_TRAVERSAL &&
+                    !mSnapshotPolicy.shouldSnapshot(chain)) {
+                    // Add to chain the existing chain.
+                    prevStream = getFile(prevChainHead);
+                }
             }
 
-            final HistoryLink link = mCoder.makeDelta(mLinkDataFactory,
-                                                      prevChainHead,
-                                                      prevStream,
-                                                      rawBytes,
-                                                      false);
-
-            mUpdates.append(link.mHash);
-            mLinkMap.addLink(link);
-
-            return link.mHash;
-
+            return mCoder.makeDelta(mLinkDataFactory,
+                                    prevChainHead,
+                                    prevStream,
+                                    rawBytes,
+                                    false);
         } finally {
             IOUtil.silentlyClose(rawBytes);
             IOUtil.silentlyClose(prevStream);
         }
     }
 
+    // The cheap half of putFile(). Adds a link from makeFileLink() to the update block.
+    public LinkDigest addFileLink(final HistoryLink link) {
+        if (mUpdates == null) {
+            throw new IllegalStateException("Not updating. Did you forget to call startUpdate?");
+        }
+        if (link == null) {
+            throw new IllegalArgumentException("link is null");
+        }
+
+        mUpdates.append(link.mHash);
+        mLinkMap.addLink(link);
+        return link.mHash;
+    }
+
     public void startUpdate() {
         if (mUpdates != null) {
             throw new IllegalStateException("Already updating.");
@@ -295,24 +384,56 @@ public class Archive {
         return addAllLinks(new HashSet<LinkDigest>());
     }
 
-    public Set<LinkDigest> referencedLinks() throws IOException {
-        // DCI: DOG SLOW.
-        // DCI: cache value? notion of archive being "dirty"
-        // Set<LinkDigest> getReferencedLinks(Achive archive, Archive.RootObject obj);
-        final Set<LinkDigest> links = new HashSet<LinkDigest>();
-        for (RootObject obj : mRootObjects) {
-            if (obj.mDigest.isNullDigest()) {
-                continue;
+    // Only walks every chain the first time it's called after a load.
+    // After that the index is updated incrementally as root objects change.
+    private ReachabilityIndex getReachable() throws IOException {
+        if (mReachable != null) {
+            return mReachable;
+        }
+        final ReachabilityIndex index = new ReachabilityIndex();
+        try {
+            for (RootObject obj : mRootObjects) {
+                index.addRoot(this, mLinkMap, obj);
             }
+        } catch (HistoryLinkMap.LinkNotFoundException lookupFailed) {
+            lookupFailed.rethrowAsIOException();
+        }
+        mReachable = index;
+        return mReachable;
+    }
 
-            // Adds the links for the file that the object is stored in.
-            links.addAll(getChain(obj.mDigest, true));
+    // Keep the index in sync. If the incremental update fails, drop the index
+    // and let getReachable() rebuild it and report the error.
+    private void addReachable(final RootObject obj) {
+        if (mReachable == null) {
+            return;
+        }
+        try {
+            mReachable.addRoot(this, mLinkMap, obj);
+        } catch (IOException ioe) {
+            mReachable = null;
+        } catch (HistoryLinkMap.LinkNotFoundException lookupFailed) {
+            mReachable = null;
+        }
+    }
 
-            // Marshal an instance of the object and ask it if it has any additional
-            // links.
-            links.addAll(RootObjectKind.getContainer(this, obj).getReferencedLinks(mLinkMap));
+    private void removeReachable(final RootObject obj) {
+        if (mReachable == null) {
+            return;
+        }
+        try {
+            mReachable.removeRoot(mLinkMap, obj);
+        } catch (HistoryLinkMap.LinkNotFoundException lookupFailed) {
+            mReachable = null;
         }
-        return links;
+    }
+
+    public Set<LinkDigest> referencedLinks() throws IOException {
+        return getReachable().referencedLinks();
+    }
+
+    public boolean isReferenced(final LinkDigest digest) throws IOException {
+        return getReachable().isReferenced(digest);
     }
 
     protected static List<Block> mergeBlocks(final List<Block> blocks,
@@ -391,13 +512,13 @@ public class Archive {
             throw new IllegalStateException("Can't compress while updating");
         }
 
-        final Set<LinkDigest> referenced = referencedLinks();
+        final ReachabilityIndex referenced = getReachable();
         final ArrayList<PartitioningMath.Partition> uncompressed = new ArrayList<PartitioningMath.Partition>();
         int index = 0;
         for (Block block : mBlocks) {
             final ArrayList<LinkDigest> survivors = new ArrayList<LinkDigest>();
             for (LinkDigest digest : block.getDigests()) {
-                if (referenced.contains(digest)) {
+                if (referenced.isReferenced(digest)) {
                     survivors.add(digest);
                 }
             }
@@ -413,7 +534,7 @@ public class Archive {
             return false;
         }
 
-        mBlocks = mergeBlocks(mBlocks, compressed, referencedLinks());
+        mBlocks = mergeBlocks(mBlocks, compressed, referenced.referencedLinks());
         return true;
     }
 
@@ -441,8 +562,10 @@ public class Archive {
         sink.write(mLinkMap, mBlocks, mRootObjects);
     }
 
-    public static Archive load(final IO source, boolean skipValidation) throws IOException {
-        final Archive loaded = new Archive();
+    public static Archive load(final IO source,
+                               final LinkDataFactory linkDataFactory,
+                               boolean skipValidation) throws IOException {
+        final Archive loaded = new Archive(linkDataFactory);
         loaded.read(source);
         if (!loaded.getRootObject(RootObjectKind.ARCHIVE_MANIFEST).isNullDigest()) {
              if (!loaded.hasValidArchiveManifest()) {
@@ -456,6 +579,14 @@ public class Archive {
         return loaded;
     }
 
+    public static Archive load(final IO source, boolean skipValidation) throws IOException {
+        return load(source, new RamLinkDataFactory(), skipValidation);
+    }
+
+    public static Archive load(final IO source, final LinkDataFactory linkDataFactory) throws IOException {
+        return load(source, linkDataFactory, false);
+    }
+
     public static Archive load(final IO source) throws IOException {
         return load(source, false);
     }
@@ -504,12 +635,7 @@ public class Archive {
                     // can read the file.
                     List<Block> blocks = new ArrayList<Block>();
                     blocks.
-                        add(new Block
-                            (new ArrayList<LinkDigest>(linkMap.
-                                                       getUnmodifiableMap().
-                                                       keySet()
-                                                       ))
-                            );
+                        add(new Block(linkMap.getDigests()));
 
                     return new ArchiveData(blocks, new ArrayList<RootObject>());
                 }
@@ -525,12 +651,17 @@ public class Archive {
         if (replace) {
             for (int index = 0; index < mRootObjects.size(); index++) {
                 if (mRootObjects.get(index).mKind == kind) {
-                    mRootObjects.set(index, obj);
+                    final RootObject replaced = mRootObjects.set(index, obj);
+                    // Add first so chain heads shared by both versions
+                    // never drop to zero references.
+                    addReachable(obj);
+                    removeReachable(replaced);
                     return;
                 }
             }
         }
         mRootObjects.add(obj);
+        addReachable(obj);
 
         // Kind of gross, but this list is tiny.
         Collections.sort(mRootObjects);
@@ -540,6 +671,7 @@ public class Archive {
         for (RootObject obj : mRootObjects) {
             if (obj.mKind == kind) {
                 mRootObjects.remove(obj);
+                removeReachable(obj);
                 // Can't continue iterating after modifying. Do better?
                 unsetRootObject(kind);
                 break;
@@ -598,7 +730,7 @@ public class Archive {
         }
 
         try {
-            return mLinkMap.getChain(chainHead, true).size();
+            return mLinkMap.getChainLength(chainHead, true);
         } catch (HistoryLinkMap.LinkNotFoundException lookupFailed) {
             return -1;
         }
@@ -658,6 +790,20 @@ public class Archive {
         return mLinkMap.getLength(new ArrayList<LinkDigest>(allLinks()));
     }
 
+    // Chain lengths and bytes read per file for every chain reachable
+    // from the root objects. Cheap next to the rest of these.
+    public ChainStats chainStats() throws IOException {
+        ChainStats total = ChainStats.EMPTY;
+        try {
+            for (LinkDigest head : getReachable().referencedHeads()) {
+                total = total.add(mLinkMap.getChainStats(head));
+            }
+        } catch (HistoryLinkMap.LinkNotFoundException lookupFailed) {
+            lookupFailed.rethrowAsIOException();
+        }
+        return total;
+    }
+
     public Map<Integer, Integer> linkStats() throws IOException {
         Map<Integer, Integer> values = new HashMap<Integer, Integer>();
         for (RootObject obj : mRootObjects) {
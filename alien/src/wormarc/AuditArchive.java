@@ -33,6 +33,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 // DCI: fix name. Does intra archive stuff.
 public class AuditArchive {
@@ -222,6 +225,99 @@ public class AuditArchive {
                               FileManifest.Changes fromNewToOld);
     }
 
+    // How many versions getManifestChangeLog() resolves ahead of the callback.
+    public final static int CHANGE_LOG_PREFETCH = 4;
+
+    // What the change log needs from one version. Not the whole Archive.
+    private static final class LogVersion {
+        final ExternalRefs.Reference mRef;
+        // NULL_ARCHIVE for the first version.
+        final ExternalRefs.Reference mParentRef;
+        final Map<String, LinkDigest> mFiles;
+        // Set instead of the other fields if resolving failed.
+        final IOException mFailure;
+
+        LogVersion(ExternalRefs.Reference ref, Archive archive) throws IOException {
+            if (archive.getRootObject(RootObjectKind.FILE_MANIFEST).isNullDigest()) {
+                throw new IOException("No FILE_MANIFEST in root objects: " +
+                                      ref.toString());
+            }
+            ExternalRefs.Reference parentRef = ExternalRefs.NULL_ARCHIVE;
+            LinkDigest digest = archive.getRootObject(RootObjectKind.PARENT_REFERENCES);
+            if (!digest.isNullDigest()) {
+                ExternalRefs refs = ExternalRefs.fromBytes(archive.getFile(digest));
+                if (refs.mRefs.size() > 1) {
+                    throw new IOException("Code too dumb to deal with multiple parents. Sorry :-(");
+                }
+                if (refs.mRefs.size() > 0) {
+                    parentRef = refs.mRefs.get(0);
+                }
+            }
+            mRef = ref;
+            mParentRef = parentRef;
+            mFiles = FileManifest.fromArchiveRootObject(archive).getMap();
+            mFailure = null;
+        }
+
+        LogVersion(IOException failure) {
+            mRef = null;
+            mParentRef = null;
+            mFiles = null;
+            mFailure = failure;
+        }
+    }
+
+    // Resolves the parents of a version one after another, at most
+    // queue capacity versions ahead of the consumer.
+    private static final class ChangeLogPrefetcher extends Thread {
+        private final ExternalRefs.Reference mFirstRef;
+        private final ArchiveResolver mResolver;
+        private final BlockingQueue<LogVersion> mQueue;
+        // Resolvers can swallow the interrupt, so don't rely on it alone.
+        private volatile boolean mCancelled;
+
+        ChangeLogPrefetcher(ExternalRefs.Reference firstRef, ArchiveResolver resolver,
+                            BlockingQueue<LogVersion> queue) {
+            super("ChangeLogPrefetcher");
+            setDaemon(true);
+            mFirstRef = firstRef;
+            mResolver = resolver;
+            mQueue = queue;
+        }
+
+        void cancel() {
+            mCancelled = true;
+            interrupt();
+        }
+
+        public void run() {
+            ExternalRefs.Reference ref = mFirstRef;
+            try {
+                while (ref != ExternalRefs.NULL_ARCHIVE && !mCancelled) {
+                    LogVersion version = null;
+                    try {
+                        version = new LogVersion(ref, mResolver.resolve(ref));
+                    } catch (IOException ioe) {
+                        version = new LogVersion(ioe);
+                    } catch (RuntimeException re) {
+                        version = new LogVersion(new IOException("Resolving failed: " + ref, re));
+                    }
+                    while (!mQueue.offer(version, 250, TimeUnit.MILLISECONDS)) {
+                        if (mCancelled) {
+                            return;
+                        }
+                    }
+                    if (version.mFailure != null) {
+                        return;
+                    }
+                    ref = version.mParentRef;
+                }
+            } catch (InterruptedException ie) {
+                // The consumer gave up.
+            }
+        }
+    }
+
     // Generate a change log like the one in the current wikibot based
     // fniki wiki.
     // LATER: Deal with non-linear change history.
@@ -229,45 +325,59 @@ public class AuditArchive {
                                             Archive archive,
                                             ArchiveResolver resolver,
                                             ChangeLogCallback callback) throws IOException {
+        getManifestChangeLog(latestRef, archive, resolver, callback, CHANGE_LOG_PREFETCH);
+    }
 
-        if (archive.getRootObject(RootObjectKind.FILE_MANIFEST).isNullDigest()) {
-            throw new IOException("No FILE_MANIFEST in root objects: " +
-                                  latestRef.toString());
+    // INTENT: Overlap the Freenet round trips with diffing and the callback.
+    // A parent's key is only known once its child is loaded, so parents are
+    // resolved in order on another thread. The callback is still called in
+    // order on the calling thread.
+    // REQUIRES: The resolver is safe to call from another thread, and isn't
+    // used again by the caller. The prefetch thread is cancelled, not joined,
+    // so it can still be inside resolve() after this returns.
+    public static void getManifestChangeLog(ExternalRefs.Reference latestRef,
+                                            Archive archive,
+                                            ArchiveResolver resolver,
+                                            ChangeLogCallback callback,
+                                            int prefetch) throws IOException {
+        if (prefetch < 1) {
+            throw new IllegalArgumentException("prefetch < 1");
         }
 
-        Map<String, LinkDigest> currentMap = FileManifest.fromArchiveRootObject(archive).getMap();
-        ExternalRefs.Reference currentRef = latestRef;
-        while (currentRef != ExternalRefs.NULL_ARCHIVE) {
-            ExternalRefs.Reference nextRef = ExternalRefs.NULL_ARCHIVE;
-            Map<String, LinkDigest> nextMap = new HashMap<String, LinkDigest>();
-
-            LinkDigest digest = archive.getRootObject(RootObjectKind.PARENT_REFERENCES);
-            if (!digest.isNullDigest()) {
-                ExternalRefs refs = ExternalRefs.fromBytes(archive.getFile(digest));
-
-                if (refs.mRefs.size() > 1) {
-                    throw new IOException("Code too dumb to deal with multiple parents. Sorry :-(");
-                }
-
-                if (refs.mRefs.size() > 0) {
-                    nextRef = refs.mRefs.get(0);
-                    archive = resolver.resolve(nextRef);
-
-                    if (archive.getRootObject(RootObjectKind.FILE_MANIFEST).isNullDigest()) {
-                        throw new IOException("No FILE_MANIFEST in root objects: " +
-                                              nextRef.toString());
+        LogVersion current = new LogVersion(latestRef, archive);
+        archive = null; // Don't hold on to it while walking the history.
+
+        BlockingQueue<LogVersion> queue = new ArrayBlockingQueue<LogVersion>(prefetch);
+        ChangeLogPrefetcher prefetcher = new ChangeLogPrefetcher(current.mParentRef, resolver, queue);
+        prefetcher.start();
+        try {
+            while (true) {
+                ExternalRefs.Reference nextRef = ExternalRefs.NULL_ARCHIVE;
+                Map<String, LinkDigest> nextMap = new HashMap<String, LinkDigest>();
+                LogVersion next = null;
+                if (current.mParentRef != ExternalRefs.NULL_ARCHIVE) {
+                    next = queue.take();
+                    if (next.mFailure != null) {
+                        throw next.mFailure;
                     }
+                    nextRef = next.mRef;
+                    nextMap = next.mFiles;
+                }
 
-                    nextMap = FileManifest.fromArchiveRootObject(archive).getMap();
+                if (!callback.onChangeEntry(current.mRef, nextRef,
+                                            FileManifest.diff(nextMap, current.mFiles))) {
+                    break; // Client code told us to give up.
                 }
-            }
 
-            if (!callback.onChangeEntry(currentRef, nextRef, FileManifest.diff(nextMap, currentMap))) {
-                break; // Client code told us to give up.
+                if (next == null) {
+                    break;
+                }
+                current = next;
             }
-
-            currentRef = nextRef;
-            currentMap = nextMap;
+        } catch (InterruptedException ie) {
+            throw new IOException("Interrupted reading the change log.", ie);
+        } finally {
+            prefetcher.cancel(); // Don't wait. It's a daemon thread.
         }
     }
 
@@ -32,16 +32,35 @@ public class Block {
     // No guarantee that links don't appear multiple times???
     private ArrayList<LinkDigest> mDigests;
 
+    // Memoized by HistoryLinkMap.getHexDigest(). Link digests hash their
+    // data, so the binary rep only changes when the digest list does.
+    private String mHexDigest;
+    private long mRepLength = -1;
+
     public Block(List<LinkDigest> digests) { mDigests = new ArrayList<LinkDigest> (digests);}
     public Block() { this(new ArrayList<LinkDigest>()); }
 
     public List<LinkDigest> getDigests() { return Collections.unmodifiableList(mDigests); }
 
+    synchronized String getHexDigest() { return mHexDigest; }
+    synchronized long getRepLength() { return mRepLength; }
+
+    synchronized void setRepInfo(String hexDigest, long repLength) {
+        mHexDigest = hexDigest;
+        mRepLength = repLength;
+    }
+
+    private synchronized void changed() {
+        mHexDigest = null;
+        mRepLength = -1;
+    }
+
     public void prepend(LinkDigest linkDigest) {
         if (linkDigest == null) {
             throw new IllegalArgumentException("linkDigest is null");
         }
         mDigests.add(0, linkDigest);
+        changed();
     }
 
     public void append(LinkDigest linkDigest) {
@@ -49,6 +68,7 @@ public class Block {
             throw new IllegalArgumentException("linkDigest is null");
         }
         mDigests.add(linkDigest);
+        changed();
     }
 
     public void append(List<LinkDigest> linkDigests) {
@@ -59,6 +79,7 @@ public class Block {
             }
         }
         mDigests.addAll(linkDigests);
+        changed();
     }
 
     public boolean equals(Object other) {
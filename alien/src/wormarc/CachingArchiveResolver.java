@@ -0,0 +1,148 @@
+/* An ArchiveResolver decorator which keeps recently resolved Archives.
+ *
+ *  Copyright (C) 2010, 2011 Darrell Karbott
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.0 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ *  Author: djk@isFiaD04zgAgnrEC5XJt1i4IE7AkNPqhBG5bONi6Yks
+ *
+ *  This file was developed as component of
+ * "fniki" (a wiki implementation running over Freenet).
+ */
+
+package wormarc;
+
+import java.io.IOException;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+// INTENT: A versioned Freenet URI always resolves to the same Archive,
+// so the change log, history and version views can share what the
+// others already resolved.
+//
+// The cached Archives are shared. Callers must not modify them.
+public class CachingArchiveResolver implements ArchiveResolver {
+    // Each Archive holds its whole link history, so bound the bytes, not the count.
+    public final static long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+
+    // LRU of resolved Archives. Can outlive the resolvers using it,
+    // e.g. one per request, each around a fresh FreenetIO.
+    public static class Cache {
+        private static class Entry {
+            final Archive mArchive;
+            final long mBytes;
+            Entry(Archive archive, long bytes) {
+                mArchive = archive;
+                mBytes = bytes;
+            }
+        }
+
+        private final LinkedHashMap<String, Entry> mArchives =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        private final long mMaxBytes;
+        private long mBytes;
+        private int mHits;
+        private int mMisses;
+
+        public Cache(final long maxBytes) {
+            if (maxBytes < 1) {
+                throw new IllegalArgumentException("maxBytes < 1");
+            }
+            mMaxBytes = maxBytes;
+        }
+
+        public Cache() {
+            this(DEFAULT_MAX_BYTES);
+        }
+
+        synchronized Archive get(String key) {
+            Entry entry = mArchives.get(key);
+            if (entry == null) {
+                mMisses++;
+                return null;
+            }
+            mHits++;
+            return entry.mArchive;
+        }
+
+        // bytes is from Archive.getBinaryLength().
+        synchronized void put(String key, Archive archive, long bytes) {
+            if (bytes > mMaxBytes) {
+                return; // It would push everything else out.
+            }
+            Entry old = mArchives.put(key, new Entry(archive, bytes));
+            if (old != null) {
+                mBytes -= old.mBytes;
+            }
+            mBytes += bytes;
+
+            // Least recently used first. Never reaches the new entry.
+            Iterator<Entry> entries = mArchives.values().iterator();
+            while (mBytes > mMaxBytes && entries.hasNext()) {
+                mBytes -= entries.next().mBytes;
+                entries.remove();
+            }
+        }
+
+        public synchronized void clear() {
+            mArchives.clear();
+            mBytes = 0;
+        }
+
+        public synchronized String getStats() {
+            return String.format("Resolved archives: %d cached (%d KiB), %d hits, %d misses\n",
+                                 mArchives.size(), mBytes / 1024, mHits, mMisses);
+        }
+    }
+
+    private final ArchiveResolver mResolver;
+    private final Cache mCache;
+
+    public CachingArchiveResolver(ArchiveResolver resolver, Cache cache) {
+        if (resolver == null || cache == null) {
+            throw new IllegalArgumentException("resolver or cache is null");
+        }
+        mResolver = resolver;
+        mCache = cache;
+    }
+
+    public CachingArchiveResolver(ArchiveResolver resolver) {
+        this(resolver, new Cache());
+    }
+
+    // USKs and KSKs can point to different data later. SSKs and CHKs can't.
+    public static boolean isImmutable(ExternalRefs.Reference ref) {
+        return ref.mKind == ExternalRefs.KIND_FREENET &&
+            (ref.mExternalKey.startsWith("SSK@") || ref.mExternalKey.startsWith("CHK@"));
+    }
+
+    public Archive resolve(ExternalRefs.Reference fromReference) throws IOException {
+        if (!isImmutable(fromReference)) {
+            return mResolver.resolve(fromReference);
+        }
+        Archive archive = mCache.get(fromReference.mExternalKey);
+        if (archive != null) {
+            return archive;
+        }
+        archive = mResolver.resolve(fromReference);
+        mCache.put(fromReference.mExternalKey, archive, archive.getBinaryLength());
+        return archive;
+    }
+
+    public String getNym(ExternalRefs.Reference fromReference) throws IOException {
+        return mResolver.getNym(fromReference);
+    }
+}
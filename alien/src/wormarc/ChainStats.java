@@ -0,0 +1,74 @@
+/* Link count and byte totals for HistoryLink chains.
+ *
+ *  Copyright (C) 2010, 2011 Darrell Karbott
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.0 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ *  Author: djk@isFiaD04zgAgnrEC5XJt1i4IE7AkNPqhBG5bONi6Yks
+ *
+ *  This file was developed as component of
+ * "fniki" (a wiki implementation running over Freenet).
+ */
+
+package wormarc;
+
+// Immutable. One chain's numbers come from HistoryLinkMap.getChainStats().
+// add() them up to get totals for an archive.
+//
+// The byte counts are stored (i.e. compressed) link data lengths, which is
+// what has to be read out of the archive to rebuild a file.
+public final class ChainStats {
+    public final static ChainStats EMPTY = new ChainStats(0, 0, 0, 0, 0);
+
+    public final int mChains;
+    public final int mLinks;
+    public final int mMaxLength;
+    // The full versions at the end of the chains.
+    public final long mSnapshotBytes;
+    // Everything on top of them.
+    public final long mDeltaBytes;
+
+    public ChainStats(int chains, int links, int maxLength, long snapshotBytes, long deltaBytes) {
+        mChains = chains;
+        mLinks = links;
+        mMaxLength = maxLength;
+        mSnapshotBytes = snapshotBytes;
+        mDeltaBytes = deltaBytes;
+    }
+
+    public ChainStats add(ChainStats other) {
+        return new ChainStats(mChains + other.mChains,
+                              mLinks + other.mLinks,
+                              Math.max(mMaxLength, other.mMaxLength),
+                              mSnapshotBytes + other.mSnapshotBytes,
+                              mDeltaBytes + other.mDeltaBytes);
+    }
+
+    // i.e. patches applied per read, plus one.
+    public double getAverageLength() {
+        return mChains == 0 ? 0.0 : ((double)mLinks) / mChains;
+    }
+
+    public double getAverageBytesPerRead() {
+        return mChains == 0 ? 0.0 : ((double)(mSnapshotBytes + mDeltaBytes)) / mChains;
+    }
+
+    public String pretty() {
+        return String.format("%d chains, avg length %.2f, max length %d, avg bytes/read %.0f, " +
+                             "snapshot bytes %d, delta bytes %d",
+                             mChains, getAverageLength(), mMaxLength, getAverageBytesPerRead(),
+                             mSnapshotBytes, mDeltaBytes);
+    }
+}
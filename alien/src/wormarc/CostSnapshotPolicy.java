@@ -0,0 +1,79 @@
+/* A SnapshotPolicy which trades read cost off against stored bytes.
+ *
+ *  Copyright (C) 2010, 2011 Darrell Karbott
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.0 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ *  Author: djk@isFiaD04zgAgnrEC5XJt1i4IE7AkNPqhBG5bONi6Yks
+ *
+ *  This file was developed as component of
+ * "fniki" (a wiki implementation running over Freenet).
+ */
+
+package wormarc;
+
+// Along the lines of Mercurial's revlog heuristic.
+//
+// Reading a file costs the bytes of every link back to the last full
+// version, plus a roughly fixed overhead to inflate and fold each delta.
+// Once that cost exceeds maxDeltaRatio times the size of a full version,
+// it's cheaper to store one.
+//
+// So pages with big, frequent edits get short chains, and big pages with
+// small edits aren't snapshotted until maxChainLength.
+//
+// new CostSnapshotPolicy(16, Double.MAX_VALUE, 0) is the old fixed
+// Archive.MAX_CHAIN_LENGTH = 16 behaviour.
+public class CostSnapshotPolicy implements SnapshotPolicy {
+    public final static int DEFAULT_MAX_CHAIN_LENGTH = 24;
+    public final static double DEFAULT_MAX_DELTA_RATIO = 2.0;
+    // Roughly what a patch application costs, in bytes read.
+    public final static int DEFAULT_LINK_COST = 512;
+
+    private final int mMaxChainLength;
+    private final double mMaxDeltaRatio;
+    private final int mLinkCost;
+
+    public CostSnapshotPolicy(int maxChainLength, double maxDeltaRatio, int linkCost) {
+        if (maxChainLength < 1 || maxChainLength >= HistoryLinkMap.MAX_TRAVERSAL) {
+            throw new IllegalArgumentException("maxChainLength must be in [1, " +
+                                               HistoryLinkMap.MAX_TRAVERSAL + ")");
+        }
+        if (maxDeltaRatio < 0.0 || linkCost < 0) {
+            throw new IllegalArgumentException("maxDeltaRatio and linkCost must be >= 0");
+        }
+        mMaxChainLength = maxChainLength;
+        mMaxDeltaRatio = maxDeltaRatio;
+        mLinkCost = linkCost;
+    }
+
+    public CostSnapshotPolicy() {
+        this(DEFAULT_MAX_CHAIN_LENGTH, DEFAULT_MAX_DELTA_RATIO, DEFAULT_LINK_COST);
+    }
+
+    public boolean shouldSnapshot(ChainStats chain) {
+        if (chain.mMaxLength >= mMaxChainLength) {
+            return true;
+        }
+        // Deltas to apply after appending, i.e. the existing ones + the new one.
+        final long cost = chain.mDeltaBytes + ((long)chain.mLinks) * mLinkCost;
+        return cost > mMaxDeltaRatio * chain.mSnapshotBytes;
+    }
+
+    public String toString() {
+        return String.format("CostSnapshotPolicy(maxChainLength=%d, maxDeltaRatio=%s, linkCost=%d)",
+                             mMaxChainLength, mMaxDeltaRatio, mLinkCost);
+    }
+}
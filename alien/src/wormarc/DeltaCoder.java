@@ -25,6 +25,7 @@
 package wormarc;
 
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.IOException;
 
 public interface DeltaCoder {
@@ -47,4 +48,10 @@ public interface DeltaCoder {
 
     // Reconstruct a file from a list of HistoryLinks.
     InputStream applyDeltas(Iterable<HistoryLink> history) throws IOException;
+
+    // Same as above, but returns a right sized array the caller owns.
+    byte[] applyDeltasToBytes(Iterable<HistoryLink> history) throws IOException;
+
+    // Same as above, but writes the file to sink. Doesn't close sink.
+    void applyDeltas(Iterable<HistoryLink> history, OutputStream sink) throws IOException;
 }
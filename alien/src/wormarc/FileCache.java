@@ -0,0 +1,110 @@
+/* A byte bounded LRU cache of reconstructed file contents.
+ *
+ *  Copyright (C) 2010, 2011 Darrell Karbott
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.0 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ *  Author: djk@isFiaD04zgAgnrEC5XJt1i4IE7AkNPqhBG5bONi6Yks
+ *
+ *  This file was developed as component of
+ * "fniki" (a wiki implementation running over Freenet).
+ */
+
+package wormarc;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Maps chain head digests to the bytes of the file the chain decodes to.
+//
+// HistoryLinks are immutable and content addressed, so an entry can
+// never go stale. Nothing is ever invalidated, entries just age out.
+//
+// The cached arrays are shared. Callers MUST NOT modify them.
+public class FileCache {
+    public final static long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+
+    private final LinkedHashMap<LinkDigest, byte[]> mFiles =
+        new LinkedHashMap<LinkDigest, byte[]>(64, 0.75f, true); // Access order == LRU.
+    private final long mMaxBytes;
+    private long mBytes;
+
+    private long mHits;
+    private long mMisses;
+    private long mEvictions;
+
+    public FileCache(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes < 0");
+        }
+        mMaxBytes = maxBytes;
+    }
+
+    public FileCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    // Returns null if the file isn't cached.
+    public synchronized byte[] get(LinkDigest chainHead) {
+        byte[] data = mFiles.get(chainHead);
+        if (data == null) {
+            mMisses++;
+        } else {
+            mHits++;
+        }
+        return data;
+    }
+
+    public synchronized void put(LinkDigest chainHead, byte[] data) {
+        if (chainHead == null || data == null) {
+            throw new IllegalArgumentException("null argument");
+        }
+        if (data.length > mMaxBytes) {
+            return; // Would just flush everything else.
+        }
+
+        byte[] previous = mFiles.put(chainHead, data);
+        if (previous != null) {
+            mBytes -= previous.length;
+        }
+        mBytes += data.length;
+
+        Iterator<Map.Entry<LinkDigest, byte[]>> itr = mFiles.entrySet().iterator();
+        while (mBytes > mMaxBytes && itr.hasNext()) {
+            Map.Entry<LinkDigest, byte[]> eldest = itr.next();
+            mBytes -= eldest.getValue().length;
+            itr.remove();
+            mEvictions++;
+        }
+    }
+
+    public synchronized void clear() {
+        mFiles.clear();
+        mBytes = 0;
+    }
+
+    public synchronized long getMaxBytes() { return mMaxBytes; }
+    public synchronized long getBytes() { return mBytes; }
+    public synchronized int getCount() { return mFiles.size(); }
+    public synchronized long getHits() { return mHits; }
+    public synchronized long getMisses() { return mMisses; }
+    public synchronized long getEvictions() { return mEvictions; }
+
+    public synchronized String pretty() {
+        return String.format("FileCache: %d files, %d/%d bytes, hits=%d, misses=%d, evictions=%d",
+                             mFiles.size(), mBytes, mMaxBytes, mHits, mMisses, mEvictions);
+    }
+}
@@ -46,6 +46,12 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 public class FileManifest implements LinkContainer {
     public final static Changes NO_CHANGES = new FileManifest.Changes();
@@ -142,27 +148,137 @@ public class FileManifest implements LinkContainer {
             }
         }
 
-        MessageDigest insertedFileDigest = null;
-        try {
-            insertedFileDigest = MessageDigest.getInstance("SHA");
-        } catch (NoSuchAlgorithmException nsae) {
-            rawBytes.close();
-            throw new IOException("Couldn't load SHA1 algorithm");
+        PendingFile pending = new PendingFile(archive, name, prevChain, rawBytes);
+        pending.call(); // closes on failure.
+        return addPendingFile(archive, pending);
+    }
+
+    ////////////////////////////////////////////////////////////
+    // Parallel delta encoding for updateFrom().
+
+    // Don't bother with threads for fewer files than this.
+    private final static int MIN_PARALLEL_FILES = 4;
+
+    // Shared by all FileManifests. Daemon threads, so it never keeps the VM up.
+    private static ExecutorService sEncoders;
+
+    private static synchronized ExecutorService getEncoders() {
+        if (sEncoders == null) {
+            sEncoders = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                                                     new ThreadFactory() {
+                                                         public Thread newThread(Runnable runnable) {
+                                                             Thread thread = new Thread(runnable,
+                                                                                        "FileManifest delta encoder");
+                                                             thread.setDaemon(true);
+                                                             return thread;
+                                                         }
+                                                     });
+        }
+        return sEncoders;
+    }
+
+    // Does the expensive part of putFile() without touching the Archive or this manifest.
+    private final static class PendingFile implements Callable<PendingFile> {
+        final Archive mArchive;
+        final String mName;
+        final LinkDigest mPrevChain;
+        InputStream mRawBytes;
+        HistoryLink mLink;
+        LinkDigest mFileDigest;
+
+        PendingFile(Archive archive, String name, LinkDigest prevChain, InputStream rawBytes) {
+            mArchive = archive;
+            mName = name;
+            mPrevChain = prevChain;
+            mRawBytes = rawBytes;
+        }
+
+        public PendingFile call() throws IOException {
+            MessageDigest insertedFileDigest = null;
+            try {
+                insertedFileDigest = MessageDigest.getInstance("SHA");
+            } catch (NoSuchAlgorithmException nsae) {
+                mRawBytes.close();
+                throw new IOException("Couldn't load SHA1 algorithm");
+            }
+
+            DigestInputStream wrappedInput = new DigestInputStream(mRawBytes, insertedFileDigest);
+            mRawBytes = null;
+            mLink = mArchive.makeFileLink(wrappedInput, mPrevChain);  // closes on failure.
+            mFileDigest = new LinkDigest(insertedFileDigest.digest());
+            return this;
         }
+    }
 
-        DigestInputStream wrappedInput = new DigestInputStream(rawBytes, insertedFileDigest);
-        LinkDigest newChainHead = archive.putFile(wrappedInput, prevChain);  // closes on failure.
-        LinkDigest newFileDigest = new LinkDigest(insertedFileDigest.digest());
+    private LinkDigest addPendingFile(Archive archive, PendingFile pending) {
+        LinkDigest newChainHead = archive.addFileLink(pending.mLink);
+        LinkDigest newFileDigest = pending.mFileDigest;
         // DCI: need purge() to delete the old mappings?
 
         // Reuse copies of the same file inserted under different names.
         if (!mFileDigestToChainHeadDigest.containsKey(newFileDigest)) {
             mFileDigestToChainHeadDigest.put(newFileDigest, newChainHead);
         }
-        mNameToFileDigest.put(name, newFileDigest);
+        mNameToFileDigest.put(pending.mName, newFileDigest);
         return newFileDigest;
     }
 
+    private PendingFile makePendingFile(Archive archive, String name, IO source) throws IOException {
+        LinkDigest prevChain = LinkDigest.NULL_DIGEST;
+        LinkDigest prevFileDigest = mNameToFileDigest.get(name);
+        if (prevFileDigest != null) {
+            prevChain = mFileDigestToChainHeadDigest.get(prevFileDigest);
+        }
+        // Read on this thread. FileManifest.IO implementations needn't be thread safe.
+        InputStream rawBytes = new ByteArrayInputStream(IOUtil.readAndClose(source.getFile(name)));
+        return new PendingFile(archive, name, prevChain, rawBytes);
+    }
+
+    // Encodes the files on the shared pool, then adds the links to the archive
+    // in the order of names, so the update block is the same every time.
+    private void putFiles(Archive archive, List<String> names, IO source) throws IOException {
+        if (names.size() < MIN_PARALLEL_FILES) {
+            for (String name : names) {
+                addPendingFile(archive, makePendingFile(archive, name, source).call());
+            }
+            return;
+        }
+
+        List<Future<PendingFile>> futures = new ArrayList<Future<PendingFile>>();
+        try {
+            ExecutorService encoders = getEncoders();
+            for (String name : names) {
+                futures.add(encoders.submit(makePendingFile(archive, name, source)));
+            }
+
+            // Wait for all of them before changing anything.
+            List<PendingFile> done = new ArrayList<PendingFile>();
+            for (Future<PendingFile> future : futures) {
+                done.add(future.get());
+            }
+            futures.clear();
+
+            for (PendingFile pending : done) {
+                addPendingFile(archive, pending);
+            }
+        } catch (InterruptedException ie) {
+            throw new IOException("Interrupted while encoding files.");
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            for (Future<PendingFile> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
     public void removeFiles(List<String> names) {
         if (names == null) {
             throw new IllegalArgumentException("names is null");
@@ -536,12 +652,15 @@ public class FileManifest implements LinkContainer {
         }
 
         removeFiles(new ArrayList<String>(changes.mDeleted));
-        for (String added : changes.mAdded) {
-            putFile(archive, added, source.getFile(added));
-        }
-        for (String modified : changes.mModified) {
-            putFile(archive, modified, source.getFile(modified));
-        }
+
+        // Sorted so the update block doesn't depend on Set iteration order.
+        List<String> names = new ArrayList<String>(changes.mAdded);
+        Collections.sort(names);
+        List<String> modified = new ArrayList<String>(changes.mModified);
+        Collections.sort(modified);
+        names.addAll(modified);
+
+        putFiles(archive, names, source);
 
         doPreCommitCleanup();
         return changes;
@@ -564,6 +683,11 @@ public class FileManifest implements LinkContainer {
         return links;
     }
 
+    public Set<LinkDigest> getReferencedChainHeads() {
+        purge();
+        return referencedChainHeads();
+    }
+
     // Deep copy.
     static Set<String> getKeys(Map<String, LinkDigest> source) {
         return new HashSet<String>(source.keySet());
@@ -25,6 +25,9 @@
 package wormarc;
 import java.io.InputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+
+import java.security.DigestInputStream;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -34,9 +37,13 @@ import java.util.Map;
 import java.util.List;
 
 public class HistoryLinkMap {
-    // DCI: fix serialVersionUID
-    // DCI: Hmmmm...memory use can grow without bound...
-    private Map<LinkDigest,HistoryLink> mMap = new HashMap<LinkDigest,HistoryLink>();
+    // Give up walking a chain after this many links when stopAtEnd is set.
+    // SnapshotPolicy implementations must keep chains shorter than this.
+    public final static int MAX_TRAVERSAL = 33;
+
+    // DCI: Hmmmm...memory use can still grow without bound, but it's ~100 bytes / link now.
+    // HistoryLink instances are only made when someone asks for one.
+    private final LinkTable mTable = new LinkTable();
 
     ////////////////////////////////////////////////////////////
     public static class LinkNotFoundException extends RuntimeException {
@@ -107,16 +114,16 @@ public class HistoryLinkMap {
 
     public boolean contains(LinkDigest linkDigest) {
         throwIfNull(linkDigest);
-        return mMap.containsKey(linkDigest);
+        return mTable.find(linkDigest) != -1;
     }
 
     public HistoryLink getLink(LinkDigest linkDigest) {
         throwIfNull(linkDigest);
-        HistoryLink link = mMap.get(linkDigest);
-        if (link == null) {
+        final int slot = mTable.find(linkDigest);
+        if (slot == -1) {
             throw new LinkNotFoundException(linkDigest);
         }
-        return link;
+        return mTable.makeLink(slot, linkDigest, mTable.getParent(slot));
     }
 
     public Iterable<HistoryLink> getLinks(List<LinkDigest> linkDigests) {
@@ -124,33 +131,93 @@ public class HistoryLinkMap {
         return new LinkLookupIterable(this, linkDigests);
     }
 
+    // Each link's parent digest is shared as the next link's mHash, so
+    // this only allocates one LinkDigest and one HistoryLink per link.
     public List<HistoryLink> getChain(LinkDigest linkDigest, boolean stopAtEnd) {
         throwIfNullOrNullDigest(linkDigest);
-        
-        //System.out.println("Starting: " + linkDigest + " stopAtEnd:" + stopAtEnd);
+
         ArrayList<HistoryLink> links = new ArrayList<HistoryLink>();
-        HistoryLink link = new HistoryLink(0, false, null, linkDigest, null);
-        int traversalCount = 33; // Hmmm DCI: fix. put in constant
-        while (!link.mParent.isNullDigest() &&
-               (!(stopAtEnd && link.mIsEnd))) {
-            //System.out.println("Looking up parent: " + link);
-            link = getLink(link.mParent);
-            links.add(link);
+        LinkDigest digest = linkDigest;
+        int traversalCount = MAX_TRAVERSAL;
+        while (true) {
+            final int slot = mTable.find(digest);
+            if (slot == -1) {
+                throw new LinkNotFoundException(digest);
+            }
+            final LinkDigest parent = mTable.getParent(slot);
+            links.add(mTable.makeLink(slot, digest, parent));
             traversalCount--;
             if (traversalCount == 0 && stopAtEnd) {
                 // How do you construct a loop? SHA1 hash collision?
                 throw new RuntimeException("getChain() gave up.  Possible loop: " + linkDigest);
             }
+            if (parent.isNullDigest() || (stopAtEnd && mTable.isEnd(slot))) {
+                break;
+            }
+            digest = parent;
         }
-        //System.out.println("Exiting: " + linkDigest);
         return links;
     }
 
+    // Same as getChain(linkDigest, stopAtEnd).size() but doesn't allocate anything.
+    public int getChainLength(LinkDigest linkDigest, boolean stopAtEnd) {
+        throwIfNullOrNullDigest(linkDigest);
+
+        int slot = mTable.find(linkDigest);
+        if (slot == -1) {
+            throw new LinkNotFoundException(linkDigest);
+        }
+        int length = 0;
+        while (true) {
+            length++;
+            if (length == MAX_TRAVERSAL && stopAtEnd) {
+                throw new RuntimeException("getChain() gave up.  Possible loop: " + linkDigest);
+            }
+            if (mTable.parentIsNullDigest(slot) || (stopAtEnd && mTable.isEnd(slot))) {
+                break;
+            }
+            final int parentSlot = mTable.findParent(slot);
+            if (parentSlot == -1) {
+                throw new LinkNotFoundException(mTable.getParent(slot));
+            }
+            slot = parentSlot;
+        }
+        return length;
+    }
+
+    // Walks the chain back to the last full version. Doesn't allocate anything
+    // except the result.
+    public ChainStats getChainStats(LinkDigest linkDigest) {
+        throwIfNullOrNullDigest(linkDigest);
+
+        int slot = mTable.find(linkDigest);
+        if (slot == -1) {
+            throw new LinkNotFoundException(linkDigest);
+        }
+        int length = 0;
+        long deltaBytes = 0;
+        while (true) {
+            length++;
+            if (length == MAX_TRAVERSAL) {
+                throw new RuntimeException("getChain() gave up.  Possible loop: " + linkDigest);
+            }
+            if (mTable.parentIsNullDigest(slot) || mTable.isEnd(slot)) {
+                return new ChainStats(1, length, length, mTable.getDataLength(slot), deltaBytes);
+            }
+            deltaBytes += mTable.getDataLength(slot);
+            final int parentSlot = mTable.findParent(slot);
+            if (parentSlot == -1) {
+                throw new LinkNotFoundException(mTable.getParent(slot));
+            }
+            slot = parentSlot;
+        }
+    }
+
     public void addLink(HistoryLink link) {
         if (link == null || link.mHash == null) {
             throw new IllegalArgumentException("Bad HistoryLink");
         }
-        mMap.put(link.mHash, link);
+        mTable.put(link);
     }
 
     public void addLinks(Iterable<HistoryLink> links) {
@@ -161,30 +228,56 @@ public class HistoryLinkMap {
             if (link == null || link.mHash == null) {
                 throw new IllegalArgumentException("Bad HistoryLink");
             }
-            mMap.put(link.mHash, link);
+            mTable.put(link);
         }
     }
 
     public void removeLink(LinkDigest linkDigest) {
         throwIfNull(linkDigest);
-        mMap.remove(linkDigest);
+        mTable.remove(linkDigest);
     }
 
     public void removeLinks(Iterable<LinkDigest> linkDigests) {
         throwIfNull(linkDigests);
         for (LinkDigest linkDigest : linkDigests) {
-            mMap.remove(linkDigests);
+            mTable.remove(linkDigest);
         }
     }
 
     ////////////////////////////////////////////////////////////
-    // Access to underlying map.
+    // Bulk access.
+    public int size() { return mTable.size(); }
+
+    // Deep copy, in no particular order.
+    public List<LinkDigest> getDigests() {
+        final List<LinkDigest> digests = new ArrayList<LinkDigest>(mTable.size());
+        for (int slot = 0; slot < mTable.capacity(); slot++) {
+            if (mTable.isOccupied(slot)) {
+                digests.add(mTable.getDigest(slot));
+            }
+        }
+        return digests;
+    }
+
+    // Doesn't make any HistoryLinks. The LinkData instances are shared.
+    public void putAll(HistoryLinkMap other) {
+        mTable.putAll(other.mTable);
+    }
+
+    // Expensive. Makes a HistoryLink for every entry. Prefer getDigests().
     public Map<LinkDigest,HistoryLink> getUnmodifiableMap() {
-        return Collections.unmodifiableMap(mMap);
+        final Map<LinkDigest,HistoryLink> map = new HashMap<LinkDigest,HistoryLink>();
+        for (int slot = 0; slot < mTable.capacity(); slot++) {
+            if (mTable.isOccupied(slot)) {
+                final HistoryLink link = mTable.makeLink(slot);
+                map.put(link.mHash, link);
+            }
+        }
+        return Collections.unmodifiableMap(map);
     }
 
     public void putAll(Map<LinkDigest,HistoryLink> otherMap) {
-        mMap.putAll(otherMap);
+        addLinks(otherMap.values());
     }
 
     ////////////////////////////////////////////////////////////
@@ -201,6 +294,10 @@ public class HistoryLinkMap {
 
     // Get the length of the binary rep of the block.
     public long getLength(Block block) throws IOException {
+        long length = block.getRepLength();
+        if (length != -1) {
+            return length;
+        }
         return BinaryLinkRep.getRepLength(getLinks(block.getDigests()));
     }
 
@@ -209,6 +306,37 @@ public class HistoryLinkMap {
         return BinaryLinkRep.toBytes(getLinks(block.getDigests()));
     }
 
+    // SHA1 of the binary rep of the block, as hex.
+    // Memoized on the block, along with the length.
+    public String getHexDigest(Block block) throws IOException {
+        String hexDigest = block.getHexDigest();
+        if (hexDigest != null) {
+            return hexDigest;
+        }
+        writeBinaryRep(block, null);
+        return block.getHexDigest();
+    }
+
+    // Writes the binary rep of the block to out, if it isn't null, and
+    // memoizes the digest and length from the same pass.
+    public void writeBinaryRep(Block block, OutputStream out) throws IOException {
+        DigestInputStream data = IOUtil.getSha1DigestInputStream(getBinaryRep(block));
+        byte[] buffer = new byte[64 * 1024];
+        long length = 0;
+        try {
+            int count;
+            while ((count = data.read(buffer)) != -1) {
+                if (out != null) {
+                    out.write(buffer, 0, count);
+                }
+                length += count;
+            }
+        } finally {
+            data.close();
+        }
+        block.setRepInfo(new LinkDigest(data.getMessageDigest().digest()).toString(), length);
+    }
+
     public Block readFrom(InputStream rawByteStream,
                           LinkDataFactory linkDataFactory) throws IOException {
 
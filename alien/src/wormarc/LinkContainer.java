@@ -29,4 +29,7 @@ import java.util.Set;
 // DCI: What else besides FileManifest?
 interface LinkContainer {
     Set<LinkDigest> getReferencedLinks(HistoryLinkMap linkMap);
+    // The heads of the chains behind getReferencedLinks().
+    // Cheap. Doesn't walk any chains.
+    Set<LinkDigest> getReferencedChainHeads();
 }
\ No newline at end of file
@@ -49,6 +49,17 @@ public final class LinkDigest implements Comparable<LinkDigest> {
         mHashCode = Arrays.hashCode(mBytes);
     }
 
+    // Copy 20 bytes out of a bigger array. e.g. a LinkTable.
+    LinkDigest(byte[] bytes, int offset) {
+        System.arraycopy(bytes, offset, mBytes, 0, 20);
+        mHashCode = Arrays.hashCode(mBytes);
+    }
+
+    // NOT a copy. Callers in this package MUST NOT modify it.
+    final byte[] rawBytes() {
+        return mBytes;
+    }
+
     // Deep copy!
     public byte[] getBytes() {
         byte[] bytes = new byte[20];
@@ -73,9 +84,15 @@ public final class LinkDigest implements Comparable<LinkDigest> {
         return hexDigest(20);
     }
 
+    // Unsigned byte order, which is the same order as the hex strings.
     public int compareTo(LinkDigest other) {
-        // DCI: TOO SLOW? use Arrays.equals
-        return hexDigest(20).compareTo(other.hexDigest(20));
+        for (int index = 0; index < 20; index++) {
+            int delta = (mBytes[index] & 0xff) - (other.mBytes[index] & 0xff);
+            if (delta != 0) {
+                return delta;
+            }
+        }
+        return 0;
     }
 
     public boolean isNullDigest() { return equals(NULL_DIGEST); }
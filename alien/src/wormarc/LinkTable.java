@@ -0,0 +1,241 @@
+/* An open addressing hash table which stores HistoryLink fields in flat arrays.
+ *
+ *  Copyright (C) 2010, 2011 Darrell Karbott
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.0 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ *  Author: djk@isFiaD04zgAgnrEC5XJt1i4IE7AkNPqhBG5bONi6Yks
+ *
+ *  This file was developed as component of
+ * "fniki" (a wiki implementation running over Freenet).
+ */
+
+package wormarc;
+
+// INTENT: Keep per link heap overhead down for archives with long histories.
+//
+// A HashMap<LinkDigest, HistoryLink> costs a node, a LinkDigest, a byte[],
+// a HistoryLink and a second LinkDigest + byte[] for the parent per link.
+// This stores the digest and the parent digest inline in two byte[]s,
+// the length and flags packed into a long[], and the LinkData reference.
+//
+// Linear probing. Keys are SHA1 hashes so the first four bytes are
+// already a good hash.
+final class LinkTable {
+    private final static int DIGEST_LEN = 20;
+    private final static int MIN_CAPACITY = 16;
+    private final static long EMPTY = -1;
+    private final static long FLAG_IS_END = 1;
+
+    private byte[] mKeys;
+    private byte[] mParents;
+    // (data length << 1) | isEnd, or EMPTY.
+    private long[] mMeta;
+    private LinkData[] mData;
+    private int mMask;
+    private int mSize;
+
+    LinkTable(int capacity) {
+        allocate(capacityFor(capacity));
+    }
+
+    LinkTable() {
+        this(MIN_CAPACITY);
+    }
+
+    private static int capacityFor(int count) {
+        int capacity = MIN_CAPACITY;
+        // Keep the load factor under 0.7.
+        while (capacity * 7 <= count * 10) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new byte[capacity * DIGEST_LEN];
+        mParents = new byte[capacity * DIGEST_LEN];
+        mMeta = new long[capacity];
+        java.util.Arrays.fill(mMeta, EMPTY);
+        mData = new LinkData[capacity];
+        mMask = capacity - 1;
+        mSize = 0;
+    }
+
+    private static int hash(byte[] digests, int offset) {
+        int value = ((digests[offset] & 0xff) << 24) |
+            ((digests[offset + 1] & 0xff) << 16) |
+            ((digests[offset + 2] & 0xff) << 8) |
+            (digests[offset + 3] & 0xff);
+        return value ^ (value >>> 16);
+    }
+
+    private static boolean digestEquals(byte[] left, int leftOffset, byte[] right, int rightOffset) {
+        for (int index = 0; index < DIGEST_LEN; index++) {
+            if (left[leftOffset + index] != right[rightOffset + index]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    ////////////////////////////////////////////////////////////
+    int size() { return mSize; }
+    int capacity() { return mMeta.length; }
+    boolean isOccupied(int slot) { return mMeta[slot] != EMPTY; }
+
+    // Returns the slot or -1 if the digest isn't in the table.
+    int find(byte[] digests, int offset) {
+        int slot = hash(digests, offset) & mMask;
+        while (mMeta[slot] != EMPTY) {
+            if (digestEquals(mKeys, slot * DIGEST_LEN, digests, offset)) {
+                return slot;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return -1;
+    }
+
+    int find(LinkDigest digest) {
+        return find(digest.rawBytes(), 0);
+    }
+
+    // Look up the parent of the link in slot without allocating a LinkDigest.
+    int findParent(int slot) {
+        return find(mParents, slot * DIGEST_LEN);
+    }
+
+    boolean isEnd(int slot) { return (mMeta[slot] & FLAG_IS_END) != 0; }
+    long getDataLength(int slot) { return mMeta[slot] >>> 1; }
+
+    boolean parentIsNullDigest(int slot) {
+        final int offset = slot * DIGEST_LEN;
+        for (int index = 0; index < DIGEST_LEN; index++) {
+            if (mParents[offset + index] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    LinkDigest getDigest(int slot) { return new LinkDigest(mKeys, slot * DIGEST_LEN); }
+    LinkDigest getParent(int slot) { return new LinkDigest(mParents, slot * DIGEST_LEN); }
+
+    // The caller passes in digests it already has, so nothing is allocated twice.
+    HistoryLink makeLink(int slot, LinkDigest digest, LinkDigest parent) {
+        return new HistoryLink(getDataLength(slot), isEnd(slot), digest, parent, mData[slot]);
+    }
+
+    HistoryLink makeLink(int slot) {
+        return makeLink(slot, getDigest(slot), getParent(slot));
+    }
+
+    ////////////////////////////////////////////////////////////
+    private void set(int slot, byte[] digest, int digestOffset,
+                     byte[] parent, int parentOffset, long meta, LinkData data) {
+        System.arraycopy(digest, digestOffset, mKeys, slot * DIGEST_LEN, DIGEST_LEN);
+        System.arraycopy(parent, parentOffset, mParents, slot * DIGEST_LEN, DIGEST_LEN);
+        mMeta[slot] = meta;
+        mData[slot] = data;
+    }
+
+    private void insert(byte[] digest, int digestOffset,
+                        byte[] parent, int parentOffset, long meta, LinkData data) {
+        if ((mSize + 1) * 10 >= capacity() * 7) {
+            rehash(capacity() << 1);
+        }
+        int slot = hash(digest, digestOffset) & mMask;
+        while (mMeta[slot] != EMPTY) {
+            if (digestEquals(mKeys, slot * DIGEST_LEN, digest, digestOffset)) {
+                // Replace, like Map.put().
+                set(slot, digest, digestOffset, parent, parentOffset, meta, data);
+                return;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        set(slot, digest, digestOffset, parent, parentOffset, meta, data);
+        mSize++;
+    }
+
+    private void rehash(int capacity) {
+        final byte[] keys = mKeys;
+        final byte[] parents = mParents;
+        final long[] meta = mMeta;
+        final LinkData[] data = mData;
+        allocate(capacity);
+        for (int slot = 0; slot < meta.length; slot++) {
+            if (meta[slot] != EMPTY) {
+                insert(keys, slot * DIGEST_LEN, parents, slot * DIGEST_LEN, meta[slot], data[slot]);
+            }
+        }
+    }
+
+    void put(HistoryLink link) {
+        if (link.mDataLength < 0) {
+            throw new IllegalArgumentException("Negative data length.");
+        }
+        insert(link.mHash.rawBytes(), 0, link.mParent.rawBytes(), 0,
+               (link.mDataLength << 1) | (link.mIsEnd ? FLAG_IS_END : 0),
+               link.mData);
+    }
+
+    void putAll(LinkTable other) {
+        if (mSize == 0 && other.mSize > 0) {
+            // Fast path for deep copies. Same layout, so just copy the arrays.
+            mKeys = other.mKeys.clone();
+            mParents = other.mParents.clone();
+            mMeta = other.mMeta.clone();
+            mData = other.mData.clone();
+            mMask = other.mMask;
+            mSize = other.mSize;
+            return;
+        }
+        for (int slot = 0; slot < other.capacity(); slot++) {
+            if (other.isOccupied(slot)) {
+                insert(other.mKeys, slot * DIGEST_LEN, other.mParents, slot * DIGEST_LEN,
+                       other.mMeta[slot], other.mData[slot]);
+            }
+        }
+    }
+
+    // Backward shift deletion, so no tombstones are needed.
+    boolean remove(LinkDigest digest) {
+        int hole = find(digest);
+        if (hole == -1) {
+            return false;
+        }
+        int slot = hole;
+        while (true) {
+            slot = (slot + 1) & mMask;
+            if (mMeta[slot] == EMPTY) {
+                break;
+            }
+            final int home = hash(mKeys, slot * DIGEST_LEN) & mMask;
+            // Leave the entry where it is if its home is cyclically in (hole, slot].
+            final boolean stays = (hole <= slot) ?
+                (hole < home && home <= slot) :
+                (hole < home || home <= slot);
+            if (stays) {
+                continue;
+            }
+            set(hole, mKeys, slot * DIGEST_LEN, mParents, slot * DIGEST_LEN, mMeta[slot], mData[slot]);
+            hole = slot;
+        }
+        mMeta[hole] = EMPTY;
+        mData[hole] = null;
+        mSize--;
+        return true;
+    }
+}
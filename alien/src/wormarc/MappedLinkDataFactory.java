@@ -0,0 +1,241 @@
+/* A LinkDataFactory which makes LinkData instances stored in memory mapped segment files.
+ *
+ *  Copyright (C) 2010, 2011 Darrell Karbott
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.0 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ *  Author: djk@isFiaD04zgAgnrEC5XJt1i4IE7AkNPqhBG5bONi6Yks
+ *
+ *  This file was developed as component of
+ * "fniki" (a wiki implementation running over Freenet).
+ */
+
+package wormarc;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import java.security.MessageDigest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Read only InputStream view of a ByteBuffer. Doesn't copy.
+class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer mBuffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+        mBuffer = buffer;
+    }
+
+    public int read() throws IOException {
+        if (!mBuffer.hasRemaining()) {
+            return -1;
+        }
+        return mBuffer.get() & 0xff;
+    }
+
+    public int read(byte[] destination, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!mBuffer.hasRemaining()) {
+            return -1;
+        }
+        length = Math.min(length, mBuffer.remaining());
+        mBuffer.get(destination, offset, length);
+        return length;
+    }
+
+    public long skip(long count) throws IOException {
+        if (count <= 0) {
+            return 0;
+        }
+        int skipped = (int)Math.min(count, mBuffer.remaining());
+        mBuffer.position(mBuffer.position() + skipped);
+        return skipped;
+    }
+
+    public int available() throws IOException {
+        return mBuffer.remaining();
+    }
+}
+
+// Only the segment index, offset and length live on the heap.
+class MappedLinkData implements LinkData {
+    private final MappedLinkDataFactory mFactory;
+    private final int mSegment;
+    private final int mOffset;
+    private final int mLength;
+
+    MappedLinkData(MappedLinkDataFactory factory, int segment, int offset, int length) {
+        mFactory = factory;
+        mSegment = segment;
+        mOffset = offset;
+        mLength = length;
+    }
+
+    public InputStream openInputStream() throws IOException {
+        return new ByteBufferInputStream(mFactory.slice(mSegment, mOffset, mLength));
+    }
+
+    public void copyTo(OutputStream destination) throws IOException {
+        ByteBuffer data = mFactory.slice(mSegment, mOffset, mLength);
+        WritableByteChannel channel = null;
+        if (destination instanceof FileOutputStream) {
+            // Straight from the mapped pages into the kernel.
+            channel = ((FileOutputStream)destination).getChannel();
+        } else {
+            // Don't close this, it closes destination.
+            channel = Channels.newChannel(destination);
+        }
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+
+    public byte[] copyTo(byte[] destination) throws IOException {
+        mFactory.slice(mSegment, mOffset, mLength).get(destination, 0, destination.length);
+        return destination;
+    }
+}
+
+// INTENT: Keep link payloads for big archives off the java heap.
+//
+// Link data is appended to fixed size segment files which are mapped
+// into memory. Segments are never rewritten, so a LinkData only needs
+// to remember where its bytes start.
+//
+// The segment files are scratch storage. They are unlinked as soon as
+// they are mapped where the OS allows it, so nothing is left behind when
+// the factory is garbage collected.
+public class MappedLinkDataFactory implements LinkDataFactory {
+    public final static int DEFAULT_SEGMENT_SIZE = 32 * 1024 * 1024;
+    private final static int BUF_LEN = 1024 * 32;
+
+    private final File mDirectory;
+    private final int mSegmentSize;
+    private final String mPrefix = "links_" + IOUtil.randomHexString(8) + "_";
+    private final List<MappedByteBuffer> mSegments = new ArrayList<MappedByteBuffer>();
+    private final byte[] mScratch = new byte[BUF_LEN];
+    private long mMappedBytes;
+
+    public MappedLinkDataFactory(String directory, int segmentSize) throws IOException {
+        if (directory == null) {
+            throw new IllegalArgumentException("directory is null.");
+        }
+        if (segmentSize < 1) {
+            throw new IllegalArgumentException("segmentSize < 1");
+        }
+
+        File file =  new File(directory);
+        if (!(file.exists() && file.isDirectory() && file.canWrite() && file.canRead())) {
+            throw new IOException("Directory must exist and have read and write access.");
+        }
+        mDirectory = file;
+        mSegmentSize = segmentSize;
+    }
+
+    public MappedLinkDataFactory(String directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public MappedLinkDataFactory() throws IOException {
+        this(System.getProperty("java.io.tmpdir"));
+    }
+
+    private MappedByteBuffer mapSegment(int capacity) throws IOException {
+        File file = new File(mDirectory, mPrefix + mSegments.size());
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        MappedByteBuffer segment = null;
+        try {
+            // The mapping stays valid after the channel is closed.
+            segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } finally {
+            raf.close();
+            if (!file.delete()) {
+                // i.e. Windows won't delete mapped files.
+                file.deleteOnExit();
+            }
+        }
+        mSegments.add(segment);
+        mMappedBytes += capacity;
+        return segment;
+    }
+
+    public synchronized LinkData makeLinkData(InputStream source, long length, MessageDigest messageDigest)
+        throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Can't map a segment that big. Sorry :-(");
+        }
+
+        MappedByteBuffer segment = null;
+        if (!mSegments.isEmpty()) {
+            segment = mSegments.get(mSegments.size() - 1);
+        }
+        if (segment == null || segment.remaining() < length) {
+            // Links bigger than the segment size get a segment of their own.
+            segment = mapSegment((int)Math.max(mSegmentSize, length));
+        }
+
+        final int offset = segment.position();
+        boolean raised = true;
+        try {
+            int count = 0;
+            while (count < length) {
+                int bytesRead = source.read(mScratch, 0, (int)Math.min(mScratch.length, length - count));
+                if (bytesRead == -1) {
+                    throw new EOFException("Unexpected EOF reading MappedLinkData.");
+                }
+                messageDigest.update(mScratch, 0, bytesRead);
+                segment.put(mScratch, 0, bytesRead);
+                count += bytesRead;
+            }
+            raised = false;
+        } finally {
+            if (raised) {
+                // Segments are append only. Just forget the partial write.
+                segment.position(offset);
+            }
+        }
+
+        return new MappedLinkData(this, mSegments.size() - 1, offset, (int)length);
+    }
+
+    // Independent view so concurrent readers don't share position / limit.
+    ByteBuffer slice(int segment, int offset, int length) {
+        ByteBuffer buffer = null;
+        synchronized (this) {
+            buffer = mSegments.get(segment).duplicate();
+        }
+        buffer.position(offset);
+        buffer.limit(offset + length);
+        return buffer.slice();
+    }
+
+    // Total size of all the segments mapped so far.
+    public synchronized long getMappedBytes() { return mMappedBytes; }
+}
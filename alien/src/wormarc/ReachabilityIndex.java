@@ -0,0 +1,165 @@
+/* Reference counts for the HistoryLinks reachable from an Archive's root objects.
+ *
+ *  Copyright (C) 2010, 2011 Darrell Karbott
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.0 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ *  Author: djk@isFiaD04zgAgnrEC5XJt1i4IE7AkNPqhBG5bONi6Yks
+ *
+ *  This file was developed as component of
+ * "fniki" (a wiki implementation running over Freenet).
+ */
+
+package wormarc;
+
+import java.io.IOException;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+// Two levels of reference counting:
+// root objects -> chain heads, chain heads -> links.
+//
+// Adding or removing a root object only walks the chains of heads whose
+// count goes from 0 to 1 or 1 to 0. i.e. the cost is proportional to
+// what changed, not to the size of the history.
+class ReachabilityIndex {
+    private final Map<Archive.RootObject, Integer> mRootRefs;
+    private final Map<Archive.RootObject, Set<LinkDigest>> mRootHeads;
+    private final Map<LinkDigest, Integer> mHeadRefs;
+    private final Map<LinkDigest, Integer> mLinkRefs;
+
+    ReachabilityIndex() {
+        mRootRefs = new HashMap<Archive.RootObject, Integer>();
+        mRootHeads = new HashMap<Archive.RootObject, Set<LinkDigest>>();
+        mHeadRefs = new HashMap<LinkDigest, Integer>();
+        mLinkRefs = new HashMap<LinkDigest, Integer>();
+    }
+
+    // The head sets are never modified after they are built, so sharing them is safe.
+    ReachabilityIndex deepCopy() {
+        ReachabilityIndex copy = new ReachabilityIndex();
+        copy.mRootRefs.putAll(mRootRefs);
+        copy.mRootHeads.putAll(mRootHeads);
+        copy.mHeadRefs.putAll(mHeadRefs);
+        copy.mLinkRefs.putAll(mLinkRefs);
+        return copy;
+    }
+
+    private static int increment(Map<LinkDigest, Integer> counts, LinkDigest digest) {
+        Integer count = counts.get(digest);
+        int value = (count == null) ? 1 : count + 1;
+        counts.put(digest, value);
+        return value;
+    }
+
+    private static int decrement(Map<LinkDigest, Integer> counts, LinkDigest digest) {
+        Integer count = counts.get(digest);
+        if (count == null) {
+            throw new RuntimeException("Assertion Failure: reference count underflow: " + digest);
+        }
+        if (count == 1) {
+            counts.remove(digest);
+            return 0;
+        }
+        counts.put(digest, count - 1);
+        return count - 1;
+    }
+
+    private void addHead(HistoryLinkMap linkMap, LinkDigest head) {
+        if (increment(mHeadRefs, head) > 1) {
+            return;
+        }
+        for (HistoryLink link : linkMap.getChain(head, true)) {
+            increment(mLinkRefs, link.mHash);
+        }
+    }
+
+    private void removeHead(HistoryLinkMap linkMap, LinkDigest head) {
+        if (decrement(mHeadRefs, head) > 0) {
+            return;
+        }
+        for (HistoryLink link : linkMap.getChain(head, true)) {
+            decrement(mLinkRefs, link.mHash);
+        }
+    }
+
+    // Can throw HistoryLinkMap.LinkNotFoundException.
+    void addRoot(Archive archive, HistoryLinkMap linkMap, Archive.RootObject obj) throws IOException {
+        if (obj.mDigest.isNullDigest()) {
+            return;
+        }
+
+        Set<LinkDigest> heads = mRootHeads.get(obj);
+        if (heads == null) {
+            heads = new HashSet<LinkDigest>();
+            // The file the object is stored in.
+            heads.add(obj.mDigest);
+            // Any files the object refers to.
+            heads.addAll(RootObjectKind.getContainer(archive, obj).getReferencedChainHeads());
+        }
+
+        // Don't update anything until all calls which could raise have finished.
+        // Only new heads need checking. The rest were walked when they were added.
+        for (LinkDigest head : heads) {
+            if (!mHeadRefs.containsKey(head)) {
+                linkMap.getChain(head, true);
+            }
+        }
+
+        for (LinkDigest head : heads) {
+            addHead(linkMap, head);
+        }
+        mRootHeads.put(obj, heads);
+        Integer count = mRootRefs.get(obj);
+        mRootRefs.put(obj, (count == null) ? 1 : count + 1);
+    }
+
+    void removeRoot(HistoryLinkMap linkMap, Archive.RootObject obj) {
+        if (obj.mDigest.isNullDigest()) {
+            return;
+        }
+
+        Integer count = mRootRefs.get(obj);
+        if (count == null) {
+            throw new RuntimeException("Assertion Failure: root object not in index: " + obj.mDigest);
+        }
+        for (LinkDigest head : mRootHeads.get(obj)) {
+            removeHead(linkMap, head);
+        }
+        if (count == 1) {
+            mRootRefs.remove(obj);
+            mRootHeads.remove(obj);
+        } else {
+            mRootRefs.put(obj, count - 1);
+        }
+    }
+
+    boolean isReferenced(LinkDigest digest) {
+        return mLinkRefs.containsKey(digest);
+    }
+
+    // Deep copy.
+    Set<LinkDigest> referencedHeads() {
+        return new HashSet<LinkDigest>(mHeadRefs.keySet());
+    }
+
+    // Deep copy.
+    Set<LinkDigest> referencedLinks() {
+        return new HashSet<LinkDigest>(mLinkRefs.keySet());
+    }
+}
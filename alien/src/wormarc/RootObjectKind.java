@@ -55,6 +55,9 @@ public class RootObjectKind {
                 public Set<LinkDigest> getReferencedLinks(HistoryLinkMap linkMap) {
                     return new HashSet<LinkDigest>();
                 }
+                public Set<LinkDigest> getReferencedChainHeads() {
+                    return new HashSet<LinkDigest>();
+                }
             };
         }
     }
@@ -0,0 +1,38 @@
+/* Interface to decide when a file should be stored in full instead of as a delta.
+ *
+ *  Copyright (C) 2010, 2011 Darrell Karbott
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.0 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ *  Author: djk@isFiaD04zgAgnrEC5XJt1i4IE7AkNPqhBG5bONi6Yks
+ *
+ *  This file was developed as component of
+ * "fniki" (a wiki implementation running over Freenet).
+ */
+
+package wormarc;
+
+// Archive.putFile() asks this before adding a new version to an existing
+// chain. Snapshotting makes reads cheaper and inserts bigger.
+//
+// Must be thread safe. FileManifest.updateFrom() encodes files in parallel.
+public interface SnapshotPolicy {
+    // chain describes the existing chain the new version would be appended to.
+    // Return true to store the new version in full instead.
+    //
+    // Archive always snapshots when the chain would reach
+    // HistoryLinkMap.MAX_TRAVERSAL links, whatever this returns.
+    boolean shouldSnapshot(ChainStats chain);
+}
@@ -0,0 +1,80 @@
+/* A LinkDataFactory which keeps links in RAM until there are too many of them.
+ *
+ *  Copyright (C) 2010, 2011 Darrell Karbott
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.0 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ *  Author: djk@isFiaD04zgAgnrEC5XJt1i4IE7AkNPqhBG5bONi6Yks
+ *
+ *  This file was developed as component of
+ * "fniki" (a wiki implementation running over Freenet).
+ */
+
+package wormarc;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+
+// INTENT: Small archives stay on the heap, where they are fastest.
+// Once the links made by one factory pass the threshold, the rest go
+// to a MappedLinkDataFactory, so big histories don't need a big heap.
+//
+// Use one instance per archive (and its copies). The mapped segments
+// are only freed when the factory is garbage collected.
+public class ThresholdLinkDataFactory implements LinkDataFactory {
+    public final static long DEFAULT_THRESHOLD = 16 * 1024 * 1024;
+
+    private final LinkDataFactory mRamFactory = new RamLinkDataFactory();
+    private final String mDirectory; // null means java.io.tmpdir
+    private final long mThreshold;
+    private long mRamBytes;
+    private MappedLinkDataFactory mMappedFactory;
+
+    public ThresholdLinkDataFactory(String directory, long threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold < 0");
+        }
+        mDirectory = directory;
+        mThreshold = threshold;
+    }
+
+    public ThresholdLinkDataFactory(long threshold) {
+        this(null, threshold);
+    }
+
+    public ThresholdLinkDataFactory() {
+        this(DEFAULT_THRESHOLD);
+    }
+
+    public LinkData makeLinkData(InputStream source, long length, MessageDigest messageDigest)
+        throws IOException {
+        LinkDataFactory factory = null;
+        synchronized (this) {
+            if (mMappedFactory == null && mRamBytes + length <= mThreshold) {
+                mRamBytes += length;
+                factory = mRamFactory;
+            } else {
+                if (mMappedFactory == null) {
+                    mMappedFactory = (mDirectory == null) ?
+                        new MappedLinkDataFactory() : new MappedLinkDataFactory(mDirectory);
+                }
+                factory = mMappedFactory;
+            }
+        }
+        // Outside the lock. FileManifest.updateFrom() makes links from several threads.
+        return factory.makeLinkData(source, length, messageDigest);
+    }
+}
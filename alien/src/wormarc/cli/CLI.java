@@ -51,6 +51,7 @@ import wormarc.LinkDigest;
 import wormarc.ExternalRefs;
 import wormarc.RamLinkDataFactory;
 import wormarc.RootObjectKind;
+import wormarc.ThresholdLinkDataFactory;
 
 import wormarc.io.FileIO;
 import wormarc.io.FreenetIO;
@@ -71,6 +72,27 @@ public class CLI {
         return Integer.getInteger("wormarc.cli.fms.port", FCP_PORT);
     }
 
+    // Link bytes per archive before the rest go to memory mapped files.
+    // -1 keeps them all on the heap.
+    private static LinkDataFactory makeLinkDataFactory() {
+        long threshold = Long.getLong("wormarc.cli.mapped_links_threshold",
+                                      ThresholdLinkDataFactory.DEFAULT_THRESHOLD);
+        if (threshold < 0) {
+            return new RamLinkDataFactory();
+        }
+        return new ThresholdLinkDataFactory(threshold);
+    }
+
+    private static FreenetIO makeResolver(CLICache cache) {
+        FreenetIO io = new FreenetIO(getFcpHost(), getFcpPort(), cache);
+        io.setLinkDataFactorySource(new FreenetIO.LinkDataFactorySource() {
+                public LinkDataFactory makeLinkDataFactory() {
+                    return CLI.makeLinkDataFactory();
+                }
+            });
+        return io;
+    }
+
     private static CLICache getCache(boolean createCache) throws IOException {
         String cwd = (new File(".")).getCanonicalPath();
         File cacheDir = new File(cwd, ".wormarc");
@@ -100,7 +122,7 @@ public class CLI {
     }
 
     private static Archive loadHead(CLICache cache) throws IOException {
-        return Archive.load(cache);
+        return Archive.load(cache, makeLinkDataFactory());
     }
 
     private final static void dumpList(Set<String> values, String prefix) {
@@ -283,7 +305,7 @@ public class CLI {
                     archive = loadHead(cache);
                 } catch (IOException ioe) {
                     sOut.println("No previous head found. Doing non-incremental write.");
-                    archive = new Archive();
+                    archive = new Archive(makeLinkDataFactory());
                     incremental = false;
                 }
 
@@ -387,7 +409,7 @@ public class CLI {
 
                 sOut.println(String.format("Searching for %d links... ", chain.size()));
 
-                FreenetIO freenetResolver = new FreenetIO(getFcpHost(), getFcpPort(), cache);
+                FreenetIO freenetResolver = makeResolver(cache);
 
                 List<ExternalRefs.Reference> refs =
                     AuditArchive.history(archive,
@@ -413,7 +435,7 @@ public class CLI {
                     sOut.println("Couldn't read remote. Don't know what version to start from.");
                 }
 
-                FreenetIO freenetResolver = new FreenetIO(getFcpHost(), getFcpPort(), cache);
+                FreenetIO freenetResolver = makeResolver(cache);
                 Archive archive = freenetResolver.resolve(remote);
                 AuditArchive.ChangeLogCallback callback = new AuditArchive.ChangeLogCallback () {
                         public boolean onChangeEntry(ExternalRefs.Reference oldVer,
@@ -543,7 +565,7 @@ public class CLI {
                 FreenetIO io = new FreenetIO(getFcpHost(), getFcpPort(), cache);
                 io.setRequestUri(requestUri);
                 sOut.println(String.format("Reading: %s", requestUri));
-                Archive archive = Archive.load(io);
+                Archive archive = Archive.load(io, makeLinkDataFactory());
                 cache.setName("lastpull.0");
                 archive.write(cache);
                 cache.saveHead(cache.getName());
@@ -664,7 +686,7 @@ public class CLI {
                 FileIO io = new FileIO();
                 io.setFile(fileName);
                 sOut.println(String.format("Reading: %s", fileName));
-                Archive archive = Archive.load(io);
+                Archive archive = Archive.load(io, makeLinkDataFactory());
                 cache.setName("lastloaded.0");
                 archive.write(cache);
                 cache.saveHead(cache.getName());
@@ -721,7 +743,7 @@ public class CLI {
                 LinkDigest digest = new LinkDigest(args[1]);
                 cache.setArchiveManifestChainHead(digest);
                 cache.setIgnoreMissingLinks(true);
-                Archive archive = Archive.load(cache);
+                Archive archive = Archive.load(cache, makeLinkDataFactory());
                 cache.setName("resurrected");
 
                 FileManifest mf =
@@ -785,6 +807,19 @@ public class CLI {
                 }
             }
         },
+        new Command("gc", true, false, "", "pack the links used by any named version and delete the rest",
+                    "      The first gc moves the cache from one file per link into pack files.") {
+            public boolean canParse(String[] args) { return args.length == 1; }
+            public void invoke(String[] args, CLICache cache) throws Exception {
+                boolean wasPacked = cache.usesPacks();
+                int dropped = cache.gc();
+                if (!wasPacked) {
+                    sOut.println("Moved links into pack files.");
+                }
+                sOut.println(String.format("Dropped %d unreachable links, kept %d.",
+                                           dropped, cache.getDigests().size()));
+            }
+        },
         // not "stats" because then you would need to type "statu" for status.
         new Command("info", true, false, "", "Show some stats") {
             public boolean canParse(String[] args) { return args.length == 1; }
@@ -817,6 +852,8 @@ public class CLI {
                                            usedBytes,
                                            1.0*usedBytes/sizeBytes));
 
+                sOut.println("Chains: " + archive.chainStats().pretty());
+
                 sOut.println("");
                 sOut.println("Used links by kind:");
                 List<Integer> keys = new ArrayList<Integer>(stats.keySet());
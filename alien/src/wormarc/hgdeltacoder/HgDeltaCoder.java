@@ -35,12 +35,18 @@ import java.io.InputStream;
 import java.io.DataInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.OutputStream;
 import java.io.SequenceInputStream;
 import java.io.IOException;
 
 import java.util.ArrayList;
-import java.util.zip.InflaterInputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
 import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
 
 import wormarc.DeltaCoder;
 import wormarc.HistoryLink;
@@ -72,36 +78,143 @@ public class HgDeltaCoder implements DeltaCoder {
     private static final char UNCOMPRESSED = 'u';
     static final int EOF = -1;
 
-    private static final byte[] doDecompress(byte[] data) throws IOException {
-        ByteArrayOutputStream uncompressedOut = new ByteArrayOutputStream(data.length * ASSUMED_COMPRESSION_RATIO);
+    ////////////////////////////////////////////////////////////
+    // Decoding scratch space. Pooled because making an Inflater allocates
+    // native zlib state and the buffers would otherwise be per link garbage.
+    private final static class Scratch {
+        final Inflater mInflater = new Inflater();
+        byte[] mRaw = new byte[BUFFER_SIZE];
+        byte[] mInflated = new byte[BUFFER_SIZE * ASSUMED_COMPRESSION_RATIO];
+    }
+
+    private static final int MAX_POOLED_SCRATCH = 4;
+    // Don't pin the buffers from one huge file forever.
+    private static final int MAX_RETAINED_BUFFER = 1024 * 1024;
+    private static final byte[] EMPTY = new byte[0];
+
+    private static final List<Scratch> sScratchPool = new ArrayList<Scratch>();
+
+    private static Scratch takeScratch() {
+        synchronized (sScratchPool) {
+            if (!sScratchPool.isEmpty()) {
+                return sScratchPool.remove(sScratchPool.size() - 1);
+            }
+        }
+        return new Scratch();
+    }
+
+    private static void releaseScratch(Scratch scratch) {
+        if (scratch.mRaw.length > MAX_RETAINED_BUFFER) {
+            scratch.mRaw = new byte[BUFFER_SIZE];
+        }
+        if (scratch.mInflated.length > MAX_RETAINED_BUFFER) {
+            scratch.mInflated = new byte[BUFFER_SIZE * ASSUMED_COMPRESSION_RATIO];
+        }
+        synchronized (sScratchPool) {
+            if (sScratchPool.size() < MAX_POOLED_SCRATCH) {
+                sScratchPool.add(scratch);
+                return;
+            }
+        }
+        scratch.mInflater.end();
+    }
+
+    // Returns a right sized array. Only the raw[0, length) is used.
+    private static final byte[] doDecompress(byte[] raw, int length, Scratch scratch) throws IOException {
         // decompress the bytearray using what should be python zlib
-        final byte[] buffer = new byte[BUFFER_SIZE];
-        final InflaterInputStream inflaterInputStream = new InflaterInputStream(new ByteArrayInputStream(data));
-        int len = 0;
-        while ((len = inflaterInputStream.read(buffer)) != EOF) {
-            uncompressedOut.write(buffer, 0, len);
+        final Inflater inflater = scratch.mInflater;
+        inflater.reset(); // One scratch decodes every link in a chain.
+        inflater.setInput(raw, 0, length);
+        byte[] out = scratch.mInflated;
+        int pos = 0;
+        try {
+            while (!inflater.finished()) {
+                if (pos == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                    scratch.mInflated = out;
+                }
+                int count = inflater.inflate(out, pos, out.length - pos);
+                if (count == 0 && !inflater.finished()) {
+                    if (inflater.needsInput()) {
+                        throw new EOFException("Unexpected end of ZLIB input stream");
+                    }
+                    if (inflater.needsDictionary()) {
+                        throw new IOException("ZLIB dictionaries aren't supported.");
+                    }
+                }
+                pos += count;
+            }
+        } catch (DataFormatException dfe) {
+            throw new IOException("Bad ZLIB data: " + dfe.getMessage());
         }
-        return uncompressedOut.toByteArray();
+        return Arrays.copyOf(out, pos);
     }
 
-    private static final byte[] decompress(byte[] data) throws IOException {
-        if (data.length < 1) {
-            return new byte[0];
+    private static final byte[] decompress(HistoryLink link, Scratch scratch) throws IOException {
+        if (link.mDataLength > Integer.MAX_VALUE) {
+            throw new IOException("HistoryLink too big to decode.");
+        }
+        final int length = (int)link.mDataLength;
+        if (length < 1) {
+            return EMPTY;
+        }
+
+        if (scratch.mRaw.length < length) {
+            scratch.mRaw = new byte[Math.max(length, scratch.mRaw.length * 2)];
         }
-        byte dataHeader = data[0];
+        final byte[] raw = scratch.mRaw;
+        final InputStream source = link.inputStream();
+        try {
+            int pos = 0;
+            while (pos < length) {
+                int count = source.read(raw, pos, length - pos);
+                if (count == EOF) {
+                    throw new EOFException("HistoryLink data truncated.");
+                }
+                pos += count;
+            }
+        } finally {
+            source.close();
+        }
+
+        byte dataHeader = raw[0];
         switch (dataHeader) {
         case UNCOMPRESSED:
-            final byte[] copy = new byte[data.length - 1];
-            System.arraycopy(data, 1, copy, 0, data.length - 1);
-            return copy;
+            return Arrays.copyOfRange(raw, 1, length);
         case ZLIB_COMPRESSION:
-            return doDecompress(data);
+            return doDecompress(raw, length, scratch);
         case 0:
-            return data;
+            return Arrays.copyOf(raw, length);
         default:
             throw new IOException("Unknown compression type : " + (char) (dataHeader));
         }
     }
+
+    // Returns the base text followed by the deltas, oldest first.
+    private static final List<byte[]> readChain(Iterable<HistoryLink> history) throws IOException {
+        ArrayList<byte[]> texts = new ArrayList<byte[]>();
+        boolean sawEnd = false;
+        final Scratch scratch = takeScratch();
+        try {
+            // history is newest first.
+            for (HistoryLink link: history) {
+                texts.add(decompress(link, scratch));
+                if (link.mIsEnd) {
+                    sawEnd = true;
+                    break;
+                }
+            }
+        } finally {
+            releaseScratch(scratch);
+        }
+
+        if (!sawEnd) {
+            throw new IOException("No base file in the history chain.");
+        }
+        Collections.reverse(texts);
+        return texts;
+    }
+
     ////////////////////////////////////////////////////////////
     private static final byte[] doCompress(byte[] data) throws IOException {
         ByteArrayOutputStream compressedOut = new ByteArrayOutputStream(data.length / ASSUMED_COMPRESSION_RATIO);
@@ -223,30 +336,24 @@ public class HgDeltaCoder implements DeltaCoder {
 
     }
 
-    public InputStream applyDeltas(Iterable<HistoryLink> history) throws IOException {
-        byte[] text = null;
-        ArrayList<byte[]> deltas = new ArrayList<byte[]>();
-        for (HistoryLink link: history) {
-            // DCI: memory usage. multiple copies!
-            byte[] rawData = new byte[(int)link.mDataLength];
-            rawData = decompress(link.copyTo(rawData));
-            if (link.mIsEnd) {
-                text = rawData;
-                break;
-            }
-            deltas.add(0, rawData);
-        }
-
-        if (text == null) {
-            throw new IOException("No base file in the history chain.");
+    public byte[] applyDeltasToBytes(Iterable<HistoryLink> history) throws IOException {
+        final List<byte[]> texts = readChain(history);
+        if (texts.size() == 1) {
+            return texts.get(0);
         }
+        return MDiff.patch(texts.get(0), texts.subList(1, texts.size()));
+    }
 
-        if (deltas.size() == 0) {
-            return new ByteArrayInputStream(text);
+    public void applyDeltas(Iterable<HistoryLink> history, OutputStream sink) throws IOException {
+        final List<byte[]> texts = readChain(history);
+        if (texts.size() == 1) {
+            sink.write(texts.get(0));
+            return;
         }
+        MDiff.patches(texts.get(0), texts.subList(1, texts.size()), sink);
+    }
 
-        ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
-        MDiff.patches(text, deltas, bytesOut);
-        return new ByteArrayInputStream(bytesOut.toByteArray());
+    public InputStream applyDeltas(Iterable<HistoryLink> history) throws IOException {
+        return new ByteArrayInputStream(applyDeltasToBytes(history));
     }
 }
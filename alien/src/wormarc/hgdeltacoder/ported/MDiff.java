@@ -107,6 +107,21 @@ public final class MDiff {
         }
     }
 
+    /**
+     * Applies patches into an array of exactly the right size.
+     *
+     * @param in the base text
+     * @param bins the patches, oldest first
+     * @return the patched text
+     */
+    public static byte[] patch(byte[] in, List<byte[]> bins) {
+        List<Fragment> patch = fold(bins, 0, bins.size());
+        if (patch == null) {
+            throw new IllegalStateException("Error folding patches");
+        }
+        return apply(in, patch);
+    }
+
     private static LinkedList<Fragment> fold(List<byte[]> bins, int start, int end) {
         if (bins.size() < 1) {
             return new LinkedList<Fragment>();
@@ -307,6 +322,34 @@ public final class MDiff {
         return result;
     }
 
+    private static byte[] apply(byte[] orig, List<Fragment> fragments) {
+        final int len = orig.length;
+        long outLen = len;
+        for (final Fragment fragment : fragments) {
+            outLen += fragment.len() - (fragment.end - fragment.start);
+        }
+        if (outLen < 0 || outLen > Integer.MAX_VALUE) {
+            throw new IllegalStateException("invalid patch");
+        }
+
+        final byte[] out = new byte[(int) outLen];
+        int last = 0;
+        int pos = 0;
+        for (final Fragment fragment : fragments) {
+            // if this fragment is not within the bounds
+            if (fragment.start < last || len < fragment.end) {
+                throw new IllegalStateException("invalid patch");
+            }
+            System.arraycopy(orig, last, out, pos, fragment.start - last);
+            pos += fragment.start - last;
+            System.arraycopy(fragment.data, fragment.offset, out, pos, fragment.len());
+            pos += fragment.len();
+            last = fragment.end;
+        }
+        System.arraycopy(orig, last, out, pos, len - last);
+        return out;
+    }
+
     private static void apply(byte[] orig, List<Fragment> fragments, OutputStream out) throws IOException {
         final int len = orig.length;
         int last = 0;
@@ -34,16 +34,20 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.SequenceInputStream;
 
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import wormarc.Archive;
 import wormarc.ArchiveManifest;
 import wormarc.BinaryLinkRep;
 import wormarc.Block;
+import wormarc.HistoryLink;
 import wormarc.IOUtil;
 import wormarc.HistoryLinkMap;
 import wormarc.LinkDataFactory;
 import wormarc.LinkDigest;
+import wormarc.RamLinkDataFactory;
 
 
 // LATER: I reused ArchiveManifest as a quick hack.
@@ -119,4 +123,67 @@ public class ArchiveCache extends ArchiveCacheBase {
     public void setArchiveManifestChainHead(LinkDigest digest) {
         mArchiveManifestChainHead = digest;
     }
-}
\ No newline at end of file
+
+    // The archive manifest chain heads of every named version. i.e. the
+    // files in the directory that contain nothing but a link digest.
+    public Set<LinkDigest> getNamedHeads() throws IOException {
+        Set<LinkDigest> heads = new HashSet<LinkDigest>();
+        for (File file : mDirectory.listFiles()) {
+            // Pointer files are tiny. Skip links and everything else.
+            if (!file.isFile() || file.length() > 128 || file.getName().length() == 40) {
+                continue;
+            }
+            String value = IOUtil.readUtf8StringAndClose(new FileInputStream(file)).trim();
+            if (value.length() != 40) {
+                continue;
+            }
+            try {
+                heads.add(new LinkDigest(value));
+            } catch (NumberFormatException nfe) {
+                // Not a pointer file.
+            }
+        }
+        return heads;
+    }
+
+    // Every link needed to load the named versions.
+    public Set<LinkDigest> getReachableLinks() throws IOException {
+        Set<LinkDigest> reachable = new HashSet<LinkDigest>();
+        HistoryLinkMap linkMap = new HistoryLinkMap();
+        LinkDataFactory linkFactory = RamLinkDataFactory.instance();
+        for (LinkDigest head : getNamedHeads()) {
+            // The manifest's own chain.
+            LinkDigest digest = head;
+            while (!digest.isNullDigest() && reachable.add(digest)) {
+                HistoryLink link = readLink(linkMap, linkFactory, digest);
+                if (link.mIsEnd) {
+                    break;
+                }
+                digest = link.mParent;
+            }
+
+            Archive.ArchiveData data =
+                ArchiveManifest.fromBytes(Archive.readFile(head, this), head).makeArchiveData();
+            for (Archive.RootObject obj : data.mRootObjects) {
+                if (!obj.mDigest.isNullDigest()) {
+                    reachable.add(obj.mDigest);
+                }
+            }
+            for (Block block : data.mBlocks) {
+                reachable.addAll(block.getDigests());
+            }
+        }
+        return reachable;
+    }
+
+    // Drop every link that no named version can reach and pack the rest.
+    // Raises if any named version can't be read, so nothing is lost
+    // because of a broken pointer file.
+    // Returns the number of links dropped.
+    public int gc() throws IOException {
+        Set<LinkDigest> reachable = getReachableLinks();
+        int before = getDigests().size();
+        int kept = repack(reachable);
+        return before - kept;
+    }
+}
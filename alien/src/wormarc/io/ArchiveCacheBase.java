@@ -69,6 +69,8 @@ public abstract class ArchiveCacheBase extends LinkCache implements Archive.IO {
                 writeLink(linkMap.getLink(digest));
             }
         }
+        // Seal the pack before the pointer file can reference it.
+        flush();
         writeArchiveData(linkMap, blocks, rootObjects);
     }
 
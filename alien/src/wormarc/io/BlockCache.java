@@ -0,0 +1,305 @@
+/* A bounded on-disk cache of archive blocks, keyed by CHK.
+ *
+ *  Copyright (C) 2010, 2011 Darrell Karbott
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.0 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ *  Author: djk@isFiaD04zgAgnrEC5XJt1i4IE7AkNPqhBG5bONi6Yks
+ *
+ *  This file was developed as component of
+ * "fniki" (a wiki implementation running over Freenet).
+ */
+
+package wormarc.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import wormarc.IOUtil;
+
+// INTENT: Don't refetch blocks we already have when switching wikis,
+// loading a rebase version or restarting.
+//
+// CHKs are content addressed, so a cached block can never be stale.
+// Blocks are whole BinaryLinkRep streams, i.e. the links themselves.
+//
+// Files are named by the SHA1 of the CHK. Blocks also carry the SHA1 of
+// their bytes after a '.', so readers can catch files that went bad on
+// disk. Least recently used files are deleted once the total size goes
+// over the limit. The order survives restarts because hits touch the
+// file's modification time.
+public class BlockCache {
+    public final static long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    private final static String TMP_SUFFIX = ".tmp";
+    private final static int NAME_LEN = 40;
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+    // SHA1 of the CHK -> entry. Access ordered, eldest first.
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long mTotalBytes;
+    private int mHits;
+    private int mMisses;
+
+    private static class Entry {
+        final long mLength;
+        // null if it wasn't recorded.
+        final String mHexDigest;
+
+        Entry(long length, String hexDigest) {
+            mLength = length;
+            mHexDigest = hexDigest;
+        }
+    }
+
+    public BlockCache(File directory, long maxBytes) throws IOException {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes < 0");
+        }
+        if (!(directory.isDirectory() || directory.mkdirs())) {
+            throw new IOException("Couldn't create block cache directory: " + directory);
+        }
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+
+        File[] files = directory.listFiles();
+        Arrays.sort(files, new Comparator<File>() {
+                public int compare(File a, File b) {
+                    long delta = a.lastModified() - b.lastModified();
+                    return delta < 0 ? -1 : (delta > 0 ? 1 : 0);
+                }
+            });
+        for (File file : files) {
+            if (file.getName().endsWith(TMP_SUFFIX)) {
+                file.delete();
+                continue;
+            }
+            if (!file.isFile()) {
+                continue;
+            }
+            String fileName = file.getName();
+            String hexDigest = null;
+            if (fileName.length() == 2 * NAME_LEN + 1 && fileName.charAt(NAME_LEN) == '.') {
+                hexDigest = fileName.substring(NAME_LEN + 1);
+            } else if (fileName.length() != NAME_LEN) {
+                continue;
+            }
+            String name = fileName.substring(0, NAME_LEN);
+            Entry previous = mEntries.put(name, new Entry(file.length(), hexDigest));
+            if (previous != null) {
+                // Hmmm... only if it was written twice around a crash.
+                mTotalBytes -= previous.mLength;
+                getFile(name, previous).delete();
+            }
+            mTotalBytes += file.length();
+        }
+        evict();
+    }
+
+    public BlockCache(File directory) throws IOException {
+        this(directory, DEFAULT_MAX_BYTES);
+    }
+
+    private static String fileName(String chk) throws IOException {
+        return IOUtil.getFileDigest(IOUtil.toStreamAsUtf8(chk)).hexDigest(20);
+    }
+
+    private File getFile(String name, Entry entry) {
+        if (entry.mHexDigest == null) {
+            return new File(mDirectory, name);
+        }
+        return new File(mDirectory, name + "." + entry.mHexDigest);
+    }
+
+    // A block being streamed into the cache. It isn't visible to
+    // readers until commit().
+    public class PendingBlock {
+        private final String mName;
+        private final File mTmpFile;
+        private final OutputStream mOut;
+        private boolean mFinished;
+
+        private PendingBlock(String name) throws IOException {
+            mName = name;
+            // Random part because the same block can be fetched twice at once.
+            mTmpFile = new File(mDirectory, name + "." + IOUtil.randomHexString(8) + TMP_SUFFIX);
+            mOut = new BufferedOutputStream(new FileOutputStream(mTmpFile));
+        }
+
+        public OutputStream getOutputStream() { return mOut; }
+
+        // hexDigest is the SHA1 of the block's bytes.
+        public void commit(String hexDigest) throws IOException {
+            if (hexDigest == null || hexDigest.length() != NAME_LEN) {
+                throw new IllegalArgumentException("Bad hexDigest: " + hexDigest);
+            }
+            if (mFinished) {
+                return;
+            }
+            mFinished = true;
+            try {
+                mOut.close();
+            } catch (IOException ioe) {
+                mTmpFile.delete();
+                throw ioe;
+            }
+            synchronized (BlockCache.this) {
+                long length = mTmpFile.length();
+                if (length > mMaxBytes || mEntries.containsKey(mName)) {
+                    mTmpFile.delete();
+                    return;
+                }
+                Entry entry = new Entry(length, hexDigest);
+                if (!mTmpFile.renameTo(getFile(mName, entry))) {
+                    mTmpFile.delete();
+                    throw new IOException("Couldn't rename: " + mTmpFile);
+                }
+                mEntries.put(mName, entry);
+                mTotalBytes += length;
+                evict();
+            }
+        }
+
+        // Safe to call after commit().
+        public void abort() {
+            if (mFinished) {
+                return;
+            }
+            mFinished = true;
+            try {
+                mOut.close();
+            } catch (IOException ioe) {
+                // Deleting it anyway.
+            }
+            mTmpFile.delete();
+        }
+    }
+
+    // Returns a stream of the block's bytes or null if it isn't cached.
+    // length is the length from the top key, -1 means don't check.
+    public synchronized InputStream open(String chk, long length) throws IOException {
+        String name = fileName(chk);
+        Entry entry = mEntries.get(name);
+        if (entry == null || (length != -1 && entry.mLength != length)) {
+            mMisses++;
+            return null;
+        }
+        File file = getFile(name, entry);
+        if (file.length() != entry.mLength) {
+            // Deleted or truncated out from under us?
+            remove(name);
+            mMisses++;
+            return null;
+        }
+        InputStream in;
+        try {
+            in = new BufferedInputStream(new FileInputStream(file));
+        } catch (FileNotFoundException fnfe) {
+            remove(name);
+            mMisses++;
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        mHits++;
+        return in;
+    }
+
+    // Returns the block's bytes or null if it isn't cached.
+    public byte[] get(String chk, long length) throws IOException {
+        InputStream in = open(chk, length);
+        if (in == null) {
+            return null;
+        }
+        return IOUtil.readAndClose(in);
+    }
+
+    // Returns the SHA1 of the block's bytes, or null if it isn't cached
+    // or no SHA1 was recorded for it.
+    public synchronized String getHexDigest(String chk) throws IOException {
+        Entry entry = mEntries.get(fileName(chk));
+        if (entry == null) {
+            return null;
+        }
+        return entry.mHexDigest;
+    }
+
+    // Drop a cached copy that turned out to be bad.
+    public synchronized void discard(String chk) throws IOException {
+        remove(fileName(chk));
+    }
+
+    public PendingBlock startPut(String chk) throws IOException {
+        return new PendingBlock(fileName(chk));
+    }
+
+    // No SHA1 is recorded. Used for top keys, which are checked when parsed.
+    public synchronized void put(String chk, byte[] data) throws IOException {
+        if (data.length > mMaxBytes) {
+            return;
+        }
+        String name = fileName(chk);
+        if (mEntries.containsKey(name)) {
+            return;
+        }
+        // Write then rename so readers never see a partial block.
+        File tmpFile = new File(mDirectory, name + TMP_SUFFIX);
+        IOUtil.writeFully(data, tmpFile.getPath());
+        if (!tmpFile.renameTo(new File(mDirectory, name))) {
+            tmpFile.delete();
+            throw new IOException("Couldn't rename: " + tmpFile);
+        }
+        mEntries.put(name, new Entry(data.length, null));
+        mTotalBytes += data.length;
+        evict();
+    }
+
+    private void remove(String name) {
+        Entry entry = mEntries.remove(name);
+        if (entry != null) {
+            mTotalBytes -= entry.mLength;
+            getFile(name, entry).delete();
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> itr = mEntries.entrySet().iterator();
+        while (mTotalBytes > mMaxBytes && itr.hasNext()) {
+            Map.Entry<String, Entry> eldest = itr.next();
+            itr.remove();
+            mTotalBytes -= eldest.getValue().mLength;
+            getFile(eldest.getKey(), eldest.getValue()).delete();
+        }
+    }
+
+    public synchronized long getTotalBytes() { return mTotalBytes; }
+
+    public synchronized String getStats() {
+        return String.format("Block cache: %d blocks, %d bytes, %d hits, %d misses",
+                             mEntries.size(), mTotalBytes, mHits, mMisses);
+    }
+}
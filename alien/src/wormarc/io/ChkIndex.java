@@ -0,0 +1,246 @@
+/* A durable, bounded block SHA1 to CHK index backed by an append-only file.
+ *
+ *  Copyright (C) 2010, 2011 Darrell Karbott
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.0 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ *  Author: djk@isFiaD04zgAgnrEC5XJt1i4IE7AkNPqhBG5bONi6Yks
+ *
+ *  This file was developed as component of
+ * "fniki" (a wiki implementation running over Freenet).
+ */
+
+package wormarc.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import wormarc.IOUtil;
+import wormarc.LinkDigest;
+
+// INTENT: Remember which blocks are already in Freenet across restarts,
+// so FreenetIO.write() only inserts genuinely new blocks.
+//
+// A drop in replacement for the Map<String, String> FreenetIO takes.
+// Keys are hex block SHA1s, values CHK URIs.
+//
+// File format:
+//   <magic:int><version:int>
+//   (<sha1:20 bytes><chk length:unsigned short><chk:utf8>) *
+//
+// Every put() appends a record. The file is read the first time the
+// index is used, and rewritten with only the live entries when it holds
+// more than twice as many records as the limit. Least recently used
+// entries are dropped past the limit.
+//
+// The index is only an optimisation, so write failures aren't fatal.
+// The entry is still kept in memory, the failure is logged once and
+// nothing more is written to the file until the next restart. A partial
+// record is cut off the next time the file is read.
+public class ChkIndex extends AbstractMap<String, String> {
+    public final static int DEFAULT_MAX_ENTRIES = 4096;
+
+    private final static int MAGIC = 0x57414348; // "WACH"
+    private final static int VERSION = 1;
+    private final static int HEADER_LEN = 8;
+
+    private final File mFile;
+    private final int mMaxEntries;
+    private LinkedHashMap<String, String> mEntries;
+    private int mRecordCount;
+    private boolean mWriteFailed;
+
+    public ChkIndex(File file, int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries < 1");
+        }
+        mFile = file;
+        mMaxEntries = maxEntries;
+    }
+
+    public ChkIndex(File file) {
+        this(file, DEFAULT_MAX_ENTRIES);
+    }
+
+    // Lazy. Nothing is read until the index is used.
+    private void load() {
+        if (mEntries != null) {
+            return;
+        }
+        mEntries = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > mMaxEntries;
+            }
+        };
+        if (!mFile.exists()) {
+            return;
+        }
+        try {
+            long validLength = readRecords();
+            if (validLength < mFile.length()) {
+                // A partial record from a crash. Cut it off.
+                RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+                try {
+                    raf.setLength(validLength);
+                } finally {
+                    raf.close();
+                }
+            }
+        } catch (IOException ioe) {
+            // Hmmm... not fatal. We'll re-insert some blocks.
+            System.err.println("ChkIndex: discarding unreadable index: " + mFile + ": " + ioe.getMessage());
+            mEntries.clear();
+            mRecordCount = 0;
+            mFile.delete();
+        }
+    }
+
+    // Returns the length of the valid part of the file.
+    private long readRecords() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a ChkIndex file.");
+            }
+            long validLength = HEADER_LEN;
+            while (true) {
+                byte[] digest = new byte[20];
+                String chk;
+                try {
+                    in.readFully(digest);
+                    int length = in.readUnsignedShort();
+                    byte[] chkBytes = new byte[length];
+                    in.readFully(chkBytes);
+                    chk = new String(chkBytes, IOUtil.UTF8);
+                    validLength += 20 + 2 + length;
+                } catch (EOFException eofe) {
+                    return validLength;
+                }
+                mEntries.put(new LinkDigest(digest).toString(), chk);
+                mRecordCount++;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, String hexDigest, String chk) throws IOException {
+        byte[] chkBytes = chk.getBytes(IOUtil.UTF8);
+        out.write(new LinkDigest(hexDigest).getBytes());
+        out.writeShort(chkBytes.length);
+        out.write(chkBytes);
+    }
+
+    private void append(String hexDigest, String chk) throws IOException {
+        boolean isNew = !mFile.exists() || mFile.length() == 0;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile, true)));
+        try {
+            if (isNew) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+            }
+            writeRecord(out, hexDigest, chk);
+        } finally {
+            out.close();
+        }
+        mRecordCount++;
+    }
+
+    // Rewrite the file with only the live entries, least recently used first.
+    private void compact() throws IOException {
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        boolean replaced = false;
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                for (Map.Entry<String, String> entry : mEntries.entrySet()) {
+                    writeRecord(out, entry.getKey(), entry.getValue());
+                }
+            } finally {
+                out.close();
+            }
+            if (!(tmpFile.renameTo(mFile) || (mFile.delete() && tmpFile.renameTo(mFile)))) {
+                throw new IOException("Couldn't replace: " + mFile);
+            }
+            replaced = true;
+        } finally {
+            if (!replaced) {
+                tmpFile.delete();
+            }
+        }
+        mRecordCount = mEntries.size();
+    }
+
+    ////////////////////////////////////////////////////////////
+    public synchronized String get(Object hexDigest) {
+        load();
+        return mEntries.get(hexDigest);
+    }
+
+    public synchronized boolean containsKey(Object hexDigest) {
+        load();
+        return mEntries.containsKey(hexDigest);
+    }
+
+    public synchronized String put(String hexDigest, String chk) {
+        if (hexDigest == null || chk == null) {
+            throw new IllegalArgumentException("null key or value");
+        }
+        load();
+        String previous = mEntries.put(hexDigest, chk);
+        if (chk.equals(previous) || mWriteFailed) {
+            return previous;
+        }
+        try {
+            if (mRecordCount >= 2 * mMaxEntries) {
+                compact();
+            } else {
+                append(hexDigest, chk);
+            }
+        } catch (IOException ioe) {
+            mWriteFailed = true;
+            System.err.println("ChkIndex: write failed, only keeping entries in memory: " +
+                               mFile + ": " + ioe.getMessage());
+        }
+        return previous;
+    }
+
+    public synchronized int size() {
+        load();
+        return mEntries.size();
+    }
+
+    // A snapshot. Changes to the index aren't reflected.
+    public synchronized Set<Map.Entry<String, String>> entrySet() {
+        load();
+        return Collections.unmodifiableMap(new LinkedHashMap<String, String>(mEntries)).entrySet();
+    }
+}
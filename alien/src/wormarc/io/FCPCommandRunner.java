@@ -25,8 +25,10 @@
 package wormarc.io;
 
 import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 
 import java.security.DigestInputStream;
@@ -66,9 +68,12 @@ public class FCPCommandRunner {
     private final static boolean DONT_COMPRESS = true;
     private final static String REAL_TIME_FIELD = "RealTimeFlag";
     private final static String REAL_TIME_VALUE = "true";
+    // Redundant copies of a block are inserted under different splitfile keys.
+    // The node silently ignores fields it doesn't know, so the name must be exact.
+    private final static String CRYPTO_KEY_FIELD = "OverrideSplitfileCryptoKey";
 
     // If a request takes longer than this it is assumed to have timed out.
-    private final static int FOREVER_MS = 1000 * 60 * 60;
+    final static int FOREVER_MS = 1000 * 60 * 60;
 
     private static PrintStream sDebugOut = System.err;
 
@@ -89,7 +94,9 @@ public class FCPCommandRunner {
         protected String mFcpId;
 
         protected boolean mDone = false;
+        protected boolean mAbandoned = false;
         protected String mFailureMsg = "";
+        protected long mStartMs;
 
         protected abstract void handleData(long length, InputStream data) throws IOException;
         protected abstract FcpMessage getStartMessage();
@@ -125,6 +132,12 @@ public class FCPCommandRunner {
             return mDone;
         }
 
+        // Data that arrives after this is dropped. Waits for data that is
+        // already being handled, so the caller can safely use what it wrote.
+        public synchronized void abandon() {
+            mAbandoned = true;
+        }
+
         public synchronized boolean succeeded() {
             if (!mDone) {
                 throw new IllegalStateException("Not finished.");
@@ -194,7 +207,13 @@ public class FCPCommandRunner {
             }
             String msg = "";
             try {
-                handleData(allData.getDataLength(), allData.getPayloadInputStream());
+                synchronized (this) {
+                    if (mAbandoned) {
+                        msg = "Abandoned.";
+                    } else {
+                        handleData(allData.getDataLength(), allData.getPayloadInputStream());
+                    }
+                }
             } catch (IOException ioe) {
                 msg = "Failed processing downloaded data: " + ioe.getMessage();;
             } finally {
@@ -276,10 +295,26 @@ public class FCPCommandRunner {
                 throw new IllegalArgumentException("data == null");
             }
 
-            DigestInputStream digestInput = IOUtil.getSha1DigestInputStream(data);
-            mBlock = mIO.readLinks(digestInput);
-            LinkDigest digest = new LinkDigest(digestInput.getMessageDigest().digest());
-            mHexDigest = digest.toString();
+            // INTENT: Never hold the whole block. Links are parsed straight
+            // off the socket into the LinkDataFactory, and the same bytes
+            // are copied into the BlockCache as they go by.
+            BlockCache.PendingBlock pending = mIO.startCachingBlock(mUri);
+            if (pending != null) {
+                data = new TeeInputStream(data, pending.getOutputStream());
+            }
+            try {
+                DigestInputStream digestInput = IOUtil.getSha1DigestInputStream(data);
+                mBlock = mIO.readLinks(digestInput);
+                LinkDigest digest = new LinkDigest(digestInput.getMessageDigest().digest());
+                mHexDigest = digest.toString();
+                if (pending != null) {
+                    mIO.finishCachingBlock(pending, mHexDigest);
+                }
+            } finally {
+                if (pending != null) {
+                    pending.abort(); // Does nothing if it was committed.
+                }
+            }
         }
 
         protected FcpMessage getStartMessage() {
@@ -301,40 +336,81 @@ public class FCPCommandRunner {
         public String getHexDigest() { return mHexDigest; }
     }
 
-    static class PutBlock extends Command { // DCI: sleazy. How does stream get closed in failure cases?
+    // Copies everything read from the stream to out.
+    static class TeeInputStream extends FilterInputStream {
+        private final OutputStream mOut;
+
+        TeeInputStream(InputStream in, OutputStream out) {
+            super(in);
+            mOut = out;
+        }
+
+        public int read() throws IOException {
+            int value = in.read();
+            if (value != -1) {
+                mOut.write(value);
+            }
+            return value;
+        }
+
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count = in.read(buffer, offset, length);
+            if (count > 0) {
+                mOut.write(buffer, offset, count);
+            }
+            return count;
+        }
+
+        // Skipped bytes would be missing from the copy.
+        public long skip(long count) throws IOException {
+            long skipped = 0;
+            while (skipped < count && read() != -1) {
+                skipped++;
+            }
+            return skipped;
+        }
+
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    static class PutBlock extends Command {
         private long mLength;
-        private DigestInputStream mData;
+        // Released once it has been handed to the start message.
+        private byte[] mData;
         private String mHexDigest;
+        // null means let the node pick.
+        private String mCryptoKey;
 
-        public PutBlock(String name, long length, InputStream data, FCPCommandRunner runner) throws IOException {
+        // hexDigest is the SHA1 of data, from HistoryLinkMap.writeBinaryRep().
+        public PutBlock(String name, byte[] data, String hexDigest, String cryptoKey,
+                        FCPCommandRunner runner) {
             super(name, "CHK@", runner);
-            mLength = length;
-            mData = IOUtil.getSha1DigestInputStream(data);
+            mLength = data.length;
+            mData = data;
+            mHexDigest = hexDigest;
+            mCryptoKey = cryptoKey;
         }
 
         protected void handleData(long length, InputStream data) throws IOException {
             handleDone("Not expecting AllData");
         }
 
-	public void receivedPutSuccessful(FcpConnection fcpConnection, PutSuccessful putSuccessful) {
-            // BUG: DCI: why  does it hash "" when chk cache is disabled for re-insert.
-            // is this a race condition???
-            LinkDigest digest = new LinkDigest(mData.getMessageDigest().digest());
-            mHexDigest = digest.toString();
-
-            // Order important. This posts handleDone.
-            super.receivedPutSuccessful(fcpConnection, putSuccessful);
-        }
-
         protected FcpMessage getStartMessage() {
             ClientPut msg = new ClientPut(mUri, mFcpId);
             msg.setDataLength(mLength);
-            msg.setPayloadInputStream(mData);
+            msg.setPayloadInputStream(new ByteArrayInputStream(mData));
             msg.setVerbosity(VERBOSITY);
             msg.setDontCompress(DONT_COMPRESS);
             msg.setPriority(PRIORITY);
             msg.setMaxRetries(MAX_RETRIES);
             msg.setField(REAL_TIME_FIELD, REAL_TIME_VALUE);
+            if (mCryptoKey != null) {
+                msg.setField(CRYPTO_KEY_FIELD, mCryptoKey);
+            }
+            // Only start() sends it, so the block can be GC'd once it's on the wire.
+            mData = null;
             return msg;
         }
         public long getLength() { return mLength; }
@@ -473,6 +549,9 @@ public class FCPCommandRunner {
     ////////////////////////////////////////////////////////////
     private List<Command> mPending = new ArrayList<Command>();
     private FcpConnection mConnection;
+    // null if the runner owns its connection.
+    private FCPConnectionPool mPool;
+    private boolean mDisconnected;
 
     public FCPCommandRunner(String host, int port, String clientName)
         throws IOException, InterruptedException  {
@@ -482,8 +561,37 @@ public class FCPCommandRunner {
         waitUntilAllFinished();
     }
 
+    // Borrows an already hello'd connection. disconnect() gives it back.
+    public FCPCommandRunner(FCPConnectionPool pool) throws IOException {
+        mPool = pool;
+        mConnection = pool.acquire();
+    }
+
     public synchronized void disconnect() {
-        mConnection.disconnect();
+        if (mDisconnected) {
+            return;
+        }
+        mDisconnected = true;
+        if (mPool == null) {
+            mConnection.disconnect();
+            return;
+        }
+        // Don't pool a connection the node may still send messages on.
+        mPool.release(mConnection, mPending.isEmpty());
+    }
+
+    // e.g. "get_block_3" -> "get_block"
+    static String commandKind(String name) {
+        int pos = name.lastIndexOf('_');
+        if (pos > 0 && pos < name.length() - 1) {
+            for (int index = pos + 1; index < name.length(); index++) {
+                if (!Character.isDigit(name.charAt(index))) {
+                    return name;
+                }
+            }
+            return name.substring(0, pos);
+        }
+        return name;
     }
 
     protected synchronized HelloCommand sendClientHello(String clientName) throws IOException  {
@@ -499,11 +607,18 @@ public class FCPCommandRunner {
         return cmd;
     }
 
-    public synchronized PutBlock sendPutBlock(int ordinal, HistoryLinkMap linkMap, Block block) throws IOException  {
+    public synchronized PutBlock sendPutBlock(int ordinal, byte[] data, String hexDigest) throws IOException  {
         PutBlock cmd = new PutBlock(String.format("put_block_%d", ordinal),
-                                    linkMap.getLength(block),  // Hmmm... Expensive?
-                                    linkMap.getBinaryRep(block),
-                                    this);
+                                    data, hexDigest, null, this);
+        start(cmd);
+        return cmd;
+    }
+
+    // Inserts another copy of the block. cryptoKey is 64 hex digits.
+    public synchronized PutBlock sendPutBlockCopy(int ordinal, byte[] data, String hexDigest,
+                                                  String cryptoKey) throws IOException  {
+        PutBlock cmd = new PutBlock(String.format("put_block_copy_%d", ordinal),
+                                    data, hexDigest, cryptoKey, this);
         start(cmd);
         return cmd;
     }
@@ -556,12 +671,20 @@ public class FCPCommandRunner {
         waitUntilAllFinished(FOREVER_MS);
     }
 
+    // Returns when any command finishes, or after timeoutMs.
+    public synchronized void waitForAnyFinished(int timeoutMs) throws InterruptedException {
+        if (mPending.size() > 0) {
+            wait(timeoutMs);
+        }
+    }
+
     protected synchronized void start(Command cmd) throws IOException {
         if (mPending.contains(cmd)) {
             throw new IllegalStateException("Command already started!");
         }
         mPending.add(cmd);
         mConnection.addFcpListener(cmd);
+        cmd.mStartMs = System.currentTimeMillis();
         boolean raised = true;
         try {
             debug("Starting: " + cmd.mName);
@@ -583,7 +706,12 @@ public class FCPCommandRunner {
             if (!mPending.contains(cmd)) {
                 return;
             }
-            debug("Finished: " + cmd.mName + (cmd.mFailureMsg.equals("") ? ": SUCCEEDED" : ": FAILED: " + cmd.mFailureMsg));
+            long latencyMs = System.currentTimeMillis() - cmd.mStartMs;
+            debug("Finished: " + cmd.mName + (cmd.mFailureMsg.equals("") ? ": SUCCEEDED" : ": FAILED: " + cmd.mFailureMsg) +
+                  String.format(" (%d ms)", latencyMs));
+            if (mPool != null) {
+                mPool.recordLatency(commandKind(cmd.mName), latencyMs);
+            }
             mPending.remove(cmd);
             mConnection.removeFcpListener(cmd);
             notifyAll();
@@ -0,0 +1,319 @@
+/* A pool of connected, hello'd FCP connections shared between requests.
+ *
+ *  Copyright (C) 2010, 2011 Darrell Karbott
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.0 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ *  Author: djk@isFiaD04zgAgnrEC5XJt1i4IE7AkNPqhBG5bONi6Yks
+ *
+ *  This file was developed as component of
+ * "fniki" (a wiki implementation running over Freenet).
+ */
+
+package wormarc.io;
+
+import java.io.IOException;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+
+import net.pterodactylus.fcp.ClientHello;
+import net.pterodactylus.fcp.CloseConnectionDuplicateClientName;
+import net.pterodactylus.fcp.FcpAdapter;
+import net.pterodactylus.fcp.FcpConnection;
+import net.pterodactylus.fcp.NodeHello;
+import net.pterodactylus.fcp.ProtocolError;
+
+import wormarc.IOUtil;
+
+// INTENT: Pay for the TCP connect, ClientHello and handler thread once,
+// not on every wiki action.
+//
+// Each user leases a whole connection with acquire() and hands it back
+// with release(). Requests are multiplexed over it by FCP Identifier, so
+// one lease can run many requests at once. Concurrent users get their own
+// connections, so one user's waitUntilAllFinished() never waits on
+// another's requests.
+//
+// Connections that the node closed, or that were released with requests
+// still in flight, are dropped and transparently replaced by the next
+// acquire().
+public class FCPConnectionPool {
+    private final static int DEFAULT_MAX_IDLE = 4;
+    // Idle connections are closed after this long. They each hold a thread.
+    private final static long MAX_IDLE_MS = 60 * 1000;
+    private final static long HELLO_TIMEOUT_MS = 30 * 1000;
+
+    // Tracks a single connection's health.
+    private final static class Entry extends FcpAdapter {
+        final FcpConnection mConnection;
+        boolean mHelloDone;
+        String mFailureMsg;
+        boolean mClosed;
+        long mIdleSinceMs;
+
+        Entry(FcpConnection connection) {
+            mConnection = connection;
+        }
+
+        synchronized boolean isClosed() { return mClosed; }
+
+        private synchronized void helloDone(String failureMsg) {
+            if (!mHelloDone) {
+                mHelloDone = true;
+                mFailureMsg = failureMsg;
+            }
+            notifyAll();
+        }
+
+        synchronized void waitForHello(long timeoutMs) throws IOException {
+            long maxTimeMs = System.currentTimeMillis() + timeoutMs;
+            try {
+                while (!mHelloDone) {
+                    long remainingMs = maxTimeMs - System.currentTimeMillis();
+                    if (remainingMs <= 0) {
+                        throw new IOException("Timed out waiting for NodeHello.");
+                    }
+                    wait(remainingMs);
+                }
+            } catch (InterruptedException ie) {
+                throw new IOException("Interrupted waiting for NodeHello.", ie);
+            }
+            if (mFailureMsg != null) {
+                throw new IOException(mFailureMsg);
+            }
+        }
+
+        public void receivedNodeHello(FcpConnection fcpConnection, NodeHello nodeHello) {
+            helloDone(null);
+        }
+
+        public void
+            receivedCloseConnectionDuplicateClientName(FcpConnection fcpConnection,
+                                                       CloseConnectionDuplicateClientName
+                                                       closeConnectionDuplicateClientName) {
+            helloDone("Duplicate Connection");
+        }
+
+        public void receivedProtocolError(FcpConnection fcpConnection, ProtocolError protocolError) {
+            if (protocolError.getIdentifier() == null) {
+                helloDone(String.format("Protocol Error[%d]: %s",
+                                        protocolError.getCode(),
+                                        protocolError.getCodeDescription()));
+            }
+        }
+
+        public void connectionClosed(FcpConnection fcpConnection, Throwable throwable) {
+            synchronized (this) {
+                mClosed = true;
+            }
+            helloDone("Connection Closed");
+        }
+    }
+
+    // Per request kind latency totals.
+    public final static class Latency {
+        public final int mCount;
+        public final long mTotalMs;
+        public final long mMaxMs;
+
+        Latency(int count, long totalMs, long maxMs) {
+            mCount = count;
+            mTotalMs = totalMs;
+            mMaxMs = maxMs;
+        }
+
+        Latency add(long ms) {
+            return new Latency(mCount + 1, mTotalMs + ms, Math.max(mMaxMs, ms));
+        }
+
+        public long getAverageMs() { return mCount == 0 ? 0 : mTotalMs / mCount; }
+
+        public String toString() {
+            return String.format("%d requests, avg %d ms, max %d ms", mCount, getAverageMs(), mMaxMs);
+        }
+    }
+
+    private final String mHost;
+    private final int mPort;
+    private final String mClientName;
+    private final int mMaxIdle;
+
+    // Most recently used last.
+    private final LinkedList<Entry> mIdle = new LinkedList<Entry>();
+    private final Map<FcpConnection, Entry> mLeased = new HashMap<FcpConnection, Entry>();
+    private final Map<String, Latency> mLatency = new TreeMap<String, Latency>();
+    private int mConnectCount;
+    private int mReuseCount;
+    private boolean mClosed;
+    private Timer mReaper;
+
+    public FCPConnectionPool(String host, int port, String clientName, int maxIdle) {
+        if (maxIdle < 0) {
+            throw new IllegalArgumentException("maxIdle < 0");
+        }
+        mHost = host;
+        mPort = port;
+        mClientName = clientName;
+        mMaxIdle = maxIdle;
+    }
+
+    public FCPConnectionPool(String host, int port, String clientName) {
+        this(host, port, clientName, DEFAULT_MAX_IDLE);
+    }
+
+    public String getHost() { return mHost; }
+    public int getPort() { return mPort; }
+
+    private Entry connect() throws IOException {
+        FcpConnection connection = new FcpConnection(mHost, mPort);
+        Entry entry = new Entry(connection);
+        connection.addFcpListener(entry);
+        boolean raised = true;
+        try {
+            connection.connect();
+            // The node refuses a second connection with the same name.
+            connection.sendMessage(new ClientHello(mClientName + IOUtil.randomHexString(12)));
+            entry.waitForHello(HELLO_TIMEOUT_MS);
+            raised = false;
+            return entry;
+        } finally {
+            if (raised) {
+                connection.close();
+            }
+        }
+    }
+
+    // Returns a connected connection that has already seen NodeHello.
+    // The caller owns it until it calls release().
+    public FcpConnection acquire() throws IOException {
+        synchronized (this) {
+            if (mClosed) {
+                throw new IOException("FCP connection pool is closed.");
+            }
+            while (!mIdle.isEmpty()) {
+                Entry entry = mIdle.removeLast();
+                if (entry.isClosed()) {
+                    entry.mConnection.close();
+                    continue;
+                }
+                mLeased.put(entry.mConnection, entry);
+                mReuseCount++;
+                return entry.mConnection;
+            }
+        }
+
+        // Slow. Don't hold the lock.
+        Entry entry = connect();
+        synchronized (this) {
+            mLeased.put(entry.mConnection, entry);
+            mConnectCount++;
+        }
+        return entry.mConnection;
+    }
+
+    // Pass reusable == false if requests may still be running on the
+    // connection, e.g. after a timeout. It is closed instead of pooled.
+    public void release(FcpConnection connection, boolean reusable) {
+        synchronized (this) {
+            Entry entry = mLeased.remove(connection);
+            if (entry != null && reusable && !entry.isClosed() &&
+                !mClosed && mIdle.size() < mMaxIdle) {
+                entry.mIdleSinceMs = System.currentTimeMillis();
+                mIdle.addLast(entry);
+                startReaper();
+                return;
+            }
+        }
+        connection.close();
+    }
+
+    public synchronized void recordLatency(String kind, long ms) {
+        Latency latency = mLatency.get(kind);
+        mLatency.put(kind, (latency == null ? new Latency(0, 0, 0) : latency).add(ms));
+    }
+
+    public synchronized Map<String, Latency> getLatencies() {
+        return new TreeMap<String, Latency>(mLatency);
+    }
+
+    public synchronized String getStats() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("FCP connections: %d opened, %d reused, %d idle, %d in use\n",
+                                mConnectCount, mReuseCount, mIdle.size(), mLeased.size()));
+        for (Map.Entry<String, Latency> entry : mLatency.entrySet()) {
+            sb.append(String.format("%s: %s\n", entry.getKey(), entry.getValue()));
+        }
+        return sb.toString();
+    }
+
+    // Closes idle connections. Leased ones are closed when released.
+    public void close() {
+        LinkedList<Entry> victims;
+        synchronized (this) {
+            mClosed = true;
+            victims = new LinkedList<Entry>(mIdle);
+            mIdle.clear();
+            if (mReaper != null) {
+                mReaper.cancel();
+                mReaper = null;
+            }
+        }
+        for (Entry entry : victims) {
+            entry.mConnection.close();
+        }
+    }
+
+    ////////////////////////////////////////////////////////////
+    private synchronized void startReaper() {
+        if (mReaper != null) {
+            return;
+        }
+        // Daemon, so it never keeps the VM up.
+        mReaper = new Timer("FCPConnectionPool reaper", true);
+        mReaper.schedule(new TimerTask() {
+                public void run() {
+                    reapIdle();
+                }
+            }, MAX_IDLE_MS / 2, MAX_IDLE_MS / 2);
+    }
+
+    private void reapIdle() {
+        LinkedList<Entry> victims = new LinkedList<Entry>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            Iterator<Entry> itr = mIdle.iterator();
+            while (itr.hasNext()) {
+                Entry entry = itr.next();
+                if (entry.isClosed() || now - entry.mIdleSinceMs > MAX_IDLE_MS) {
+                    itr.remove();
+                    victims.add(entry);
+                }
+            }
+            if (mIdle.isEmpty() && mReaper != null) {
+                mReaper.cancel();
+                mReaper = null;
+            }
+        }
+        for (Entry entry : victims) {
+            entry.mConnection.close();
+        }
+    }
+}
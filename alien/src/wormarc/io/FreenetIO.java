@@ -24,17 +24,31 @@
 
 package wormarc.io;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import wormarc.Archive;
 import wormarc.ArchiveResolver;
@@ -52,23 +66,47 @@ import wormarc.RootObjectKind;
 public class FreenetIO implements Archive.IO, ArchiveResolver {
     // Note: grok code. This is not used pervasively.
     public static int FCP_TIMEOUT_MS = 60 * 10 * 1000;
+    public final static int DEFAULT_HEDGE_DELAY_MS = 30 * 1000;
+    private final static String CHK_SEPARATOR = " ";
 
     private LinkCache mCache;
     // Final on purpose. Look at sleazy threading code before making non-final!
     private final Map<String, String> mSha1ToChk;
     private boolean mIgnoreChkCache;
 
+    // Storage for links in archives this class loads itself. null means RAM.
+    private LinkDataFactorySource mLinkDataFactorySource;
+
     // Transient
     private HistoryLinkMap mLinkMap;
     private LinkDataFactory mLinkDataFactory;
+    // Set once read() sends a GetBlock. After that only the FCP listener thread may touch mLinkMap.
+    private boolean mFetchingBlocks;
 
     private String mHost;
     private int mPort;
     private String mClientName = "FreenetIO_";
+    // Optional. Shared connections instead of a new one per operation.
+    private FCPConnectionPool mPool;
+    // Optional. Checked before requesting blocks in read().
+    private BlockCache mBlockCache;
+    // Archives we already hold. read() reuses their blocks instead of fetching them.
+    private final List<Archive> mLocalArchives = new ArrayList<Archive>();
+    // The last archive resolve() loaded. Usually shares blocks with the next one.
+    private Archive mLastResolved;
+    // Block -> hex SHA1 of its binary rep. Only blocks of local archives.
+    private final Map<Block, String> mLocalBlockDigests = new IdentityHashMap<Block, String>();
+
+    // CHKs to insert per block. Copies that don't fit in the top key are dropped.
+    private int mRedundancy = 1;
+    // How long read() waits on a block before also requesting its next CHK.
+    private int mHedgeDelayMs = DEFAULT_HEDGE_DELAY_MS;
 
     private int mMaxBlockLength = 8 * 1024 * 1024;
     private int mMaxBlockCount = 4;
 
+    private InsertProgress mInsertProgress;
+
     private String mInsertUri;
     private String mRequestUri;
 
@@ -109,11 +147,138 @@ public class FreenetIO implements Archive.IO, ArchiveResolver {
         }
     }
 
+    // The pool's host and port are used instead of the ones passed to the constructor.
+    public void setConnectionPool(FCPConnectionPool pool) {
+        mPool = pool;
+    }
+
+    public void setBlockCache(BlockCache cache) {
+        mBlockCache = cache;
+    }
+
+    // read() uses the sha1 -> CHK table to find blocks of these archives
+    // that are listed in the top key. Those blocks aren't fetched.
+    public void addLocalArchive(Archive archive) {
+        if (archive != null) {
+            mLocalArchives.add(archive);
+        }
+    }
+
+    private FCPCommandRunner makeRunner() throws IOException, InterruptedException {
+        if (mPool != null) {
+            return new FCPCommandRunner(mPool);
+        }
+        return new FCPCommandRunner(mHost, mPort,
+                                    mClientName +
+                                    IOUtil.randomHexString(12));
+    }
+
+    public void setRedundancy(int copies) {
+        if (copies < 1) {
+            throw new IllegalArgumentException("copies < 1");
+        }
+        mRedundancy = copies;
+    }
+
+    public void setHedgeDelayMs(int delayMs) {
+        mHedgeDelayMs = delayMs;
+    }
+
     // Forces insert of all CHKs when set true.
     public void setIgnoreChkCache(boolean value) {
         mIgnoreChkCache = value;
     }
 
+    // Called once per archive resolve() loads, so each archive's link
+    // storage goes away with it. Archive.read() passes its own factory.
+    public interface LinkDataFactorySource {
+        LinkDataFactory makeLinkDataFactory();
+    }
+
+    // Used by loadBlock() and resolve().
+    public void setLinkDataFactorySource(LinkDataFactorySource source) {
+        mLinkDataFactorySource = source;
+    }
+
+    private LinkDataFactory getLinkDataFactory() {
+        if (mLinkDataFactorySource == null) {
+            return new RamLinkDataFactory();
+        }
+        return mLinkDataFactorySource.makeLinkDataFactory();
+    }
+
+    // Updated by write(), so another thread can show how the insert is going.
+    public final static class InsertProgress {
+        private int mBlockCount;
+        private int mSkippedCount;
+        private int mSentCount;
+        private int mInsertedCount;
+        private long mBytesToInsert;
+        private long mBytesSent;
+        private long mBytesInserted;
+        private long mStartMs;
+        private long mEndMs;
+
+        synchronized void started(int blockCount, long totalBytes) {
+            mBlockCount = blockCount;
+            mSkippedCount = 0;
+            mSentCount = 0;
+            mInsertedCount = 0;
+            mBytesToInsert = totalBytes;
+            mBytesSent = 0;
+            mBytesInserted = 0;
+            mStartMs = System.currentTimeMillis();
+            mEndMs = 0;
+        }
+
+        // Already in Freenet.
+        synchronized void blockSkipped(long length) {
+            mSkippedCount++;
+            mBytesToInsert -= length;
+        }
+
+        // Handed to the node.
+        synchronized void blockSent(long length) {
+            mSentCount++;
+            mBytesSent += length;
+        }
+
+        synchronized void blockInserted(long length) {
+            mInsertedCount++;
+            mBytesInserted += length;
+        }
+
+        synchronized void finished() {
+            mEndMs = System.currentTimeMillis();
+        }
+
+        public synchronized boolean isFinished() { return mEndMs != 0; }
+
+        // Of the first copy of each block, from the start of the insert.
+        public synchronized long getBytesPerSecond() {
+            if (mStartMs == 0) {
+                return 0;
+            }
+            long elapsedMs = Math.max(1, (mEndMs == 0 ? System.currentTimeMillis() : mEndMs) - mStartMs);
+            return mBytesInserted * 1000 / elapsedMs;
+        }
+
+        public synchronized String toString() {
+            if (mStartMs == 0) {
+                return "Preparing the archive...";
+            }
+            boolean insertingTopKey = !isFinished() &&
+                mSentCount + mSkippedCount == mBlockCount && mInsertedCount == mSentCount;
+            return String.format("Blocks: %d inserted, %d sent, %d already in Freenet, of %d.\n" +
+                                 "Bytes: %d inserted, %d sent, of %d. %d bytes/sec.%s",
+                                 mInsertedCount, mSentCount, mSkippedCount, mBlockCount,
+                                 mBytesInserted, mBytesSent, mBytesToInsert, getBytesPerSecond(),
+                                 insertingTopKey ? " Inserting the top key..." : "");
+        }
+    }
+
+    public void setInsertProgress(InsertProgress progress) { mInsertProgress = progress; }
+
     public String getInsertUri() { return mInsertUri; }
     public void setInsertUri(String uri) { mInsertUri = uri; }
 
@@ -123,9 +288,7 @@ public class FreenetIO implements Archive.IO, ArchiveResolver {
     public FreenetTopKey readTopKey(String uri,  int timeoutMs) throws IOException {
         FCPCommandRunner runner = null;
         try {
-            runner = new FCPCommandRunner(mHost, mPort,
-                                          mClientName +
-                                          IOUtil.randomHexString(12));
+            runner = makeRunner();
             FCPCommandRunner.GetTopKey requestTopKey =
                 runner.sendGetTopKey(uri);
 
@@ -144,13 +307,11 @@ public class FreenetIO implements Archive.IO, ArchiveResolver {
 
     public void loadBlock(String uri,  int timeoutMs) throws IOException {
         mLinkMap = new HistoryLinkMap();
-        mLinkDataFactory = new RamLinkDataFactory();
+        mLinkDataFactory = getLinkDataFactory();
 
         FCPCommandRunner runner = null;
         try {
-            runner = new FCPCommandRunner(mHost, mPort,
-                                          mClientName +
-                                          IOUtil.randomHexString(12));
+            runner = makeRunner();
             FCPCommandRunner.GetBlock get = runner.sendGetBlock(uri, -1 /* don't check length */,
                                                                 0, this);
             runner.waitUntilAllFinished(timeoutMs);
@@ -192,9 +353,7 @@ public class FreenetIO implements Archive.IO, ArchiveResolver {
     public String invertPrivateSSK(String privateSSKKey, int timeoutMs) throws IOException {
         FCPCommandRunner runner = null;
         try {
-            runner = new FCPCommandRunner(mHost, mPort,
-                                          mClientName +
-                                          IOUtil.randomHexString(12));
+            runner = makeRunner();
 
             FCPCommandRunner.InvertPrivateKey invert = runner.sendInvertPrivateKey(privateSSKKey);
             runner.waitUntilAllFinished(timeoutMs);
@@ -209,48 +368,139 @@ public class FreenetIO implements Archive.IO, ArchiveResolver {
         }
     }
 
-    // DCI: BUG: redundant inserts are not supported yet. False assumption Block <-> CHK
+    ////////////////////////////////////////////////////////////
+    // Pipelined insert.
+
+    // Shared by all FreenetIOs. Daemon thread, so it never keeps the VM up.
+    private static ExecutorService sSerializer;
+
+    private static synchronized ExecutorService getSerializer() {
+        if (sSerializer == null) {
+            sSerializer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "FreenetIO block serializer");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        }
+        return sSerializer;
+    }
+
+    // Serializes a block, memoizing its digest and length on the way.
+    private final static class SerializedBlock implements Callable<SerializedBlock> {
+        final HistoryLinkMap mLinkMap;
+        final Block mBlock;
+        byte[] mData;
+
+        SerializedBlock(HistoryLinkMap linkMap, Block block) {
+            mLinkMap = linkMap;
+            mBlock = block;
+        }
+
+        public SerializedBlock call() throws IOException {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream((int)mLinkMap.getLength(mBlock));
+            mLinkMap.writeBinaryRep(mBlock, buffer);
+            mData = buffer.toByteArray();
+            return this;
+        }
+    }
+
+    // Returns null past the last block.
+    private static Future<SerializedBlock> serializeLater(HistoryLinkMap linkMap, List<Block> blocks, int index) {
+        if (index >= blocks.size()) {
+            return null;
+        }
+        return getSerializer().submit(new SerializedBlock(linkMap, blocks.get(index)));
+    }
+
+    private static SerializedBlock getSerialized(Future<SerializedBlock> future)
+        throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
     // Updates the request URI on success.
+    // INTENT: Block N + 1 is serialized and hashed while block N is sent to
+    // the node. Each block is serialized exactly once, for every copy.
     public void write(HistoryLinkMap linkMap, List<Block> blocks, List<Archive.RootObject> rootObjects) throws IOException {
         if (mInsertUri == null) {
             throw new IllegalStateException("Set the uri!");
         }
 
+        InsertProgress progress = mInsertProgress == null ? new InsertProgress() : mInsertProgress;
+        long totalBytes = 0;
+        for (Block block : blocks) {
+            totalBytes += linkMap.getLength(block);
+        }
+        progress.started(blocks.size(), totalBytes);
+
         // DCI: fail early for inserts that are too big.
         FCPCommandRunner runner = null;
+        Future<SerializedBlock> next = null;
         try {
-            runner = new FCPCommandRunner(mHost, mPort,
-                                          mClientName +
-                                          IOUtil.randomHexString(12));
-
-            // Contains full descriptions for blocks that are known
-            // to exist in Freenet.
-            List<FreenetTopKey.BlockDescription> descriptions =
-                precomputeDescriptions(linkMap, blocks);
-
-            if (blocks.size() != descriptions.size()) {
-                throw new RuntimeException("Assertion Failure: blocks.size() != descriptions.size()");
-            }
+            runner = makeRunner();
 
+            // Full descriptions for blocks that are known to exist in Freenet,
+            // null for the ones being inserted.
+            List<FreenetTopKey.BlockDescription> descriptions = new ArrayList<FreenetTopKey.BlockDescription>();
             List<FCPCommandRunner.PutBlock> puts = new ArrayList<FCPCommandRunner.PutBlock>();
-            for (int index = 0; index < descriptions.size(); index++) {
-                FreenetTopKey.BlockDescription desc = descriptions.get(index);
-                if (desc != null) {
+            // Parallel to puts. The redundant copies of each block.
+            List<List<FCPCommandRunner.PutBlock>> copies = new ArrayList<List<FCPCommandRunner.PutBlock>>();
+
+            next = serializeLater(linkMap, blocks, 0);
+            for (int index = 0; index < blocks.size(); index++) {
+                SerializedBlock serialized = getSerialized(next);
+                next = serializeLater(linkMap, blocks, index + 1);
+
+                String hexDigest = linkMap.getHexDigest(serialized.mBlock); // Memoized by call().
+                // hmmmm... wonky. Reinserting ignores the cache.
+                String chk = mIgnoreChkCache ? null : getCachedChk(hexDigest);
+                if (chk != null) {
                     // i.e. the block was already inserted, so skip it, but add a place holder.
+                    descriptions.add(FreenetTopKey.makeDescription(serialized.mData.length,
+                                                                   Arrays.asList(chk.split(CHK_SEPARATOR))));
                     puts.add(null);
+                    copies.add(null);
+                    progress.blockSkipped(serialized.mData.length);
                     continue;
                 }
                 // Need to insert the block.
-                puts.add(runner.sendPutBlock(index, linkMap, blocks.get(index)));
+                descriptions.add(null);
+                puts.add(runner.sendPutBlock(index, serialized.mData, hexDigest));
+                copies.add(sendPutBlockCopies(runner, index, serialized.mData, hexDigest));
+                progress.blockSent(serialized.mData.length);
             }
 
-            runner.waitUntilAllFinished();
+            waitForPuts(runner, puts, progress);
 
             int pos = 0;
             for (FCPCommandRunner.PutBlock put : puts) {
                 if (put != null) {
                     put.raiseOnFailure();
-                    List<String> chks = Arrays.asList(put.getUri());
+                    List<String> chks = new ArrayList<String>();
+                    chks.add(put.getUri());
+                    for (FCPCommandRunner.PutBlock copy : copies.get(pos)) {
+                        // Not fatal. The block is still there under the first CHK.
+                        if (!copy.succeeded()) {
+                            debug("Skipping failed redundant insert: " + copy.mName);
+                            continue;
+                        }
+                        // Blocks too small to be split come back with the same CHK.
+                        if (!chks.contains(copy.getUri())) {
+                            chks.add(copy.getUri());
+                        }
+                    }
                     descriptions.set(pos,
                                      FreenetTopKey.makeDescription(put.getLength(),
                                                                    chks));
@@ -258,34 +508,133 @@ public class FreenetIO implements Archive.IO, ArchiveResolver {
                 pos++;
             }
 
+            FreenetTopKey topKey = makeTopKey(rootObjects, descriptions);
+            raiseOnSuspectTopKey(topKey); // Fails, but too late!
+
             // Hmmm... really should only update the block sha1 -> CHK cache after full success.
+            pos = 0;
             for (FCPCommandRunner.PutBlock put : puts) {
                 if (put != null) {
-                    cacheBlockChk(put.getHexDigest(), put.getUri());
+                    cacheBlockChk(put.getHexDigest(), getCHKs(topKey.mBlockDescriptions.get(pos)));
                 }
+                pos++;
             }
 
-            FreenetTopKey topKey = new FreenetTopKey(rootObjects, descriptions);
-            raiseOnSuspectTopKey(topKey); // Fails, but too late!
-
             FCPCommandRunner.PutTopKey putTopKey =
                 runner.sendPutTopKey(mInsertUri, topKey);
 
             runner.waitUntilAllFinished();
             putTopKey.raiseOnFailure();
             mRequestUri = putTopKey.getUri();
+            progress.finished();
 
         } catch (InterruptedException ie) {
             throw new IOException("Write timed out.", ie);
         } catch (IllegalBase64Exception ibe) {
             throw new IOException("Binary URI decode failed", ibe);
         } finally {
+            if (next != null) {
+                next.cancel(true);
+            }
             if (runner != null) {
                 runner.disconnect();
             }
         }
     }
 
+    // Like runner.waitUntilAllFinished(), but counts blocks as they finish.
+    private static void waitForPuts(FCPCommandRunner runner, List<FCPCommandRunner.PutBlock> puts,
+                                    InsertProgress progress) throws InterruptedException {
+        long maxTimeMs = System.currentTimeMillis() + FCPCommandRunner.FOREVER_MS;
+        Set<FCPCommandRunner.PutBlock> counted = new HashSet<FCPCommandRunner.PutBlock>();
+        while (true) {
+            boolean done = true;
+            for (FCPCommandRunner.PutBlock put : puts) {
+                if (put == null || counted.contains(put)) {
+                    continue;
+                }
+                if (!put.finished()) {
+                    done = false;
+                    continue;
+                }
+                counted.add(put);
+                progress.blockInserted(put.getLength());
+            }
+            if (done) {
+                break;
+            }
+            if (System.currentTimeMillis() > maxTimeMs) {
+                throw new InterruptedException("Timed out before all blocks were inserted.");
+            }
+            runner.waitForAnyFinished(250);
+        }
+        // The redundant copies.
+        runner.waitUntilAllFinished();
+    }
+
+    // Empty when mRedundancy is 1.
+    // INTENT: The keys depend only on the block, so re-inserting it heals the same CHKs.
+    private List<FCPCommandRunner.PutBlock> sendPutBlockCopies(FCPCommandRunner runner, int ordinal,
+                                                               byte[] data, String hexDigest)
+        throws IOException {
+        List<FCPCommandRunner.PutBlock> copies = new ArrayList<FCPCommandRunner.PutBlock>();
+        for (int copy = 1; copy < mRedundancy; copy++) {
+            copies.add(runner.sendPutBlockCopy(ordinal, data, hexDigest,
+                                               makeCryptoKey(hexDigest, copy)));
+        }
+        return copies;
+    }
+
+    private static String makeCryptoKey(String hexDigest, int copy) {
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            byte[] key = sha256.digest((hexDigest + ":" + copy).getBytes(IOUtil.UTF8));
+            StringBuilder hex = new StringBuilder();
+            for (byte value : key) {
+                hex.append(String.format("%02x", value & 0xff));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new RuntimeException("Assertion Failure: No SHA-256?", nsae);
+        } catch (UnsupportedEncodingException uee) {
+            throw new RuntimeException("Assertion Failure: No UTF-8?", uee);
+        }
+    }
+
+    // Drops redundant CHKs, from the blocks with the most first, until the top key fits.
+    private static FreenetTopKey makeTopKey(List<Archive.RootObject> rootObjects,
+                                            List<FreenetTopKey.BlockDescription> descriptions)
+        throws IOException {
+        while (true) {
+            FreenetTopKey topKey = new FreenetTopKey(rootObjects, descriptions);
+            if (topKey.getEncodedLength() <= FreenetTopKey.MAX_LENGTH) {
+                return topKey;
+            }
+            int widest = -1;
+            for (int index = 0; index < descriptions.size(); index++) {
+                int count = descriptions.get(index).mCHKs.size();
+                if (count > 1 && (widest == -1 || count > descriptions.get(widest).mCHKs.size())) {
+                    widest = index;
+                }
+            }
+            if (widest == -1) {
+                return topKey; // Let raiseOnSuspectTopKey() fail it.
+            }
+            FreenetTopKey.BlockDescription desc = descriptions.get(widest);
+            descriptions.set(widest,
+                             new FreenetTopKey.BlockDescription(desc.mLength,
+                                                                desc.mCHKs.subList(0, desc.mCHKs.size() - 1)));
+        }
+    }
+
+    private static List<String> getCHKs(FreenetTopKey.BlockDescription desc) throws IllegalBase64Exception {
+        List<String> chks = new ArrayList<String>();
+        for (int index = 0; index < desc.mCHKs.size(); index++) {
+            chks.add(desc.getCHK(index));
+        }
+        return chks;
+    }
+
     private void raiseOnSuspectTopKey(FreenetTopKey topKey) throws IOException {
         if (topKey.mBlockDescriptions.size() > mMaxBlockCount) {
             throw new IOException(String.format("To many blocks in FreenetTopKey: %d",
@@ -305,8 +654,8 @@ public class FreenetIO implements Archive.IO, ArchiveResolver {
     }
 
     public Archive.ArchiveData read(HistoryLinkMap linkMap, LinkDataFactory linkFactory) throws IOException {
-        // For now, we request everything.
-        // LATER: Think through incremental requesting. We can do much better.
+        // Incremental. Blocks of local archives with a known CHK and blocks
+        // in the BlockCache aren't requested. Neither are cached SSK top keys.
         if (linkMap == null) {
             throw new IllegalArgumentException("linkMap == null");
         }
@@ -321,43 +670,94 @@ public class FreenetIO implements Archive.IO, ArchiveResolver {
             mLinkMap = linkMap;
             mLinkDataFactory = linkFactory;
 
-            runner = new FCPCommandRunner(mHost, mPort,
-                                          mClientName +
-                                          IOUtil.randomHexString(12));
+            runner = makeRunner();
 
-            // Read the topkey from Freenet.
-            FCPCommandRunner.GetTopKey requestTopKey =
-                runner.sendGetTopKey(mRequestUri);
+            FreenetTopKey topKey = readCachedTopKey(mRequestUri);
+            if (topKey == null) {
+                // Read the topkey from Freenet.
+                FCPCommandRunner.GetTopKey requestTopKey =
+                    runner.sendGetTopKey(mRequestUri);
 
-            runner.waitUntilAllFinished();
-            requestTopKey.raiseOnFailure();
+                runner.waitUntilAllFinished();
+                requestTopKey.raiseOnFailure();
 
-            FreenetTopKey topKey = requestTopKey.getTopKey();
-            raiseOnSuspectTopKey(topKey);
+                topKey = requestTopKey.getTopKey();
+                raiseOnSuspectTopKey(topKey);
+                cacheTopKey(mRequestUri, topKey);
+            }
 
             // Read all the blocks listed in the top key.
             // Note: The GetBlock requests read and cache the links
-            //       by calling back into readLinks(). See below.
+            //       by calling back into readLinks() on the FCP listener
+            //       thread. See below.
+            // Only fetch blocks we don't already have.
             int count = 0;
-            List<FCPCommandRunner.GetBlock> gets = new ArrayList<FCPCommandRunner.GetBlock>();
+            int reused = 0;
+            int cachedCount = 0;
+            Map<String, String> chkToSha1 = invertChkTable();
+            // Parallel lists. Exactly one of the two entries is null.
+            List<HedgedGet> gets = new ArrayList<HedgedGet>();
+            List<Block> blocks = new ArrayList<Block>();
+
+            // First pass: resolve everything we can locally.
+            // REQUIRES: No GetBlock is sent until this is finished. mLinkMap
+            //           isn't thread safe, and the requests add to it from
+            //           another thread.
             for (FreenetTopKey.BlockDescription desc : topKey.mBlockDescriptions ) {
-                // LATER: Handle redundant block fetches.
+                List<String> chks = getCHKs(desc);
+                Block local = reuseLocalBlock(lookupSha1(chkToSha1, chks), desc.mLength);
+                if (local != null) {
+                    debug(String.format("Reused[%d]: %s",
+                                        desc.mLength,
+                                        desc.getCHK(0)));
+                    gets.add(null);
+                    blocks.add(local);
+                    reused++;
+                    count++;
+                    continue;
+                }
+
+                Block cached = readCachedBlock(chks, desc.mLength);
+                if (cached != null) {
+                    debug(String.format("Cached[%d]: %s",
+                                        desc.mLength,
+                                        desc.getCHK(0)));
+                    gets.add(null);
+                    blocks.add(cached);
+                    cachedCount++;
+                    count++;
+                    continue;
+                }
+                gets.add(new HedgedGet(chks, desc.mLength, count++));
+                blocks.add(null);
+            }
+
+            // Second pass: request the rest.
+            mFetchingBlocks = true;
+            for (HedgedGet get : gets) {
+                if (get == null) {
+                    continue;
+                }
                 debug(String.format("Requesting[%d]: %s",
-                                    desc.mLength,
-                                    desc.getCHK(0)));
-                gets.add(runner.sendGetBlock(desc.getCHK(0), desc.mLength, count++, this));
+                                    get.mLength,
+                                    get.mChks.get(0)));
+                get.sendNext(runner, this);
             }
-            runner.waitUntilAllFinished();
+            debug(String.format("Blocks: %d reused, %d from cache, %d requested",
+                                reused, cachedCount, count - reused - cachedCount));
+            waitForHedgedGets(runner, gets);
 
             // Collect the Blocks.
-            List<Block> blocks = new ArrayList<Block>();
-            for (FCPCommandRunner.GetBlock get : gets) {
-                get.raiseOnFailure();
-                blocks.add(get.getBlock());
+            for (int index = 0; index < gets.size(); index++) {
+                HedgedGet get = gets.get(index);
+                if (get == null) {
+                    continue;
+                }
+                blocks.set(index, get.mWinner.getBlock());
 
                 // Save, so that we know we don't need to insert this block
                 // when inserting the update.
-                cacheBlockChk(get.getHexDigest(), get.getUri());
+                cacheBlockChk(get.mWinner.getHexDigest(), get.mChks);
             }
             return new Archive.ArchiveData(blocks, topKey.mRootObjects);
         } catch (InterruptedException ie) {
@@ -367,6 +767,7 @@ public class FreenetIO implements Archive.IO, ArchiveResolver {
         } finally {
             mLinkMap = null;
             mLinkDataFactory = null;
+            mFetchingBlocks = false;
             if (runner != null) {
                 debug("FCP Connection -- DISCONNECTING!");
                 runner.disconnect();
@@ -374,6 +775,92 @@ public class FreenetIO implements Archive.IO, ArchiveResolver {
         }
     }
 
+    // The requests for one block. The next CHK is only requested when
+    // the earlier ones fail or are slower than mHedgeDelayMs.
+    private static class HedgedGet {
+        final List<String> mChks;
+        final long mLength;
+        final int mOrdinal;
+        final List<FCPCommandRunner.GetBlock> mGets = new ArrayList<FCPCommandRunner.GetBlock>();
+        long mLastSentMs;
+        FCPCommandRunner.GetBlock mWinner;
+
+        HedgedGet(List<String> chks, long length, int ordinal) {
+            mChks = chks;
+            mLength = length;
+            mOrdinal = ordinal;
+        }
+
+        boolean hasNext() { return mGets.size() < mChks.size(); }
+
+        void abandonLosers() {
+            for (FCPCommandRunner.GetBlock get : mGets) {
+                if (get != mWinner) {
+                    get.abandon();
+                }
+            }
+        }
+
+        void sendNext(FCPCommandRunner runner, FreenetIO io) throws IOException {
+            mGets.add(runner.sendGetBlock(mChks.get(mGets.size()), mLength, mOrdinal, io));
+            mLastSentMs = System.currentTimeMillis();
+        }
+
+        // Returns true once a request succeeded.
+        // Raises if all of them failed and there are no CHKs left to try.
+        boolean poll(FCPCommandRunner runner, FreenetIO io, int hedgeDelayMs) throws IOException {
+            if (mWinner != null) {
+                return true;
+            }
+            boolean allFailed = true;
+            for (FCPCommandRunner.GetBlock get : mGets) {
+                if (!get.finished()) {
+                    allFailed = false;
+                    continue;
+                }
+                if (get.succeeded()) {
+                    mWinner = get;
+                    abandonLosers();
+                    return true;
+                }
+            }
+            if (!hasNext()) {
+                if (allFailed) {
+                    mGets.get(mGets.size() - 1).raiseOnFailure();
+                }
+                return false;
+            }
+            if (allFailed || System.currentTimeMillis() - mLastSentMs >= hedgeDelayMs) {
+                io.debug(String.format("Hedging[%d]: %s", mLength, mChks.get(mGets.size())));
+                sendNext(runner, io);
+            }
+            return false;
+        }
+    }
+
+    // Returns once every block has one successful request. The losing
+    // requests are abandoned, not cancelled. The runner's connection
+    // isn't pooled again while they are pending.
+    private void waitForHedgedGets(FCPCommandRunner runner, List<HedgedGet> gets)
+        throws IOException, InterruptedException {
+        long maxTimeMs = System.currentTimeMillis() + FCPCommandRunner.FOREVER_MS;
+        while (true) {
+            boolean done = true;
+            for (HedgedGet get : gets) {
+                if (get != null && !get.poll(runner, this, mHedgeDelayMs)) {
+                    done = false;
+                }
+            }
+            if (done) {
+                return;
+            }
+            if (System.currentTimeMillis() > maxTimeMs) {
+                throw new InterruptedException("Timed out before all blocks were read.");
+            }
+            runner.waitForAnyFinished(250);
+        }
+    }
+
     // Used by FCPCommandRunner.
     protected Block readLinks(InputStream data) throws IOException {
         if (mLinkDataFactory == null || mLinkMap  == null) {
@@ -387,19 +874,205 @@ public class FreenetIO implements Archive.IO, ArchiveResolver {
                 break;
             }
             digests.add(link.mHash);
-            mLinkMap.addLink(link);
-            if (mCache != null) {
-                mCache.writeLink(link);
-            }
+            addLink(link);
         }
         return new Block(digests);
     }
 
+    private void addLink(HistoryLink link) throws IOException {
+        mLinkMap.addLink(link);
+        if (mCache != null) {
+            mCache.writeLink(link);
+        }
+    }
+
+    private Map<String, String> invertChkTable() {
+        Map<String, String> chkToSha1 = new HashMap<String, String>();
+        if (mSha1ToChk == null || (mLocalArchives.isEmpty() && mLastResolved == null)) {
+            return chkToSha1;
+        }
+        synchronized(mSha1ToChk) {
+            for (Map.Entry<String, String> entry : mSha1ToChk.entrySet()) {
+                for (String chk : entry.getValue().split(CHK_SEPARATOR)) {
+                    chkToSha1.put(chk, entry.getKey());
+                }
+            }
+        }
+        return chkToSha1;
+    }
+
+    private static String lookupSha1(Map<String, String> chkToSha1, List<String> chks) {
+        for (String chk : chks) {
+            String hexDigest = chkToSha1.get(chk);
+            if (hexDigest != null) {
+                return hexDigest;
+            }
+        }
+        return null;
+    }
+
+    // Copies the links of a local block with the given SHA1 into mLinkMap.
+    // Returns null if there's no such block.
+    // REQUIRES: No GetBlock was sent yet. See read().
+    private Block reuseLocalBlock(String hexDigest, long length) throws IOException {
+        if (mFetchingBlocks) {
+            throw new IllegalStateException("Can't reuse local blocks while fetching blocks.");
+        }
+        if (hexDigest == null) {
+            return null;
+        }
+        List<Archive> archives = new ArrayList<Archive>(mLocalArchives);
+        if (mLastResolved != null) {
+            archives.add(mLastResolved);
+        }
+        for (Archive archive : archives) {
+            for (Block block : archive.getData().mBlocks) {
+                try {
+                    Iterable<HistoryLink> links = archive.getLinks(block);
+                    // Cheap. Skips hashing most blocks.
+                    if (BinaryLinkRep.getRepLength(links) != length) {
+                        continue;
+                    }
+                    String blockDigest = mLocalBlockDigests.get(block);
+                    if (blockDigest == null) {
+                        blockDigest = IOUtil.getFileDigest(BinaryLinkRep.toBytes(links)).toString();
+                        mLocalBlockDigests.put(block, blockDigest);
+                    }
+                    if (!blockDigest.equals(hexDigest)) {
+                        continue;
+                    }
+                    for (HistoryLink link : links) {
+                        mLinkMap.addLink(link);
+                    }
+                    return new Block(block.getDigests());
+                } catch (HistoryLinkMap.LinkNotFoundException lnfe) {
+                    // Incomplete local archive. Try the next one.
+                }
+            }
+        }
+        return null;
+    }
+
+    // Returns null if there's no usable cached copy under any of the CHKs.
+    // INTENT: A cached file that went bad on disk is dropped and the block
+    //         is requested again, instead of breaking the version for good.
+    //         Links are only added to mLinkMap once the SHA1 matches.
+    private Block readCachedBlock(List<String> chks, long length) throws IOException {
+        if (mBlockCache == null) {
+            return null;
+        }
+        for (String chk : chks) {
+            String expected = mBlockCache.getHexDigest(chk);
+            InputStream raw = mBlockCache.open(chk, length);
+            if (raw == null) {
+                continue;
+            }
+            List<HistoryLink> links = new ArrayList<HistoryLink>();
+            String actual = null;
+            try {
+                DigestInputStream digestInput = IOUtil.getSha1DigestInputStream(raw);
+                while (true) {
+                    HistoryLink link = BinaryLinkRep.fromBytes(digestInput, mLinkDataFactory);
+                    if (link == null) {
+                        break;
+                    }
+                    links.add(link);
+                }
+                actual = new LinkDigest(digestInput.getMessageDigest().digest()).toString();
+            } catch (IOException ioe) {
+                debug("Couldn't parse cached block: " + ioe.getMessage());
+            } finally {
+                raw.close();
+            }
+
+            // No SHA1 means it was cached by an older version. Can't trust it.
+            if (actual == null || !actual.equals(expected)) {
+                debug(String.format("Discarding bad cached block: %s", chk));
+                mBlockCache.discard(chk);
+                continue;
+            }
+
+            List<LinkDigest> digests = new ArrayList<LinkDigest>();
+            for (HistoryLink link : links) {
+                digests.add(link.mHash);
+                addLink(link);
+            }
+            cacheBlockChk(actual, chks);
+            return new Block(digests);
+        }
+        return null;
+    }
+
+    // Versioned SSK URIs never change what they point to, so their top
+    // keys are kept in the BlockCache too. USKs and KSKs aren't.
+    private boolean cachesTopKey(String uri) {
+        return mBlockCache != null && uri.startsWith("SSK@");
+    }
+
+    // Returns null if it isn't cached.
+    private FreenetTopKey readCachedTopKey(String uri) throws IOException {
+        if (!cachesTopKey(uri)) {
+            return null;
+        }
+        byte[] raw = mBlockCache.get(uri, -1);
+        if (raw == null) {
+            return null;
+        }
+        FreenetTopKey topKey = FreenetTopKey.fromBytes(new ByteArrayInputStream(raw));
+        raiseOnSuspectTopKey(topKey);
+        debug("Cached top key: " + uri);
+        return topKey;
+    }
+
+    private void cacheTopKey(String uri, FreenetTopKey topKey) {
+        if (!cachesTopKey(uri)) {
+            return;
+        }
+        try {
+            mBlockCache.put(uri, IOUtil.readAndClose(topKey.toBytes()));
+        } catch (IOException ioe) {
+            // Not fatal.
+            debug("Couldn't cache top key: " + ioe.getMessage());
+        }
+    }
+
+    // Used by FCPCommandRunner. Returns null if blocks aren't cached.
+    protected BlockCache.PendingBlock startCachingBlock(String chk) {
+        if (mBlockCache == null) {
+            return null;
+        }
+        try {
+            return mBlockCache.startPut(chk);
+        } catch (IOException ioe) {
+            // Not fatal. We'll just fetch it again next time.
+            debug("Couldn't cache block: " + ioe.getMessage());
+            return null;
+        }
+    }
+
+    // Used by FCPCommandRunner, after the block parsed.
+    protected void finishCachingBlock(BlockCache.PendingBlock pending, String hexDigest) {
+        try {
+            pending.commit(hexDigest);
+        } catch (IOException ioe) {
+            debug("Couldn't cache block: " + ioe.getMessage());
+        }
+    }
+
     ////////////////////////////////////////////////////////////
-    private void cacheBlockChk(String hexDigest, String chk) {
+    // Redundant CHKs are stored space separated in one value.
+    private void cacheBlockChk(String hexDigest, List<String> chks) {
         if (mSha1ToChk == null) {
             return;
         }
+        StringBuilder value = new StringBuilder();
+        for (String chk : chks) {
+            if (value.length() > 0) {
+                value.append(CHK_SEPARATOR);
+            }
+            value.append(chk);
+        }
+        String chk = value.toString();
         synchronized(mSha1ToChk) {
             debug(String.format("cached: %s -> %s", hexDigest, chk));
             mSha1ToChk.put(hexDigest, chk);
@@ -418,35 +1091,6 @@ public class FreenetIO implements Archive.IO, ArchiveResolver {
         }
     }
 
-    // LATER: Rename this?  "precompute" doesn't sound right.
-    // NOTE: returns null for all blocks when mIgnoreChkCache is true.
-    private List<FreenetTopKey.BlockDescription> precomputeDescriptions(HistoryLinkMap linkMap,
-                                                                        List<Block> blocks)
-        throws IllegalBase64Exception,
-               InterruptedException,
-               IOException {
-
-        List<FreenetTopKey.BlockDescription> descriptions = new ArrayList<FreenetTopKey.BlockDescription>();
-        for (Block block : blocks) {
-            if (mIgnoreChkCache) {
-                // hmmmm... wonky.
-                descriptions.add(null);
-                continue;
-            }
-
-            String hexDigest = IOUtil.getFileDigest(linkMap.getBinaryRep(block)).toString();
-            String chk = getCachedChk(hexDigest);
-            if (chk != null) {
-                // Don't need to insert.
-                long length = linkMap.getLength(block); // LATER: do better. Shouldn't be making multiple passes.
-                descriptions.add(FreenetTopKey.makeDescription(length, Arrays.asList(chk)));
-                continue;
-            }
-            // Do need to insert. Add placeholder.
-            descriptions.add(null);
-        }
-        return descriptions;
-    }
 
     ////////////////////////////////////////////////////////////
 
@@ -458,12 +1102,13 @@ public class FreenetIO implements Archive.IO, ArchiveResolver {
             }
             debug("resolving Archive from: " + fromReference.mExternalKey);
             mRequestUri = fromReference.mExternalKey;
-            Archive loaded = Archive.load(this); // Hmmmm... slurps stuff into the cache. ???
+            Archive loaded = Archive.load(this, getLinkDataFactory()); // Hmmmm... slurps stuff into the cache. ???
             if (!loaded.getRootObject(RootObjectKind.ARCHIVE_MANIFEST).isNullDigest()) {
                 if (!loaded.hasValidArchiveManifest()) {
                     throw new IOException("Invalid ARCHIVE_MANIFEST: " + fromReference.mExternalKey);
                 }
             }
+            mLastResolved = loaded;
             return loaded;
 
         } finally {
@@ -105,6 +105,19 @@ public final class FreenetTopKey {
         }
     }
 
+    // Length of toBytes() output, without the MAX_LENGTH check.
+    public int getEncodedLength() {
+        int length = HEADER.length + 2;
+        for (Archive.RootObject obj : mRootObjects) {
+            length += obj.mDigest.getBytes().length + 4;
+        }
+        length += 2;
+        for (BlockDescription desc : mBlockDescriptions) {
+            length += 8 + 2 + desc.mCHKs.size() * BINARY_CHK_LENGTH;
+        }
+        return length;
+    }
+
     public InputStream toBytes() throws IOException {
         ByteArrayOutputStream buffer = new ByteArrayOutputStream();
         DataOutputStream outputStream = new DataOutputStream(buffer);
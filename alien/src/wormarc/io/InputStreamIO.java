@@ -0,0 +1,85 @@
+/* A read only Archive.IO which reads a serialized archive from a stream once.
+ *
+ *  Copyright (C) 2010, 2011 Darrell Karbott
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.0 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ *  Author: djk@isFiaD04zgAgnrEC5XJt1i4IE7AkNPqhBG5bONi6Yks
+ *
+ *  This file was developed as component of
+ * "fniki" (a wiki implementation running over Freenet).
+ */
+
+package wormarc.io;
+
+import java.io.BufferedInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.util.List;
+
+import wormarc.Archive;
+import wormarc.Block;
+import wormarc.HistoryLinkMap;
+
+// Like ByteArrayIO, but doesn't need the whole blob in RAM.
+// e.g. for loading an uploaded archive which was spooled to disk.
+public class InputStreamIO extends StreamIO {
+    private final static int BUFFER_SIZE = 64 * 1024;
+
+    private InputStream mStream;
+
+    public InputStreamIO(InputStream stream) {
+        super(new StreamFactoryImpl(), "");
+        ((StreamFactoryImpl)mStreamFactory).setTarget(this);
+        // DataInputStream reads tiny fields, so don't hit the underlying stream for each one.
+        mStream = new BufferedInputStream(stream, BUFFER_SIZE);
+    }
+
+    ////////////////////////////////////////////////////////////
+    protected InputStream giveAwayStream() {
+        InputStream stream = mStream;
+        mStream = null;
+        return stream;
+    }
+
+    private static class StreamFactoryImpl implements StreamFactory {
+        private InputStreamIO mTarget;
+
+        public void setTarget(InputStreamIO io) {
+            mTarget = io;
+        }
+
+        public InputStream getInputStream() throws IOException {
+            InputStream stream = mTarget.giveAwayStream();
+            if (stream == null) {
+                throw new IOException("Stream already read.");
+            }
+            return stream;
+        }
+        public OutputStream getOutputStream() throws IOException {
+            throw new IOException("InputStreamIO is read only.");
+        }
+        public boolean shouldCloseInputStream() { return true; }
+        public boolean shouldCloseOutputStream() { return true;}
+    }
+
+    ////////////////////////////////////////////////////////////
+    public void write(HistoryLinkMap linkMap, List<Block> blocks, List<Archive.RootObject> rootObjects)
+        throws IOException {
+        throw new IOException("InputStreamIO is read only.");
+    }
+}
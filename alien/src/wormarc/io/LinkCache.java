@@ -31,22 +31,50 @@ import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
 import wormarc.Archive;
 import wormarc.BinaryLinkRep;
 import wormarc.HistoryLink;
 import wormarc.HistoryLinkMap;
+import wormarc.IOUtil;
 import wormarc.LinkDataFactory;
 import wormarc.LinkDigest;
 
+// Links are stored either one file per link in a flat directory or,
+// once the "packs" subdirectory exists, in LinkPacks. Reads fall back
+// to the flat files so an old cache keeps working until it's repacked.
 public class LinkCache implements Archive.LinkSource {
+    private final static String PACK_DIR = "packs";
+
     protected File mDirectory;
+    private LinkPacks mPacks;
 
     // Flat directory for now. Could use subdirs based on start of digest, like git.
     protected File getLinkFile(LinkDigest digest) {
         return new File(mDirectory, digest.hexDigest(20));
     }
 
+    private static boolean isLinkFileName(String name) {
+        if (name.length() != 40) {
+            return false;
+        }
+        for (int index = 0; index < name.length(); index++) {
+            if (Character.digit(name.charAt(index), 16) == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Uses packs if the directory has already been migrated.
     public LinkCache(String directory) throws IOException {
+        this(directory, false);
+    }
+
+    public LinkCache(String directory, boolean usePacks) throws IOException {
         if (directory == null) {
             throw new IllegalArgumentException("directory is null.");
         }
@@ -56,8 +84,14 @@ public class LinkCache implements Archive.LinkSource {
            throw new IOException("Directory must exist and have read and write access.");
        }
        mDirectory = file;
+
+       if (usePacks || new File(file, PACK_DIR).isDirectory()) {
+           mPacks = new LinkPacks(new File(file, PACK_DIR));
+       }
     }
 
+    public boolean usesPacks() { return mPacks != null; }
+
     public HistoryLink readLink(HistoryLinkMap linkMap, LinkDataFactory linkFactory, LinkDigest digest)
         throws IOException {
 
@@ -65,7 +99,13 @@ public class LinkCache implements Archive.LinkSource {
             throw new IOException("Refused to read NULL_DIGEST link.");
         }
 
-        InputStream inputStream = new FileInputStream(getLinkFile(digest));
+        InputStream inputStream = null;
+        if (mPacks != null) {
+            inputStream = mPacks.open(digest);
+        }
+        if (inputStream == null) {
+            inputStream = new FileInputStream(getLinkFile(digest));
+        }
         try {
             HistoryLink link = BinaryLinkRep.fromBytes(inputStream, linkFactory);
             if (link == null) {
@@ -83,6 +123,11 @@ public class LinkCache implements Archive.LinkSource {
             throw new IOException("Refused to write NULL_DIGEST link.");
         }
 
+        if (mPacks != null) {
+            mPacks.append(link);
+            return;
+        }
+
         OutputStream outputStream = new FileOutputStream(getLinkFile(link.mHash));
         boolean raised = true;
         try {
@@ -96,4 +141,54 @@ public class LinkCache implements Archive.LinkSource {
             }
         }
     }
-}
\ No newline at end of file
+
+    // Makes links written since the last flush() visible to other
+    // LinkCache instances on the same directory.
+    public void flush() throws IOException {
+        if (mPacks != null) {
+            mPacks.flush();
+        }
+    }
+
+    // All the links in the cache, packed or not.
+    public Set<LinkDigest> getDigests() throws IOException {
+        Set<LinkDigest> digests = new HashSet<LinkDigest>();
+        if (mPacks != null) {
+            digests.addAll(mPacks.getDigests());
+        }
+        for (String name : mDirectory.list()) {
+            if (isLinkFileName(name)) {
+                digests.add(new LinkDigest(name));
+            }
+        }
+        return digests;
+    }
+
+    // Write the links in keep into a single pack and delete everything
+    // else, including any flat link files. Switches a flat cache over to
+    // packs. Returns the number of links kept.
+    public int repack(Collection<LinkDigest> keep) throws IOException {
+        if (mPacks == null) {
+            mPacks = new LinkPacks(new File(mDirectory, PACK_DIR));
+        }
+        int count = mPacks.repack(keep, new LinkPacks.RepSource() {
+                public byte[] readRep(LinkDigest digest) throws IOException {
+                    File file = getLinkFile(digest);
+                    return file.exists() ? IOUtil.readFully(file.getPath()) : null;
+                }
+            });
+
+        // Only after the new pack is safely on disk.
+        for (String name : mDirectory.list()) {
+            if (isLinkFileName(name)) {
+                new File(mDirectory, name).delete();
+            }
+        }
+        return count;
+    }
+
+    // Move a flat cache into packs without dropping anything.
+    public int migrate() throws IOException {
+        return repack(getDigests());
+    }
+}
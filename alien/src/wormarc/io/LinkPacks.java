@@ -0,0 +1,463 @@
+/* Append-only pack files with a sorted, memory mapped digest index.
+ *
+ *  Copyright (C) 2010, 2011 Darrell Karbott
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.0 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ *  Author: djk@isFiaD04zgAgnrEC5XJt1i4IE7AkNPqhBG5bONi6Yks
+ *
+ *  This file was developed as component of
+ * "fniki" (a wiki implementation running over Freenet).
+ */
+
+package wormarc.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import wormarc.BinaryLinkRep;
+import wormarc.HistoryLink;
+import wormarc.LinkDigest;
+import wormarc.RamLinkDataFactory;
+
+// INTENT: Keep tens of thousands of links in a handful of files instead
+// of one file per link.
+//
+// pack-<n>.pack is BinaryLinkRep records, back to back.
+// pack-<n>.idx is a header followed by fixed size entries sorted by
+// digest, so lookups are a binary search over a mapped file:
+//   <magic:int><version:int><count:int>
+//   (<digest:20 bytes><offset:long><length:int>) * count
+//
+// Links are appended to an active pack which is only indexed in memory
+// until flush() seals it. A pack without an .idx (i.e. we died before
+// flush()) is rescanned and sealed when the directory is opened.
+class LinkPacks {
+    private final static int MAGIC = 0x57414958; // "WAIX"
+    private final static int VERSION = 1;
+    private final static int HEADER_LEN = 12;
+    private final static int ENTRY_LEN = 20 + 8 + 4;
+    // Length, flags and parent digest. Same as BinaryLinkRep.
+    private final static int REP_HEADER_LEN = 4 + 1 + 20;
+
+    // Start a new active pack after this many bytes.
+    private final static long MAX_PACK_LEN = 64L * 1024 * 1024;
+
+    private final static String PREFIX = "pack-";
+    private final static String PACK_SUFFIX = ".pack";
+    private final static String INDEX_SUFFIX = ".idx";
+    private final static String TMP_SUFFIX = ".tmp";
+
+    // A read only, indexed pack.
+    private final static class Pack {
+        final File mPackFile;
+        final File mIndexFile;
+        final MappedByteBuffer mIndex;
+        final int mCount;
+
+        Pack(File packFile, File indexFile) throws IOException {
+            mPackFile = packFile;
+            mIndexFile = indexFile;
+            RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+            try {
+                mIndex = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            } finally {
+                raf.close();
+            }
+            if (mIndex.capacity() < HEADER_LEN ||
+                mIndex.getInt(0) != MAGIC || mIndex.getInt(4) != VERSION) {
+                throw new IOException("Bad pack index: " + indexFile);
+            }
+            mCount = mIndex.getInt(8);
+            if (mIndex.capacity() != HEADER_LEN + ((long)mCount) * ENTRY_LEN) {
+                throw new IOException("Truncated pack index: " + indexFile);
+            }
+        }
+
+        // Unsigned byte-wise, the same order as LinkDigest.compareTo().
+        private int compareAt(int entry, byte[] digest) {
+            int pos = HEADER_LEN + entry * ENTRY_LEN;
+            for (int index = 0; index < 20; index++) {
+                int delta = (mIndex.get(pos + index) & 0xff) - (digest[index] & 0xff);
+                if (delta != 0) {
+                    return delta;
+                }
+            }
+            return 0;
+        }
+
+        // Returns the entry index or -1.
+        int find(byte[] digest) {
+            int low = 0;
+            int high = mCount - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = compareAt(mid, digest);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        long offset(int entry) { return mIndex.getLong(HEADER_LEN + entry * ENTRY_LEN + 20); }
+        int length(int entry) { return mIndex.getInt(HEADER_LEN + entry * ENTRY_LEN + 28); }
+
+        LinkDigest digest(int entry) {
+            byte[] bytes = new byte[20];
+            for (int index = 0; index < 20; index++) {
+                bytes[index] = mIndex.get(HEADER_LEN + entry * ENTRY_LEN + index);
+            }
+            return new LinkDigest(bytes);
+        }
+    }
+
+    // A pack that is still being written.
+    private final static class PackWriter {
+        final File mPackFile;
+        final OutputStream mOut;
+        // digest -> { offset, length }
+        final Map<LinkDigest, long[]> mEntries = new HashMap<LinkDigest, long[]>();
+        long mLength;
+
+        PackWriter(File packFile) throws IOException {
+            mPackFile = packFile;
+            mOut = new BufferedOutputStream(new FileOutputStream(packFile, true));
+            mLength = packFile.length();
+        }
+
+        void append(LinkDigest digest, byte[] rep) throws IOException {
+            mOut.write(rep);
+            mEntries.put(digest, new long[] {mLength, rep.length});
+            mLength += rep.length;
+        }
+
+        // Writes the index and returns the sealed pack.
+        Pack seal(File indexFile) throws IOException {
+            mOut.close();
+            writeIndex(new TreeMap<LinkDigest, long[]>(mEntries), indexFile);
+            return new Pack(mPackFile, indexFile);
+        }
+    }
+
+    private final File mDirectory;
+    private final List<Pack> mPacks = new ArrayList<Pack>();
+    private PackWriter mActive;
+    private int mNextOrdinal;
+
+    LinkPacks(File directory) throws IOException {
+        if (!(directory.isDirectory() || directory.mkdir())) {
+            throw new IOException("Couldn't create pack directory: " + directory);
+        }
+        mDirectory = directory;
+
+        String[] names = directory.list();
+        Arrays.sort(names);
+        for (String name : names) {
+            if (name.endsWith(TMP_SUFFIX)) {
+                // Left over from a repack that didn't finish.
+                new File(directory, name).delete();
+                continue;
+            }
+            if (!(name.startsWith(PREFIX) && name.endsWith(PACK_SUFFIX))) {
+                continue;
+            }
+            int ordinal = parseOrdinal(name);
+            mNextOrdinal = Math.max(mNextOrdinal, ordinal + 1);
+            File packFile = new File(directory, name);
+            File indexFile = indexFile(ordinal);
+            if (!indexFile.exists()) {
+                rebuildIndex(packFile, indexFile);
+            }
+            mPacks.add(new Pack(packFile, indexFile));
+        }
+    }
+
+    private static int parseOrdinal(String name) throws IOException {
+        try {
+            return Integer.parseInt(name.substring(PREFIX.length(),
+                                                   name.length() - PACK_SUFFIX.length()));
+        } catch (NumberFormatException nfe) {
+            throw new IOException("Unexpected file in pack directory: " + name);
+        }
+    }
+
+    private File packFile(int ordinal) { return new File(mDirectory, PREFIX + ordinal + PACK_SUFFIX); }
+    private File indexFile(int ordinal) { return new File(mDirectory, PREFIX + ordinal + INDEX_SUFFIX); }
+
+    private static void writeIndex(TreeMap<LinkDigest, long[]> entries, File indexFile) throws IOException {
+        // Write then rename so a crash never leaves a short index behind.
+        File tmpFile = new File(indexFile.getPath() + TMP_SUFFIX);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<LinkDigest, long[]> entry : entries.entrySet()) {
+                out.write(entry.getKey().getBytes());
+                out.writeLong(entry.getValue()[0]);
+                out.writeInt((int)entry.getValue()[1]);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmpFile.renameTo(indexFile)) {
+            throw new IOException("Couldn't rename: " + tmpFile);
+        }
+    }
+
+    // Index whatever complete records are in the pack. A partial record at
+    // the end is cut off.
+    private static void rebuildIndex(File packFile, File indexFile) throws IOException {
+        TreeMap<LinkDigest, long[]> entries = new TreeMap<LinkDigest, long[]>();
+        long offset = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(packFile)));
+        try {
+            while (true) {
+                byte[] rep = readRecord(in);
+                if (rep == null) {
+                    break;
+                }
+                entries.put(repDigest(rep), new long[] {offset, rep.length});
+                offset += rep.length;
+            }
+        } finally {
+            in.close();
+        }
+        if (offset < packFile.length()) {
+            RandomAccessFile raf = new RandomAccessFile(packFile, "rw");
+            try {
+                raf.setLength(offset);
+            } finally {
+                raf.close();
+            }
+        }
+        writeIndex(entries, indexFile);
+    }
+
+    // Returns one whole BinaryLinkRep record or null at EOF or on a truncated record.
+    private static byte[] readRecord(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException eofe) {
+            return null;
+        }
+        if (length < REP_HEADER_LEN) {
+            throw new IOException("Corrupt pack record.");
+        }
+        byte[] rep = new byte[length];
+        rep[0] = (byte)(length >>> 24);
+        rep[1] = (byte)(length >>> 16);
+        rep[2] = (byte)(length >>> 8);
+        rep[3] = (byte)length;
+        try {
+            in.readFully(rep, 4, length - 4);
+        } catch (EOFException eofe) {
+            return null;
+        }
+        return rep;
+    }
+
+    // The record doesn't store its own digest, so recompute it.
+    private static LinkDigest repDigest(byte[] rep) throws IOException {
+        return BinaryLinkRep.fromBytes(new ByteArrayInputStream(rep),
+                                       RamLinkDataFactory.instance()).mHash;
+    }
+
+    private static byte[] toRep(HistoryLink link) throws IOException {
+        ByteArrayOutputStream buffer =
+            new ByteArrayOutputStream((int)BinaryLinkRep.getRepLength(link));
+        BinaryLinkRep.write(buffer, link);
+        return buffer.toByteArray();
+    }
+
+    private static byte[] readAt(File packFile, long offset, int length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(packFile, "r");
+        try {
+            byte[] rep = new byte[length];
+            raf.seek(offset);
+            raf.readFully(rep);
+            return rep;
+        } finally {
+            raf.close();
+        }
+    }
+
+    ////////////////////////////////////////////////////////////
+    public synchronized boolean contains(LinkDigest digest) {
+        if (mActive != null && mActive.mEntries.containsKey(digest)) {
+            return true;
+        }
+        byte[] bytes = digest.getBytes();
+        for (Pack pack : mPacks) {
+            if (pack.find(bytes) != -1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Returns the raw BinaryLinkRep bytes or null if the link isn't packed.
+    public synchronized byte[] readRep(LinkDigest digest) throws IOException {
+        if (mActive != null) {
+            long[] entry = mActive.mEntries.get(digest);
+            if (entry != null) {
+                mActive.mOut.flush();
+                return readAt(mActive.mPackFile, entry[0], (int)entry[1]);
+            }
+        }
+        byte[] bytes = digest.getBytes();
+        for (Pack pack : mPacks) {
+            int entry = pack.find(bytes);
+            if (entry != -1) {
+                return readAt(pack.mPackFile, pack.offset(entry), pack.length(entry));
+            }
+        }
+        return null;
+    }
+
+    public InputStream open(LinkDigest digest) throws IOException {
+        byte[] rep = readRep(digest);
+        return rep == null ? null : new ByteArrayInputStream(rep);
+    }
+
+    // Does nothing if the link is already packed.
+    public synchronized void append(HistoryLink link) throws IOException {
+        if (contains(link.mHash)) {
+            return;
+        }
+        if (mActive != null && mActive.mLength >= MAX_PACK_LEN) {
+            flush();
+        }
+        if (mActive == null) {
+            mActive = new PackWriter(packFile(mNextOrdinal++));
+        }
+        mActive.append(link.mHash, toRep(link));
+    }
+
+    // Seal the active pack, if there is one.
+    public synchronized void flush() throws IOException {
+        if (mActive == null) {
+            return;
+        }
+        PackWriter active = mActive;
+        mActive = null;
+        mPacks.add(active.seal(indexFile(parseOrdinal(active.mPackFile.getName()))));
+    }
+
+    public synchronized Set<LinkDigest> getDigests() {
+        Set<LinkDigest> digests = new HashSet<LinkDigest>();
+        if (mActive != null) {
+            digests.addAll(mActive.mEntries.keySet());
+        }
+        for (Pack pack : mPacks) {
+            for (int entry = 0; entry < pack.mCount; entry++) {
+                digests.add(pack.digest(entry));
+            }
+        }
+        return digests;
+    }
+
+    public synchronized int getPackCount() {
+        return mPacks.size() + (mActive == null ? 0 : 1);
+    }
+
+    // Source for links that aren't in a pack yet. i.e. flat link files.
+    interface RepSource {
+        byte[] readRep(LinkDigest digest) throws IOException;
+    }
+
+    // Rewrite everything in keep that can be found into a single new pack
+    // and delete all the old ones. Returns the number of links written.
+    public synchronized int repack(Collection<LinkDigest> keep, RepSource fallback) throws IOException {
+        flush();
+        List<Pack> oldPacks = new ArrayList<Pack>(mPacks);
+        int ordinal = mNextOrdinal++;
+        File tmpPack = new File(packFile(ordinal).getPath() + TMP_SUFFIX);
+        PackWriter writer = new PackWriter(tmpPack);
+        boolean raised = true;
+        try {
+            // Sorted so the pack is in index order.
+            for (LinkDigest digest : new TreeSet<LinkDigest>(keep)) {
+                byte[] rep = readRep(digest);
+                if (rep == null && fallback != null) {
+                    rep = fallback.readRep(digest);
+                }
+                if (rep == null) {
+                    continue;
+                }
+                writer.append(digest, rep);
+            }
+            writer.mOut.close();
+            raised = false;
+        } finally {
+            if (raised) {
+                try {
+                    writer.mOut.close();
+                } catch (IOException ioe) {
+                    // NOP
+                }
+                tmpPack.delete();
+            }
+        }
+
+        // Only the rename makes the new pack visible.
+        if (!tmpPack.renameTo(packFile(ordinal))) {
+            throw new IOException("Couldn't rename: " + tmpPack);
+        }
+        writeIndex(new TreeMap<LinkDigest, long[]>(writer.mEntries), indexFile(ordinal));
+        Pack packed = new Pack(packFile(ordinal), indexFile(ordinal));
+
+        mPacks.clear();
+        mPacks.add(packed);
+        // Hmmm... won't work on Windows while the old index is still mapped.
+        for (Pack pack : oldPacks) {
+            pack.mIndexFile.delete();
+            pack.mPackFile.delete();
+        }
+        return packed.mCount;
+    }
+}
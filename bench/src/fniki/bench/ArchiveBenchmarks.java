@@ -0,0 +1,219 @@
+/* JMH benchmarks for the wormarc archive code.
+ *
+ *  Copyright (C) 2010, 2011 Darrell Karbott
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.0 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ *  Author: djk@isFiaD04zgAgnrEC5XJt1i4IE7AkNPqhBG5bONi6Yks
+ *
+ *  This file was developed as component of
+ * "fniki" (a wiki implementation running over Freenet).
+ */
+
+package fniki.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import wormarc.Archive;
+import wormarc.FileCache;
+import wormarc.FileManifest;
+import wormarc.IOUtil;
+import wormarc.LinkDigest;
+import wormarc.RootObjectKind;
+import wormarc.hgdeltacoder.ported.BDiff;
+import wormarc.io.ByteArrayIO;
+
+// Run with: ant bench
+// Override the wiki shape with e.g.: ant bench -Dbench.args="-p pageCount=10000"
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ArchiveBenchmarks {
+    // Number of precomputed edits to cycle through.
+    private final static int EDIT_COUNT = 64;
+
+    @State(Scope.Benchmark)
+    public static class WikiState {
+        @Param({"1000"})
+        public int pageCount;
+
+        @Param({"4096"})
+        public int pageSize;
+
+        @Param({"20"})
+        public int historyDepth;
+
+        @Param({"50"})
+        public int editsPerVersion;
+
+        SyntheticWiki mWiki;
+        Archive mArchive;
+        Archive mUncached;
+        FileManifest mManifest;
+        List<String> mNames;
+
+        // Parallel arrays of edits to existing pages.
+        LinkDigest[] mEditHeads;
+        byte[][] mEditOld;
+        byte[][] mEditNew;
+
+        // The archive as written by StreamIO.
+        byte[] mBlob;
+
+        // The file manifests of the last two versions.
+        Map<String, LinkDigest> mOlderMap;
+        Map<String, LinkDigest> mNewerMap;
+
+        // Commited but not compressed, as in ArchiveManager.commitAndPushToFreenet().
+        Archive mUncompressed;
+
+        int mNext;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            mWiki = new SyntheticWiki(pageCount, pageSize, 1);
+            mArchive = mWiki.buildArchive(historyDepth, editsPerVersion);
+            mArchive.setFileCache(new FileCache());
+            mManifest = FileManifest.fromArchiveRootObject(mArchive);
+            mUncached = mArchive.deepCopy();
+            mUncached.setFileCache(null);
+            mNames = mWiki.getNames();
+
+            mEditHeads = new LinkDigest[EDIT_COUNT];
+            mEditOld = new byte[EDIT_COUNT][];
+            mEditNew = new byte[EDIT_COUNT][];
+            for (int index = 0; index < EDIT_COUNT; index++) {
+                String name = mWiki.randomPageName();
+                String text = mWiki.getPageText(name);
+                mEditHeads[index] = mManifest.getChainHeadDigest(name);
+                mEditOld[index] = text.getBytes(IOUtil.UTF8);
+                mEditNew[index] = mWiki.editText(text).getBytes(IOUtil.UTF8);
+            }
+
+            ByteArrayIO io = new ByteArrayIO();
+            mArchive.write(io);
+            mBlob = io.getData();
+            io.release();
+
+            mOlderMap = mManifest.getMap();
+            mWiki.editPages(editsPerVersion);
+            Archive next = mWiki.commit(mArchive);
+            mNewerMap = FileManifest.fromArchiveRootObject(next).getMap();
+
+            mWiki.editPages(editsPerVersion);
+            mUncompressed = mArchive.deepCopy();
+            FileManifest files = FileManifest.fromArchiveRootObject(mUncompressed);
+            mUncompressed.startUpdate();
+            files.updateFrom(mUncompressed, mWiki);
+            mUncompressed.updateRootObject(files.toBytes(), RootObjectKind.FILE_MANIFEST);
+            mUncompressed.commitUpdate();
+        }
+
+        int next() {
+            mNext = (mNext + 1) % EDIT_COUNT;
+            return mNext;
+        }
+
+        String nextName() {
+            return mNames.get(next() * 7919 % mNames.size());
+        }
+    }
+
+    // compressAndUpdateArchiveManifest() modifies the archive, so each call gets a fresh copy.
+    @State(Scope.Thread)
+    public static class CompressState {
+        Archive mWork;
+
+        @Setup(Level.Invocation)
+        public void setUp(WikiState wiki) {
+            mWork = wiki.mUncompressed.deepCopy();
+        }
+    }
+
+    ////////////////////////////////////////////////////////////
+    @Benchmark
+    public LinkDigest putFile(WikiState state) throws IOException {
+        final int index = state.next();
+        state.mArchive.startUpdate();
+        try {
+            return state.mArchive.putFile(new ByteArrayInputStream(state.mEditNew[index]),
+                                          state.mEditHeads[index]);
+        } finally {
+            state.mArchive.abandonUpdate();
+        }
+    }
+
+    // Decodes the delta chain every time.
+    @Benchmark
+    public int getFileUncached(WikiState state) throws IOException {
+        return state.mUncached.getFile(state.mManifest.getChainHeadDigest(state.nextName())).available();
+    }
+
+    @Benchmark
+    public int getFileCached(WikiState state) throws IOException {
+        return state.mArchive.getFile(state.mManifest.getChainHeadDigest(state.nextName())).available();
+    }
+
+    @Benchmark
+    public Archive compressAndUpdateArchiveManifest(CompressState state) throws IOException {
+        state.mWork.compressAndUpdateArchiveManifest();
+        return state.mWork;
+    }
+
+    @Benchmark
+    public byte[] streamIOWrite(WikiState state) throws IOException {
+        ByteArrayIO io = new ByteArrayIO();
+        state.mArchive.write(io);
+        return io.getData();
+    }
+
+    @Benchmark
+    public Archive streamIORead(WikiState state) throws IOException {
+        ByteArrayIO io = new ByteArrayIO();
+        io.setData(state.mBlob);
+        return Archive.load(io);
+    }
+
+    @Benchmark
+    public FileManifest.Changes fileManifestDiff(WikiState state) {
+        return FileManifest.diff(state.mOlderMap, state.mNewerMap);
+    }
+
+    @Benchmark
+    public byte[] bdiff(WikiState state) {
+        final int index = state.next();
+        return BDiff.bdiff(state.mEditOld[index], state.mEditNew[index]);
+    }
+}
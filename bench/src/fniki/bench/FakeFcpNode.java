@@ -0,0 +1,722 @@
+/* An in-process fake Freenet node which speaks enough FCP 2.0 for jfniki.
+ *
+ *  Copyright (C) 2010, 2011 Darrell Karbott
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.0 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ *  Author: djk@isFiaD04zgAgnrEC5XJt1i4IE7AkNPqhBG5bONi6Yks
+ *
+ *  This file was developed as component of
+ * "fniki" (a wiki implementation running over Freenet).
+ */
+
+package fniki.bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import wormarc.IOUtil;
+import wormarc.io.Base64;
+
+// INTENT: Exercise FreenetIO, FCPCommandRunner and FcpTools without a
+// real node, e.g. to benchmark or regression test inserts and reads.
+//
+// Handles ClientHello, ClientGet, ClientPut, ClientPutComplexDir and
+// GenerateSSK. Data is stored in a local directory, one file per key.
+// CHKs are hashes of the data. SSK public keys are hashes of the
+// private keys. USK editions are stored as SSKs, "site/3" as "site-3".
+//
+// Every request waits latency plus up to jitter ms, plus the time the
+// data would take at the configured bandwidth. A configurable fraction
+// of requests fail as if the node couldn't find a route or the data.
+//
+// Not a Freenet. Nothing is encrypted, nothing expires.
+public class FakeFcpNode {
+    // Codes from the FCP 2.0 spec.
+    public final static int CODE_DATA_NOT_FOUND = 13;
+    public final static int CODE_TOO_BIG = 21;
+    public final static int CODE_PERMANENT_REDIRECT = 27;
+    public final static int CODE_WRONG_MIME_TYPE = 29;
+    public final static int CODE_ROUTE_NOT_FOUND = 5;
+    public final static int CODE_COLLISION = 9;
+    public final static int CODE_MESSAGE_PARSE_ERROR = 7;
+
+    // ClientPut field. Like fred, any other spelling is ignored.
+    public final static String CRYPTO_KEY_FIELD = "OverrideSplitfileCryptoKey";
+
+    private final static String PRIVATE_EXTRA = ",AQECAAE";
+    private final static String PUBLIC_EXTRA = ",AQACAAE";
+    private final static String CHK_EXTRA = ",AAMC--8";
+    private final static String DEFAULT_MIME_TYPE = "application/octet-stream";
+    private final static String MIME_SUFFIX = ".mime";
+
+    private final File mStore;
+    private final ServerSocket mServer;
+    private final ExecutorService mWorkers = Executors.newCachedThreadPool();
+    private final Random mRandom;
+    private final List<Socket> mClients = new ArrayList<Socket>();
+
+    private volatile int mLatencyMs;
+    private volatile int mJitterMs;
+    private volatile long mBytesPerSecond; // 0 means unlimited.
+    private volatile double mFailureRate;
+
+    private long mRequests;
+    private long mFailures;
+    private long mBytesIn;
+    private long mBytesOut;
+
+    // port 0 picks a free port.
+    public FakeFcpNode(File store, int port, long seed) throws IOException {
+        if (!(store.isDirectory() || store.mkdirs())) {
+            throw new IOException("Couldn't create store directory: " + store);
+        }
+        mStore = store;
+        mRandom = new Random(seed);
+        mServer = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread(new Runnable() {
+                public void run() {
+                    acceptConnections();
+                }
+            }, "FakeFcpNode");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() { return mServer.getLocalPort(); }
+
+    public void setLatency(int latencyMs, int jitterMs) {
+        mLatencyMs = latencyMs;
+        mJitterMs = jitterMs;
+    }
+
+    public void setBandwidth(long bytesPerSecond) { mBytesPerSecond = bytesPerSecond; }
+
+    // 0.0 to 1.0
+    public void setFailureRate(double rate) { mFailureRate = rate; }
+
+    public synchronized long getBytesIn() { return mBytesIn; }
+    public synchronized long getBytesOut() { return mBytesOut; }
+
+    public synchronized String getStats() {
+        return String.format("Fake node: %d requests, %d injected failures, %d bytes in, %d bytes out\n",
+                             mRequests, mFailures, mBytesIn, mBytesOut);
+    }
+
+    public void close() {
+        try {
+            mServer.close();
+        } catch (IOException ioe) {
+            // Closing anyway.
+        }
+        synchronized (mClients) {
+            for (Socket socket : mClients) {
+                try {
+                    socket.close();
+                } catch (IOException ioe) {
+                    // Closing anyway.
+                }
+            }
+            mClients.clear();
+        }
+        mWorkers.shutdownNow();
+    }
+
+    ////////////////////////////////////////////////////////////
+    // Wire format.
+    static class Message {
+        final String mName;
+        final Map<String, String> mFields = new LinkedHashMap<String, String>();
+        byte[] mPayload;
+
+        Message(String name) {
+            mName = name;
+        }
+
+        Message set(String key, Object value) {
+            mFields.put(key, String.valueOf(value));
+            return this;
+        }
+
+        String get(String key) { return mFields.get(key); }
+
+        String get(String key, String defaultValue) {
+            String value = mFields.get(key);
+            return value == null ? defaultValue : value;
+        }
+    }
+
+    // Returns null at end of stream.
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        while (true) {
+            int value = in.read();
+            if (value == -1) {
+                return line.size() == 0 ? null : new String(line.toByteArray(), IOUtil.UTF8);
+            }
+            if (value == '\n') {
+                return new String(line.toByteArray(), IOUtil.UTF8).trim();
+            }
+            line.write(value);
+        }
+    }
+
+    // Returns null at end of stream.
+    private static Message readMessage(DataInputStream in) throws IOException {
+        String name = readLine(in);
+        while (name != null && name.length() == 0) {
+            name = readLine(in);
+        }
+        if (name == null) {
+            return null;
+        }
+        Message msg = new Message(name);
+        while (true) {
+            String line = readLine(in);
+            if (line == null) {
+                return null;
+            }
+            // jfcplib ends messages with payloads with EndMessage too.
+            if (line.equals("EndMessage") || line.equals("Data")) {
+                break;
+            }
+            int pos = line.indexOf('=');
+            if (pos != -1) {
+                msg.set(line.substring(0, pos), line.substring(pos + 1));
+            }
+        }
+        int length = getPayloadLength(msg);
+        if (length > 0) {
+            msg.mPayload = new byte[length];
+            in.readFully(msg.mPayload);
+        }
+        return msg;
+    }
+
+    private static int getPayloadLength(Message msg) {
+        if (msg.mName.equals("ClientPut") &&
+            msg.get("UploadFrom", "direct").equals("direct")) {
+            return Integer.parseInt(msg.get("DataLength", "0"));
+        }
+        if (msg.mName.equals("ClientPutComplexDir")) {
+            int length = 0;
+            for (int index = 0; msg.get("Files." + index + ".Name") != null; index++) {
+                if (msg.get("Files." + index + ".UploadFrom", "direct").equals("direct")) {
+                    length += Integer.parseInt(msg.get("Files." + index + ".DataLength", "0"));
+                }
+            }
+            return length;
+        }
+        return 0;
+    }
+
+    // One per client connection. Requests run on worker threads, so
+    // replies can come back in a different order than they were sent.
+    private class Connection {
+        private final Socket mSocket;
+        private final OutputStream mOut;
+
+        Connection(Socket socket) throws IOException {
+            mSocket = socket;
+            mOut = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        synchronized void send(Message msg) throws IOException {
+            StringBuilder header = new StringBuilder();
+            header.append(msg.mName).append('\n');
+            for (Map.Entry<String, String> entry : msg.mFields.entrySet()) {
+                header.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+            }
+            header.append(msg.mPayload == null ? "EndMessage\n" : "Data\n");
+            mOut.write(header.toString().getBytes(IOUtil.UTF8));
+            if (msg.mPayload != null) {
+                mOut.write(msg.mPayload);
+            }
+            mOut.flush();
+        }
+
+        void run() {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(mSocket.getInputStream()));
+                while (true) {
+                    final Message request = readMessage(in);
+                    if (request == null) {
+                        break;
+                    }
+                    if (request.mName.equals("ClientHello")) {
+                        send(new Message("NodeHello")
+                             .set("FCPVersion", "2.0")
+                             .set("Node", "Fred")
+                             .set("Version", "Fred,0.7,1.0,1400")
+                             .set("Testnet", "false")
+                             .set("ConnectionIdentifier", IOUtil.randomHexString(16)));
+                        continue;
+                    }
+                    mWorkers.execute(new Runnable() {
+                            public void run() {
+                                try {
+                                    send(handle(request));
+                                } catch (IOException ioe) {
+                                    // Client went away.
+                                }
+                            }
+                        });
+                }
+            } catch (IOException ioe) {
+                // Client went away.
+            } finally {
+                try {
+                    mSocket.close();
+                } catch (IOException ioe) {
+                    // Closing anyway.
+                }
+                synchronized (mClients) {
+                    mClients.remove(mSocket);
+                }
+            }
+        }
+    }
+
+    private void acceptConnections() {
+        while (!mServer.isClosed()) {
+            try {
+                final Socket socket = mServer.accept();
+                synchronized (mClients) {
+                    mClients.add(socket);
+                }
+                final Connection connection = new Connection(socket);
+                Thread reader = new Thread(new Runnable() {
+                        public void run() {
+                            connection.run();
+                        }
+                    }, "FakeFcpNode connection");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException ioe) {
+                // Closed.
+            }
+        }
+    }
+
+    ////////////////////////////////////////////////////////////
+    // Requests.
+    private Message handle(Message request) throws IOException {
+        String id = request.get("Identifier", "");
+        synchronized (this) {
+            mRequests++;
+        }
+        try {
+            if (request.mName.equals("ClientGet")) {
+                return handleGet(request, id);
+            } else if (request.mName.equals("ClientPut")) {
+                return handlePut(request, id);
+            } else if (request.mName.equals("ClientPutComplexDir")) {
+                return handlePutDir(request, id);
+            } else if (request.mName.equals("GenerateSSK")) {
+                delay(0);
+                String privateKey = "SSK@" + randomKeyPart() + "," + randomKeyPart() + PRIVATE_EXTRA + "/";
+                return new Message("SSKKeypair")
+                    .set("Identifier", id)
+                    .set("InsertURI", privateKey)
+                    .set("RequestURI", toPublicUri(privateKey));
+            }
+            return new Message("ProtocolError")
+                .set("Identifier", id)
+                .set("Code", CODE_MESSAGE_PARSE_ERROR)
+                .set("CodeDescription", "Unknown message: " + request.mName)
+                .set("Fatal", "false");
+        } catch (InterruptedException ie) {
+            throw new IOException("Shutting down.");
+        } catch (IllegalArgumentException iae) {
+            return new Message("ProtocolError")
+                .set("Identifier", id)
+                .set("Code", CODE_MESSAGE_PARSE_ERROR)
+                .set("CodeDescription", iae.getMessage())
+                .set("Fatal", "false");
+        }
+    }
+
+    private Message handleGet(Message request, String id) throws IOException, InterruptedException {
+        String uri = request.get("URI");
+        if (uri == null) {
+            throw new IllegalArgumentException("No URI.");
+        }
+        if (injectFailure()) {
+            delay(0);
+            return getFailed(id, CODE_DATA_NOT_FOUND, "Data not found (injected)");
+        }
+
+        if (uri.startsWith("USK@")) {
+            String latest = findLatestEdition(uri);
+            if (latest == null) {
+                delay(0);
+                return getFailed(id, CODE_DATA_NOT_FOUND, "Data not found");
+            }
+            if (!latest.equals(uri)) {
+                delay(0);
+                return getFailed(id, CODE_PERMANENT_REDIRECT, "New URI").set("RedirectURI", latest);
+            }
+        }
+
+        String key = toStoreKey(uri);
+        byte[] data = read(key);
+        if (data == null) {
+            delay(0);
+            return getFailed(id, CODE_DATA_NOT_FOUND, "Data not found");
+        }
+        String mimeType = readMimeType(key);
+        String allowed = request.get("AllowedMIMETypes");
+        if (allowed != null && !Arrays.asList(allowed.split(";")).contains(mimeType)) {
+            delay(0);
+            return getFailed(id, CODE_WRONG_MIME_TYPE, "Wrong MIME type")
+                .set("ExpectedMetadata.ContentType", mimeType);
+        }
+        String maxSize = request.get("MaxSize");
+        if (maxSize != null && data.length > Long.parseLong(maxSize)) {
+            delay(0);
+            return getFailed(id, CODE_TOO_BIG, "Too big")
+                .set("ExpectedDataLength", data.length);
+        }
+
+        if (request.get("ReturnType", "direct").equals("none")) {
+            delay(0);
+            return new Message("DataFound")
+                .set("Identifier", id)
+                .set("Metadata.ContentType", mimeType)
+                .set("DataLength", data.length);
+        }
+        delay(data.length);
+        synchronized (this) {
+            mBytesOut += data.length;
+        }
+        Message allData = new Message("AllData")
+            .set("Identifier", id)
+            .set("DataLength", data.length)
+            .set("Metadata.ContentType", mimeType);
+        allData.mPayload = data;
+        return allData;
+    }
+
+    private Message handlePut(Message request, String id) throws IOException, InterruptedException {
+        String uri = request.get("URI");
+        if (uri == null) {
+            throw new IllegalArgumentException("No URI.");
+        }
+        byte[] data = request.mPayload == null ? new byte[0] : request.mPayload;
+        delay(data.length);
+        if (injectFailure()) {
+            return putFailed(id, CODE_ROUTE_NOT_FOUND, "Route not found (injected)");
+        }
+
+        String requestUri = null;
+        if (uri.startsWith("CHK@")) {
+            requestUri = makeChk(data, getCryptoKey(request));
+        } else if (uri.startsWith("SSK@")) {
+            requestUri = toPublicUri(uri);
+        } else if (uri.startsWith("USK@")) {
+            requestUri = nextFreeEdition(toPublicUri(uri));
+        } else {
+            throw new IllegalArgumentException("Can't insert: " + uri);
+        }
+
+        if (!request.get("GetCHKOnly", "false").equals("true")) {
+            if (!store(toStoreKey(requestUri), data,
+                       request.get("Metadata.ContentType", DEFAULT_MIME_TYPE))) {
+                return putFailed(id, CODE_COLLISION, "Insert collided with different, pre-existing data at the same key");
+            }
+            synchronized (this) {
+                mBytesIn += data.length;
+            }
+        }
+        return new Message("PutSuccessful")
+            .set("Identifier", id)
+            .set("URI", requestUri);
+    }
+
+    // Stores each file under <site uri>/<name>, and a listing at the site uri.
+    private Message handlePutDir(Message request, String id) throws IOException, InterruptedException {
+        String uri = request.get("URI");
+        if (uri == null) {
+            throw new IllegalArgumentException("No URI.");
+        }
+        byte[] payload = request.mPayload == null ? new byte[0] : request.mPayload;
+        delay(payload.length);
+        if (injectFailure()) {
+            return putFailed(id, CODE_ROUTE_NOT_FOUND, "Route not found (injected)");
+        }
+
+        String requestUri = null;
+        if (uri.startsWith("CHK@")) {
+            requestUri = makeChk(payload, "") + "/";
+        } else if (uri.startsWith("SSK@")) {
+            requestUri = toPublicUri(uri);
+        } else if (uri.startsWith("USK@")) {
+            requestUri = nextFreeEdition(toPublicUri(uri));
+        } else {
+            throw new IllegalArgumentException("Can't insert: " + uri);
+        }
+        if (!requestUri.endsWith("/")) {
+            requestUri += "/";
+        }
+
+        StringBuilder listing = new StringBuilder();
+        int offset = 0;
+        for (int index = 0; request.get("Files." + index + ".Name") != null; index++) {
+            String prefix = "Files." + index + ".";
+            if (!request.get(prefix + "UploadFrom", "direct").equals("direct")) {
+                throw new IllegalArgumentException("Only UploadFrom=direct is supported.");
+            }
+            int length = Integer.parseInt(request.get(prefix + "DataLength", "0"));
+            byte[] data = new byte[length];
+            System.arraycopy(payload, offset, data, 0, length);
+            offset += length;
+            String name = request.get(prefix + "Name");
+            store(toStoreKey(requestUri + name), data,
+                  request.get(prefix + "Metadata.ContentType", DEFAULT_MIME_TYPE));
+            listing.append(name).append('\n');
+        }
+        store(toStoreKey(requestUri), listing.toString().getBytes(IOUtil.UTF8), "text/plain");
+        synchronized (this) {
+            mBytesIn += payload.length;
+        }
+        return new Message("PutSuccessful")
+            .set("Identifier", id)
+            .set("URI", requestUri);
+    }
+
+    private static Message getFailed(String id, int code, String description) {
+        return new Message("GetFailed")
+            .set("Identifier", id)
+            .set("Code", code)
+            .set("CodeDescription", description)
+            .set("ShortCodeDescription", description)
+            .set("Fatal", "true");
+    }
+
+    private static Message putFailed(String id, int code, String description) {
+        return new Message("PutFailed")
+            .set("Identifier", id)
+            .set("Code", code)
+            .set("CodeDescription", description)
+            .set("ShortCodeDescription", description)
+            .set("Fatal", "true");
+    }
+
+    private synchronized boolean injectFailure() {
+        if (mFailureRate > 0.0 && mRandom.nextDouble() < mFailureRate) {
+            mFailures++;
+            return true;
+        }
+        return false;
+    }
+
+    private void delay(long byteCount) throws InterruptedException {
+        long delayMs = mLatencyMs;
+        if (mJitterMs > 0) {
+            synchronized (this) {
+                delayMs += mRandom.nextInt(mJitterMs + 1);
+            }
+        }
+        if (mBytesPerSecond > 0) {
+            delayMs += byteCount * 1000 / mBytesPerSecond;
+        }
+        if (delayMs > 0) {
+            Thread.sleep(delayMs);
+        }
+    }
+
+    ////////////////////////////////////////////////////////////
+    // Keys.
+    private static byte[] sha256(String prefix, byte[] data) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(prefix.getBytes(IOUtil.UTF8));
+            digest.update(data);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new RuntimeException("Assertion Failure: No SHA-256?", nsae);
+        } catch (IOException ioe) {
+            throw new RuntimeException("Assertion Failure: No UTF-8?", ioe);
+        }
+    }
+
+    // 32 bytes, like the routing and crypto keys in real URIs.
+    private synchronized String randomKeyPart() {
+        byte[] bytes = new byte[32];
+        mRandom.nextBytes(bytes);
+        return Base64.encode(bytes);
+    }
+
+    // Fred wants exactly 32 bytes as hex. Anything else is a protocol error.
+    static String getCryptoKey(Message request) {
+        String cryptoKey = request.get(CRYPTO_KEY_FIELD);
+        if (cryptoKey == null) {
+            return "";
+        }
+        if (!cryptoKey.matches("[0-9a-fA-F]{64}")) {
+            throw new IllegalArgumentException("Invalid splitfile crypto key: " + cryptoKey);
+        }
+        return cryptoKey.toLowerCase();
+    }
+
+    static String makeChk(byte[] data, String cryptoKey) {
+        return "CHK@" + Base64.encode(sha256("routing:" + cryptoKey, data)) + "," +
+            Base64.encode(sha256("crypto:" + cryptoKey, data)) + CHK_EXTRA;
+    }
+
+    // SSK@private,crypto,AQECAAE/name -> SSK@public,crypto,AQACAAE/name
+    // Public keys pass through unchanged.
+    static String toPublicUri(String uri) {
+        String type = uri.substring(0, 4);
+        int slash = uri.indexOf('/');
+        if (slash == -1) {
+            throw new IllegalArgumentException("No document name: " + uri);
+        }
+        String[] fields = uri.substring(4, slash).split(",");
+        if (fields.length != 3) {
+            throw new IllegalArgumentException("Couldn't parse key: " + uri);
+        }
+        if (!("," + fields[2]).equals(PRIVATE_EXTRA)) {
+            return uri;
+        }
+        try {
+            return type + Base64.encode(sha256("public:", fields[0].getBytes(IOUtil.UTF8))) + "," +
+                fields[1] + PUBLIC_EXTRA + uri.substring(slash);
+        } catch (IOException ioe) {
+            throw new RuntimeException("Assertion Failure: No UTF-8?", ioe);
+        }
+    }
+
+    // USK@key/site/3/path -> SSK@key/site-3/path. Other keys unchanged.
+    static String toStoreKey(String uri) {
+        if (!uri.startsWith("USK@")) {
+            return uri;
+        }
+        String[] parts = uri.substring(4).split("/", 4);
+        if (parts.length < 3) {
+            throw new IllegalArgumentException("Couldn't parse USK: " + uri);
+        }
+        String key = "SSK@" + parts[0] + "/" + parts[1] + "-" + Long.parseLong(parts[2]);
+        if (parts.length == 4) {
+            key += "/" + parts[3];
+        }
+        return key;
+    }
+
+    private static String[] splitUsk(String uri) {
+        String[] parts = uri.substring(4).split("/", 4);
+        if (parts.length < 3) {
+            throw new IllegalArgumentException("Couldn't parse USK: " + uri);
+        }
+        return parts;
+    }
+
+    private static String makeUsk(String[] parts, long edition) {
+        String uri = "USK@" + parts[0] + "/" + parts[1] + "/" + edition + "/";
+        if (parts.length == 4) {
+            uri += parts[3];
+        }
+        return uri;
+    }
+
+    // Returns null if there's no edition at or after the one in the uri.
+    private String findLatestEdition(String uri) throws IOException {
+        String[] parts = splitUsk(uri);
+        long edition = Math.max(0, Long.parseLong(parts[2]));
+        if (!exists(toStoreKey(makeUsk(new String[] {parts[0], parts[1], "0"}, edition)))) {
+            return null;
+        }
+        while (exists(toStoreKey(makeUsk(new String[] {parts[0], parts[1], "0"}, edition + 1)))) {
+            edition++;
+        }
+        return makeUsk(parts, edition).equals(uri) ? uri : makeUsk(parts, edition);
+    }
+
+    private synchronized String nextFreeEdition(String uri) throws IOException {
+        String[] parts = splitUsk(uri);
+        long edition = Math.max(0, Long.parseLong(parts[2]));
+        while (exists(toStoreKey(makeUsk(new String[] {parts[0], parts[1], "0"}, edition)))) {
+            edition++;
+        }
+        String free = makeUsk(new String[] {parts[0], parts[1], "0"}, edition);
+        // Claim it, so concurrent inserts get different editions.
+        store(toStoreKey(free), new byte[0], "text/plain");
+        return free;
+    }
+
+    ////////////////////////////////////////////////////////////
+    // Storage.
+    private File fileFor(String key) {
+        return new File(mStore, IOUtil.getHexDigest(key, 20));
+    }
+
+    private boolean exists(String key) {
+        return fileFor(key).exists();
+    }
+
+    private byte[] read(String key) throws IOException {
+        File file = fileFor(key);
+        if (!file.exists()) {
+            return null;
+        }
+        return IOUtil.readFully(file.getPath());
+    }
+
+    private String readMimeType(String key) throws IOException {
+        File file = new File(fileFor(key).getPath() + MIME_SUFFIX);
+        if (!file.exists()) {
+            return DEFAULT_MIME_TYPE;
+        }
+        return new String(IOUtil.readFully(file.getPath()), IOUtil.UTF8);
+    }
+
+    // Returns false if different data is already stored under an SSK.
+    private synchronized boolean store(String key, byte[] data, String mimeType) throws IOException {
+        File file = fileFor(key);
+        if (file.exists() && key.startsWith("SSK@") && file.length() > 0) {
+            byte[] old = IOUtil.readFully(file.getPath());
+            if (!Arrays.equals(old, data)) {
+                return false;
+            }
+        }
+        IOUtil.writeFully(data, file.getPath());
+        if (!mimeType.equals(DEFAULT_MIME_TYPE)) {
+            IOUtil.writeFully(mimeType.getBytes(IOUtil.UTF8), file.getPath() + MIME_SUFFIX);
+        }
+        return true;
+    }
+}
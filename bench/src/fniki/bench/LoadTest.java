@@ -0,0 +1,276 @@
+/* Load test for archive inserts, loads and freesite inserts against a FakeFcpNode.
+ *
+ *  Copyright (C) 2010, 2011 Darrell Karbott
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.0 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ *  Author: djk@isFiaD04zgAgnrEC5XJt1i4IE7AkNPqhBG5bONi6Yks
+ *
+ *  This file was developed as component of
+ * "fniki" (a wiki implementation running over Freenet).
+ */
+
+package fniki.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.pterodactylus.fcp.ClientHello;
+import net.pterodactylus.fcp.FcpAdapter;
+import net.pterodactylus.fcp.FcpConnection;
+import net.pterodactylus.fcp.GenerateSSK;
+import net.pterodactylus.fcp.SSKKeypair;
+
+import fniki.wiki.ArchiveManager;
+import fniki.wiki.WikiTextStorage;
+import wormarc.IOUtil;
+
+// Run with: ant loadtest
+// e.g. ant loadtest -Dloadtest.args="-latency 500 -jitter 250 -bandwidth 20000 -failures 0.05"
+//
+// Submits a synthetic wiki to a FakeFcpNode over real FCP, one round
+// of edits at a time, then loads every version with a fresh
+// ArchiveManager and inserts the last one as a freesite.
+// Prints how long each step took.
+public class LoadTest {
+    private final static String[][] DEFAULTS = new String[][] {
+        {"pages", "200"},       // Pages in the wiki.
+        {"pageSize", "4096"},   // Bytes per page, roughly.
+        {"rounds", "5"},        // Number of versions submitted.
+        {"edits", "20"},        // Pages edited between versions.
+        {"latency", "200"},     // ms per request.
+        {"jitter", "100"},      // Extra random ms per request, up to.
+        {"bandwidth", "50000"}, // Bytes per second per request. 0 means unlimited.
+        {"failures", "0.0"},    // Fraction of requests that fail.
+        {"seed", "1"},
+    };
+
+    private final static String FRONT_PAGE = "Front_Page";
+
+    private final static PrintStream NULL_OUT = new PrintStream(new OutputStream() {
+            public void write(int value) {}
+            public void write(byte[] value, int offset, int length) {}
+        });
+
+    // Times for one kind of operation.
+    private static class Timings {
+        private final String mName;
+        private final List<Long> mMs = new ArrayList<Long>();
+        private long mBytes;
+        private int mFailures;
+
+        Timings(String name) {
+            mName = name;
+        }
+
+        void add(long startMs, long bytes) {
+            mMs.add(System.currentTimeMillis() - startMs);
+            mBytes += bytes;
+        }
+
+        void failed(IOException ioe) {
+            mFailures++;
+            System.err.println(mName + " failed: " + ioe.getMessage());
+        }
+
+        String report() {
+            if (mMs.isEmpty()) {
+                return String.format("%-8s no successful runs, %d failed\n", mName, mFailures);
+            }
+            long total = 0;
+            long min = Long.MAX_VALUE;
+            long max = 0;
+            for (long ms : mMs) {
+                total += ms;
+                min = Math.min(min, ms);
+                max = Math.max(max, ms);
+            }
+            return String.format("%-8s %3d ok, %3d failed, mean %6d ms, min %6d ms, max %6d ms, %8.1f KiB/s\n",
+                                 mName, mMs.size(), mFailures, total / mMs.size(), min, max,
+                                 total == 0 ? 0.0 : (mBytes / 1024.0) / (total / 1000.0));
+        }
+    }
+
+    private static Map<String, String> parseArgs(String[] args) {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String[] pair : DEFAULTS) {
+            options.put(pair[0], pair[1]);
+        }
+        for (int index = 0; index < args.length; index += 2) {
+            String name = args[index].startsWith("-") ? args[index].substring(1) : args[index];
+            if (!options.containsKey(name) || index + 1 >= args.length) {
+                StringBuilder usage = new StringBuilder("Usage: LoadTest");
+                for (String[] pair : DEFAULTS) {
+                    usage.append(String.format(" [-%s %s]", pair[0], pair[1]));
+                }
+                throw new IllegalArgumentException(usage.toString());
+            }
+            options.put(name, args[index + 1]);
+        }
+        return options;
+    }
+
+    // Returns {insertUri, requestUri}.
+    private static String[] generateKeyPair(int port) throws IOException, InterruptedException {
+        final String[] keys = new String[2];
+        FcpConnection connection = new FcpConnection("127.0.0.1", port);
+        connection.addFcpListener(new FcpAdapter() {
+                public void receivedSSKKeypair(FcpConnection fcpConnection, SSKKeypair keypair) {
+                    synchronized (keys) {
+                        keys[0] = keypair.getInsertURI();
+                        keys[1] = keypair.getRequestURI();
+                        keys.notifyAll();
+                    }
+                }
+            });
+        try {
+            connection.connect();
+            connection.sendMessage(new ClientHello("jfniki_loadtest"));
+            connection.sendMessage(new GenerateSSK("jfniki_loadtest_keys"));
+            synchronized (keys) {
+                long endMs = System.currentTimeMillis() + 60 * 1000;
+                while (keys[0] == null && System.currentTimeMillis() < endMs) {
+                    keys.wait(1000);
+                }
+            }
+            if (keys[0] == null) {
+                throw new IOException("Timed out waiting for SSKKeypair.");
+            }
+            return keys;
+        } finally {
+            connection.close();
+        }
+    }
+
+    private static ArchiveManager makeArchiveManager(int port) {
+        ArchiveManager manager = new ArchiveManager();
+        manager.setDebugOutput(NULL_OUT);
+        manager.setFcpHost("127.0.0.1");
+        manager.setFcpPort(port);
+        return manager;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseArgs(args);
+        // jfcplib logs every connection.
+        Logger.getLogger("").setLevel(Level.WARNING);
+        int rounds = Integer.parseInt(options.get("rounds"));
+        int edits = Integer.parseInt(options.get("edits"));
+        long seed = Long.parseLong(options.get("seed"));
+
+        File store = File.createTempFile("jfniki_loadtest", "");
+        if (!store.delete()) {
+            throw new IOException("Couldn't delete: " + store);
+        }
+        FakeFcpNode node = new FakeFcpNode(store, 0, seed);
+        try {
+            System.out.println("Options: " + options);
+            String[] keys = generateKeyPair(node.getPort());
+
+            // Set the network up after the wiki is built.
+            node.setLatency(Integer.parseInt(options.get("latency")),
+                            Integer.parseInt(options.get("jitter")));
+            node.setBandwidth(Long.parseLong(options.get("bandwidth")));
+            node.setFailureRate(Double.parseDouble(options.get("failures")));
+
+            SyntheticWiki wiki = new SyntheticWiki(Integer.parseInt(options.get("pages")),
+                                                   Integer.parseInt(options.get("pageSize")),
+                                                   seed);
+            ArchiveManager submitter = makeArchiveManager(node.getPort());
+            submitter.setPrivateSSK(keys[0]);
+            submitter.createEmptyArchive();
+            WikiTextStorage storage = submitter.getStorage();
+            for (String name : wiki.getNames()) {
+                storage.putPage(name, wiki.getPageText(name));
+            }
+            // insertSite() needs the theme's default page.
+            storage.putPage(FRONT_PAGE, wiki.makeLine());
+
+            Timings submits = new Timings("submit");
+            List<String> versions = new ArrayList<String>();
+            for (int round = 0; round < rounds; round++) {
+                if (round > 0) {
+                    // Submitting replaces the storage.
+                    storage = submitter.getStorage();
+                    for (int index = 0; index < edits; index++) {
+                        String name = wiki.randomPageName();
+                        storage.putPage(name, wiki.editText(storage.getPage(name)));
+                    }
+                }
+                long bytesIn = node.getBytesIn();
+                long startMs = System.currentTimeMillis();
+                try {
+                    versions.add(submitter.commitAndPushToFreenet(NULL_OUT));
+                    submits.add(startMs, node.getBytesIn() - bytesIn);
+                } catch (IOException ioe) {
+                    submits.failed(ioe);
+                }
+            }
+
+            Timings loads = new Timings("load");
+            for (String uri : versions) {
+                ArchiveManager reader = makeArchiveManager(node.getPort());
+                long bytesOut = node.getBytesOut();
+                long startMs = System.currentTimeMillis();
+                try {
+                    reader.load(uri);
+                    loads.add(startMs, node.getBytesOut() - bytesOut);
+                    // Edits never add or remove pages.
+                    if (reader.getStorage().getNames().size() != wiki.getNames().size() + 1) {
+                        throw new IOException("Loaded the wrong data: " + uri);
+                    }
+                } catch (IOException ioe) {
+                    loads.failed(ioe);
+                } finally {
+                    reader.closeFcpConnections();
+                }
+            }
+
+            Timings sites = new Timings("freesite");
+            if (!versions.isEmpty()) {
+                String siteUri = "USK@" + keys[0].substring("SSK@".length()) + "loadtest/0/";
+                long bytesIn = node.getBytesIn();
+                long startMs = System.currentTimeMillis();
+                try {
+                    submitter.insertSite(siteUri, NULL_OUT);
+                    sites.add(startMs, node.getBytesIn() - bytesIn);
+                } catch (IOException ioe) {
+                    sites.failed(ioe);
+                }
+            }
+
+            System.out.println();
+            System.out.print(submits.report());
+            System.out.print(loads.report());
+            System.out.print(sites.report());
+            System.out.println();
+            System.out.print(submitter.getFcpStats());
+            System.out.print(node.getStats());
+            submitter.closeFcpConnections();
+        } finally {
+            node.close();
+            IOUtil.delete(store);
+        }
+    }
+}
@@ -0,0 +1,261 @@
+/* Generates a repeatable fake wiki with edit history for benchmarking.
+ *
+ *  Copyright (C) 2010, 2011 Darrell Karbott
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.0 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ *  Author: djk@isFiaD04zgAgnrEC5XJt1i4IE7AkNPqhBG5bONi6Yks
+ *
+ *  This file was developed as component of
+ * "fniki" (a wiki implementation running over Freenet).
+ */
+
+package fniki.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import wormarc.Archive;
+import wormarc.FileManifest;
+import wormarc.IOUtil;
+import wormarc.LinkDigest;
+import wormarc.RootObjectKind;
+
+// INTENT: Same seed, same wiki. So benchmark runs are comparable.
+//
+// Pages are Creole wikitext with headings, lists, links to other pages
+// and inline markup, so the parser has something to chew on. Edits
+// insert, replace and delete lines the way people actually edit, which
+// keeps the deltas realistic.
+//
+// Implements FileManifest.IO so it can be committed to an Archive the
+// same way ArchiveManager commits the local overlay.
+public class SyntheticWiki implements FileManifest.IO {
+    private final static String[] WORDS = {
+        "freenet", "wiki", "archive", "link", "chain", "block", "delta", "version",
+        "page", "node", "insert", "request", "key", "manifest", "history", "edit",
+        "the", "a", "of", "and", "to", "in", "is", "for", "with", "on", "not", "it",
+    };
+
+    private final Random mRandom;
+    private final int mPageSize;
+    private final Map<String, byte[]> mPages = new TreeMap<String, byte[]>();
+    private final Map<String, LinkDigest> mDigests = new HashMap<String, LinkDigest>();
+    private final List<String> mNames = new ArrayList<String>();
+
+    public SyntheticWiki(int pageCount, int pageSize, long seed) throws IOException {
+        if (pageCount < 1 || pageSize < 1) {
+            throw new IllegalArgumentException("pageCount and pageSize must be > 0");
+        }
+        mRandom = new Random(seed);
+        mPageSize = pageSize;
+        for (int index = 0; index < pageCount; index++) {
+            mNames.add("Page_" + index);
+        }
+        for (String name : mNames) {
+            setPage(name, makePage(name));
+        }
+    }
+
+    ////////////////////////////////////////////////////////////
+    // Text generation.
+    private String word() {
+        return WORDS[mRandom.nextInt(WORDS.length)];
+    }
+
+    private String pageName() {
+        return mNames.get(mRandom.nextInt(mNames.size()));
+    }
+
+    public String makeLine() {
+        StringBuilder line = new StringBuilder(80);
+        switch (mRandom.nextInt(8)) {
+        case 0:
+            line.append("== ").append(word()).append(' ').append(word()).append(" ==");
+            return line.toString();
+        case 1:
+            line.append("* ");
+            break;
+        case 2:
+            line.append("# ");
+            break;
+        default:
+            break;
+        }
+        int count = 6 + mRandom.nextInt(10);
+        for (int index = 0; index < count; index++) {
+            switch (mRandom.nextInt(12)) {
+            case 0:
+                line.append("[[").append(pageName()).append("]]");
+                break;
+            case 1:
+                line.append("**").append(word()).append("**");
+                break;
+            case 2:
+                line.append("//").append(word()).append("//");
+                break;
+            default:
+                line.append(word());
+            }
+            line.append(' ');
+        }
+        return line.toString().trim();
+    }
+
+    private String makePage(String name) {
+        StringBuilder page = new StringBuilder(mPageSize + 80);
+        page.append("= ").append(name.replace('_', ' ')).append(" =\n");
+        while (page.length() < mPageSize) {
+            page.append(makeLine()).append('\n');
+        }
+        return page.toString();
+    }
+
+    // Insert, replace or delete a few lines.
+    public String editText(String text) {
+        List<String> lines = new ArrayList<String>();
+        for (String line : text.split("\n")) {
+            lines.add(line);
+        }
+        int count = 1 + mRandom.nextInt(3);
+        for (int index = 0; index < count; index++) {
+            int at = mRandom.nextInt(lines.size() + 1);
+            switch (mRandom.nextInt(3)) {
+            case 0:
+                lines.add(at, makeLine());
+                break;
+            case 1:
+                if (at < lines.size()) {
+                    lines.set(at, makeLine());
+                }
+                break;
+            default:
+                if (at < lines.size() && lines.size() > 1) {
+                    lines.remove(at);
+                }
+            }
+        }
+        StringBuilder edited = new StringBuilder(text.length() + 80);
+        for (String line : lines) {
+            edited.append(line).append('\n');
+        }
+        return edited.toString();
+    }
+
+    ////////////////////////////////////////////////////////////
+    private void setPage(String name, String text) throws IOException {
+        byte[] data = text.getBytes(IOUtil.UTF8);
+        mPages.put(name, data);
+        mDigests.put(name, IOUtil.getFileDigest(new ByteArrayInputStream(data)));
+    }
+
+    public List<String> getNames() { return mNames; }
+
+    public String getPageText(String name) throws IOException {
+        return new String(mPages.get(name), IOUtil.UTF8);
+    }
+
+    public String randomPageName() { return pageName(); }
+
+    // Edit count random pages.
+    public void editPages(int count) throws IOException {
+        for (int index = 0; index < count; index++) {
+            String name = pageName();
+            setPage(name, editText(getPageText(name)));
+        }
+    }
+
+    ////////////////////////////////////////////////////////////
+    // Archive helpers.
+
+    // Commit the current pages as a new version. Same steps as
+    // ArchiveManager.commitAndPushToFreenet(), without the insert.
+    public Archive commit(Archive archive) throws IOException {
+        Archive copy = archive.deepCopy();
+        FileManifest files = FileManifest.fromArchiveRootObject(copy);
+        copy.startUpdate();
+        files.updateFrom(copy, this);
+        copy.updateRootObject(files.toBytes(), RootObjectKind.FILE_MANIFEST);
+        copy.commitUpdate();
+        copy.compressAndUpdateArchiveManifest();
+        return copy;
+    }
+
+    // An archive with historyDepth versions after the first, each
+    // editing editsPerVersion pages.
+    public Archive buildArchive(int historyDepth, int editsPerVersion) throws IOException {
+        Archive archive = commit(new Archive());
+        for (int version = 0; version < historyDepth; version++) {
+            editPages(editsPerVersion);
+            archive = commit(archive);
+        }
+        return archive;
+    }
+
+    ////////////////////////////////////////////////////////////
+    // FileManifest.IO implementation. Read only.
+    public Map<String, LinkDigest> getFiles() throws IOException {
+        return new HashMap<String, LinkDigest>(mDigests);
+    }
+
+    public InputStream getFile(String name) throws IOException {
+        byte[] data = mPages.get(name);
+        if (data == null) {
+            throw new IOException("No such page: " + name);
+        }
+        return new ByteArrayInputStream(data);
+    }
+
+    public void putFile(String name, InputStream rawBytes) throws IOException {
+        throw new IOException("Not implemented.");
+    }
+
+    public void deleteFile(String name) throws IOException {
+        throw new IOException("Not implemented.");
+    }
+
+    public void startSync(Set<String> allFiles) throws IOException {}
+    public void endSync(Set<String> allFiles) throws IOException {}
+
+    ////////////////////////////////////////////////////////////
+    // Dump a synthetic wiki as files, e.g. to import into a real wiki.
+    public static void main(String[] args) throws Exception {
+        if (args.length != 4) {
+            System.err.println("Usage: SyntheticWiki <out_dir> <page_count> <page_size> <seed>");
+            System.exit(-1);
+        }
+        File outDir = new File(args[0]);
+        if (!outDir.isDirectory() && !outDir.mkdirs()) {
+            throw new IOException("Couldn't make directory: " + outDir);
+        }
+        SyntheticWiki wiki = new SyntheticWiki(Integer.parseInt(args[1]),
+                                               Integer.parseInt(args[2]),
+                                               Long.parseLong(args[3]));
+        for (String name : wiki.getNames()) {
+            IOUtil.writeFully(wiki.mPages.get(name), new File(outDir, name).getPath());
+        }
+        System.out.println(String.format("Wrote %d pages to: %s", wiki.getNames().size(), outDir));
+    }
+}
@@ -0,0 +1,149 @@
+/* JMH benchmarks for serving wiki pages from several threads at once.
+ *
+ *  Copyright (C) 2010, 2011 Darrell Karbott
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.0 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ *  Author: djk@isFiaD04zgAgnrEC5XJt1i4IE7AkNPqhBG5bONi6Yks
+ *
+ *  This file was developed as component of
+ * "fniki" (a wiki implementation running over Freenet).
+ */
+
+package fniki.bench;
+
+import java.io.IOException;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import wormarc.IOUtil;
+
+import fniki.wiki.ArchiveManager;
+import fniki.wiki.ChildContainerException;
+import fniki.wiki.ChildContainerResult;
+import fniki.wiki.Query;
+import fniki.wiki.QueryBase;
+import fniki.wiki.Request;
+import fniki.wiki.WikiApp;
+import fniki.wiki.WikiTextStorage;
+
+// Page views from several browser tabs at once.
+// viewPageSerialized takes a global lock around WikiApp.handle(), which
+// is what FnikiContextHandler used to do, for comparison.
+// e.g. ant bench -Dbench.args="WikiAppBenchmarks -t 8"
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class WikiAppBenchmarks {
+    private final static class ViewQuery extends QueryBase {
+        ViewQuery(String title) throws IOException {
+            mParamTable.put("title", title.getBytes(IOUtil.UTF8));
+            readParams();
+        }
+
+        public void readParams() throws IOException {
+            mParamTable.put("action", "view".getBytes(IOUtil.UTF8));
+        }
+    }
+
+    private final static class ViewRequest implements Request {
+        private final String mPath;
+        private final Query mQuery;
+
+        ViewRequest(String path) throws IOException {
+            mPath = path;
+            mQuery = new ViewQuery(path);
+        }
+
+        public String getPath() { return mPath; }
+        public Query getQuery() { return mQuery; }
+    }
+
+    @State(Scope.Benchmark)
+    public static class AppState {
+        @Param({"200"})
+        public int pageCount;
+
+        @Param({"4096"})
+        public int pageSize;
+
+        WikiApp mApp;
+        List<String> mNames;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            SyntheticWiki wiki = new SyntheticWiki(pageCount, pageSize, 1);
+            ArchiveManager archiveManager = new ArchiveManager();
+            archiveManager.createEmptyArchive();
+            WikiTextStorage storage = archiveManager.getStorage();
+            for (String name : wiki.getNames()) {
+                storage.putPage(name, wiki.getPageText(name));
+            }
+            mNames = wiki.getNames();
+            mApp = new WikiApp(archiveManager, true);
+            try {
+                // The first request is always redirected by StartingUp.
+                mApp.handle(mApp.getContext(new ViewRequest(mNames.get(0))));
+            } catch (ChildContainerException expected) {
+                // NOP
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        int mNext;
+
+        String nextName(AppState app) {
+            mNext = (mNext + 1) % app.mNames.size();
+            return app.mNames.get(mNext);
+        }
+    }
+
+    ////////////////////////////////////////////////////////////
+    @Benchmark
+    public ChildContainerResult viewPage(AppState app, ThreadState thread)
+        throws IOException, ChildContainerException {
+        WikiApp wikiApp = app.mApp;
+        return wikiApp.handle(wikiApp.getContext(new ViewRequest(thread.nextName(app))));
+    }
+
+    @Benchmark
+    public ChildContainerResult viewPageSerialized(AppState app, ThreadState thread)
+        throws IOException, ChildContainerException {
+        WikiApp wikiApp = app.mApp;
+        synchronized (wikiApp) {
+            return wikiApp.handle(wikiApp.getContext(new ViewRequest(thread.nextName(app))));
+        }
+    }
+}
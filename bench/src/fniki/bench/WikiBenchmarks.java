@@ -0,0 +1,121 @@
+/* JMH benchmarks for the fniki wiki rendering code.
+ *
+ *  Copyright (C) 2010, 2011 Darrell Karbott
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.0 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ *  Author: djk@isFiaD04zgAgnrEC5XJt1i4IE7AkNPqhBG5bONi6Yks
+ *
+ *  This file was developed as component of
+ * "fniki" (a wiki implementation running over Freenet).
+ */
+
+package fniki.bench;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fniki.wiki.FreenetWikiTextParser;
+import fniki.wiki.GraphLog;
+import fniki.wiki.HtmlUtils;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WikiBenchmarks {
+    // Relative to the directory ant runs in. Override with -Dbench.graphs=...
+    private final static String GRAPH_DIR = System.getProperty("bench.graphs", "test/graphs");
+
+    // Doesn't need an ArchiveManager. Just enough to exercise the parser.
+    private final static class NullParserDelegate implements FreenetWikiTextParser.ParserDelegate {
+        public boolean processedMacro(StringBuilder sb, String text) {
+            return false;
+        }
+
+        public void appendLink(StringBuilder sb, String text) {
+            sb.append("<a href=\"").append(HtmlUtils.makeHref(text)).append("\">");
+            sb.append(text);
+            sb.append("</a>");
+        }
+
+        public void appendImage(StringBuilder sb, String text) {
+            sb.append("{IMAGE}");
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class PageState {
+        @Param({"4096"})
+        public int pageSize;
+
+        String mPage;
+        String mEditedPage;
+        final FreenetWikiTextParser.ParserDelegate mDelegate = new NullParserDelegate();
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            SyntheticWiki wiki = new SyntheticWiki(100, pageSize, 1);
+            mPage = wiki.getPageText(wiki.getNames().get(0));
+            mEditedPage = wiki.editText(wiki.editText(mPage));
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class GraphState {
+        @Param({"linear.txt", "branch0.txt", "multiple_branches.txt", "sethcg.34194b24d92a.bug.txt"})
+        public String graph;
+
+        List<GraphLog.GraphEdge> mEdges;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            mEdges = GraphLog.readEdgesFromFile(new File(GRAPH_DIR, graph).getPath());
+        }
+    }
+
+    ////////////////////////////////////////////////////////////
+    @Benchmark
+    public String renderPage(PageState state) {
+        return new FreenetWikiTextParser(state.mPage, state.mDelegate).toString();
+    }
+
+    @Benchmark
+    public String diffHtml(PageState state) {
+        return HtmlUtils.getDiffHtml(state.mPage, state.mEditedPage);
+    }
+
+    @Benchmark
+    public List<List<GraphLog.DAGNode>> buildDags(GraphState state) {
+        return GraphLog.build_dags(state.mEdges, "null_rev");
+    }
+}
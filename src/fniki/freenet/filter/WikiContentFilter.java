@@ -248,7 +248,8 @@ class WikiContentFilter implements ContentFilter, FilterCallback  {
                                     unfiltered.getMimeType(),
                                     unfiltered.getTitle(),
                                     unfiltered.getMetaRefreshSeconds(),
-                                    filteredData);
+                                    filteredData,
+                                    unfiltered.isImmutable());
 
         } catch (UnsafeContentTypeException ucte) {
             ucte.printStackTrace();
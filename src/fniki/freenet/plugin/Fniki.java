@@ -24,6 +24,7 @@
 
 package fniki.freenet.plugin;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Set;
 
@@ -45,6 +46,8 @@ import freenet.support.api.HTTPRequest;
 import freenet.support.api.HTTPUploadedFile;
 
 import wormarc.IOUtil;
+import wormarc.io.BlockCache;
+import wormarc.io.ChkIndex;
 
 import fniki.wiki.ArchiveManager;
 import fniki.wiki.ByteStore;
@@ -63,6 +66,7 @@ import fniki.wiki.ChildContainerException;
 
 public class Fniki implements FredPlugin, FredPluginThreadless, FredPluginL10n {
     private WikiApp mWikiApp;
+    private ArchiveManager mArchiveManager;
 
     private ToadletContainer mFredWebUI;
     private PageMaker mPageMaker;
@@ -72,6 +76,9 @@ public class Fniki implements FredPlugin, FredPluginThreadless, FredPluginL10n {
     // ByteStorage implementation to store jfniki state in
     // the node's db.
     private final static String STORE_KEY = "jfnikidata";
+    // Under the node's user directory.
+    private final static String BLOCK_CACHE_DIR = "jfniki_blocks";
+    private final static String CHK_INDEX_FILE = "jfniki_chks.dat";
     private static class PluginByteStore implements ByteStore {
         private final PluginRespirator mRespirator;
         PluginByteStore(PluginRespirator respirator) { mRespirator = respirator; }
@@ -148,6 +155,10 @@ public class Fniki implements FredPlugin, FredPluginThreadless, FredPluginL10n {
         mPageMaker.removeNavigationCategory("jFniki");	// unload category
         mToadlet = null;
         mWikiApp = null;
+        if (mArchiveManager != null) {
+            mArchiveManager.closeFcpConnections();
+            mArchiveManager = null;
+        }
 
         System.err.println("jfniki plugin terminated.");
     }
@@ -158,6 +169,14 @@ public class Fniki implements FredPlugin, FredPluginThreadless, FredPluginL10n {
             ArchiveManager archiveManager = new ArchiveManager();
             archiveManager.createEmptyArchive();
             archiveManager.setByteStore(new PluginByteStore(pr));
+            try {
+                archiveManager.setBlockCache(new BlockCache(new File(pr.getNode().getUserDir(),
+                                                                     BLOCK_CACHE_DIR)));
+            } catch (IOException ioe) {
+                System.err.println("jfniki couldn't create block cache: " + ioe.getMessage());
+            }
+            archiveManager.setSha1ToChk(new ChkIndex(new File(pr.getNode().getUserDir(),
+                                                              CHK_INDEX_FILE)));
 
             WikiApp wikiApp = new WikiApp(archiveManager, false /* <= no outer html */);
             if (wikiApp.getContext().getString("container_prefix", null) == null) {
@@ -178,6 +197,7 @@ public class Fniki implements FredPlugin, FredPluginThreadless, FredPluginL10n {
             }
 
             mWikiApp = wikiApp;
+            mArchiveManager = archiveManager;
             mFredWebUI = pr.getToadletContainer();
             mPageMaker = pr.getPageMaker();
             mToadlet = new WikiWebInterface(pr.getHLSimpleClient(), "/jfniki/" , mWikiApp);
@@ -88,8 +88,7 @@ public class WikiWebInterface extends Toadlet {
     	// SFA: afaik this should not be needed, feel free to move this elsewhere.
         mWikiApp.setContainerPrefix(mNameSpace.substring(0, mNameSpace.length() - 1));
         try {
-            mWikiApp.setRequest(new PluginRequest(request, mNameSpace));
-            WikiContext context = mWikiApp.getContext();
+            WikiContext context = mWikiApp.getContext(new PluginRequest(request, mNameSpace));
             ChildContainerResult appResult = mWikiApp.handle(context);
             if (appResult.getMimeType().equals("text/html")) {
                 PageNode pageNode = ctx.getPageMaker().getPageNode("jFniki", true, ctx);
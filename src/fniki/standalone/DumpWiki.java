@@ -110,6 +110,9 @@ public class DumpWiki {
         // Dump this archive and quit
         System.out.println("Loading archive...");
         archiveManager.load(args[1]);
+        // Done with Freenet.
+        System.out.print(archiveManager.getFcpStats());
+        archiveManager.closeFcpConnections();
 
         List<String> pages = archiveManager.getStorage().getNames();
         if ( !archiveManager.getStorage().hasPage("PageDoesNotExist") ) {
@@ -24,8 +24,11 @@
 
 package fniki.standalone;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.OutputStream;
 
 import java.util.Map;
@@ -49,6 +52,11 @@ import fniki.wiki.RedirectException;
 
 // Adapter class to run WikiApp from HTTPServer
 public class FnikiContextHandler implements HTTPServer.ContextHandler {
+    // Not forever, because the urls of the files in the jar don't change between versions.
+    private final static String CACHE_CONTROL_IMMUTABLE = "public, max-age=86400";
+    // Browsers may keep pages, but must check the ETag before using them.
+    private final static String CACHE_CONTROL_PAGE = "no-cache";
+
     private final WikiApp mApp;
     private final String mContainerPrefix;
 
@@ -57,25 +65,41 @@ public class FnikiContextHandler implements HTTPServer.ContextHandler {
         private final String mPath;
 
         // Hmmmm... can't figure out any other way to know when part is done.
-        private final byte[] readAsBytes(HTTPServer.MultipartIterator.Part part) throws IOException {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
-            int count = 0;
-            while (true) { // Do better? Does it matter?
-                int oneByte = part.body.read();
-                if (oneByte == -1) {
+        private final static void copyPart(HTTPServer.MultipartIterator.Part part, OutputStream out)
+            throws IOException {
+            byte[] chunk = new byte[BUFFER_SIZE];
+            long count = 0;
+            while (true) {
+                int read = part.body.read(chunk);
+                if (read == -1) {
                     break;
                 }
-                count++;
+                count += read;
                 if (count > WikiApp.MAX_POST_LENGTH) {
                     throw new IOException("Uploaded file too big.");
                 }
-                baos.write(oneByte);
+                out.write(chunk, 0, read);
             }
+        }
 
+        private final byte[] readAsBytes(HTTPServer.MultipartIterator.Part part) throws IOException {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            copyPart(part, baos);
             return baos.toByteArray();
         }
 
+        // Keeps uploaded files off the heap. QueryBase.release() deletes them.
+        private final void spoolToFile(HTTPServer.MultipartIterator.Part part) throws IOException {
+            File file = File.createTempFile("jfniki_upload", ".tmp");
+            mFileTable.put(part.name, file); // Before writing, so release() always sees it.
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+            try {
+                copyPart(part, out);
+            } finally {
+                out.close();
+            }
+        }
+
         public void readParams() throws IOException {
             Set<String> allParams = paramsSet();
 
@@ -98,12 +122,14 @@ public class FnikiContextHandler implements HTTPServer.ContextHandler {
                     if (!allParams.contains(part.name)) {
                         continue;
                     }
-                    mParamTable.put(part.name, readAsBytes(part));
-                    //System.err.println("PARAMS(1): " + part.name + "=" + get(part.name));
                     if (allParams.contains(part.name + ".filename") && part.filename != null) {
                         // Special case for file uploading.
+                        spoolToFile(part);
                         mParamTable.put(part.name + ".filename", part.filename.getBytes(IOUtil.UTF8));
+                        continue;
                     }
+                    mParamTable.put(part.name, readAsBytes(part));
+                    //System.err.println("PARAMS(1): " + part.name + "=" + get(part.name));
                 }
                 mParent.consumeBody();
             }
@@ -121,12 +147,20 @@ public class FnikiContextHandler implements HTTPServer.ContextHandler {
             super();
             mParent = parent;
             mPath = path;
-            readParams();
+            boolean ok = false;
+            try {
+                readParams();
+                ok = true;
+            } finally {
+                if (!ok) {
+                    release();
+                }
+            }
         }
     }
 
     private static class WikiRequest implements Request {
-        private final Query mQuery;
+        private final WikiQuery mQuery;
         private final String mPath;
 
         WikiRequest(HTTPServer.Request parent, String containerPrefix) throws IOException {
@@ -172,65 +206,96 @@ public class FnikiContextHandler implements HTTPServer.ContextHandler {
      * @throws IOException if an IO error occurs
      */
     public int serve(HTTPServer.Request req, HTTPServer.Response resp) throws IOException {
-        synchronized (mApp) { // Only allow one thread to touch app at a time.
-            mApp.setRequest(new WikiRequest(req, mContainerPrefix));
-            try {
-                WikiContext context = mApp.getContext();
-                if (req.getMethod().equals("POST")) {
-                    // Require form password for all posts, like toadlet framework.
-                    context.checkFormPassword();
+        // WikiApp.handle() does the locking, so independent requests can run concurrently.
+        WikiRequest request = new WikiRequest(req, mContainerPrefix);
+        try {
+            WikiContext context = mApp.getContext(request);
+            if (req.getMethod().equals("POST")) {
+                // Require form password for all posts, like toadlet framework.
+                context.checkFormPassword();
+            }
+            ChildContainerResult appResult = mApp.handle(context);
+            byte[] data = appResult.getData();
+            String etag = appResult.getETag();
+            resp.getHeaders().add("Cache-Control",
+                                  appResult.isImmutable() ? CACHE_CONTROL_IMMUTABLE : CACHE_CONTROL_PAGE);
+            boolean gzip = false;
+            if (GzipEncoding.isWorthEncoding(appResult)) {
+                resp.getHeaders().add("Vary", "Accept-Encoding");
+                gzip = GzipEncoding.isAccepted(req);
+                if (gzip) {
+                    etag = GzipEncoding.getETag(appResult);
                 }
-                ChildContainerResult appResult = mApp.handle(context);
-                // NOTE: We don't have to worry about the meta refresh here.
-                //       That is done for us in by HtmlResultFactory.
-                resp.sendHeaders(200,
-                                 appResult.getData().length,
-                                 0, // Send current date for Last-Modified header.
-                                 null, // Don't send Etag header.
-                                 appResult.getMimeType(),
-                                 null /* No range. i.e. send everything. */);
+            }
+
+            if (req.getMethod().equals("GET") || req.getMethod().equals("HEAD")) {
+                // We don't send Last-Modified, so say it just changed. Only the ETag can match.
+                int status = HTTPServer.getConditionalStatus(req, System.currentTimeMillis(), etag);
+                if (status == 304 || status == 412) {
+                    if (status == 304) {
+                        resp.getHeaders().add("ETag", etag);
+                    }
+                    resp.sendHeaders(status); // No body allowed.
+                    return 0;
+                }
+            }
+
+            if (gzip) {
+                data = GzipEncoding.encode(appResult);
+                resp.getHeaders().add("Content-Encoding", "gzip");
+            }
+
+            // NOTE: We don't have to worry about the meta refresh here.
+            //       That is done for us in by HtmlResultFactory.
+            resp.sendHeaders(200,
+                             data.length,
+                             0, // Don't send Last-Modified header.
+                             etag,
+                             appResult.getMimeType(),
+                             null /* No range. i.e. send everything. */);
+            OutputStream body = resp.getBody();
+            try {
+                body.write(data);
+            } finally {
+                body.close();
+            }
+            return 0;
+        } catch(AccessDeniedException accessDenied) {
+            resp.sendError(403, accessDenied.getMessage());
+            return 0;
+        } catch(NotFoundException notFound) {
+            resp.sendError(404, notFound.getMessage());
+            return 0;
+        } catch(RedirectException redirected) {
+            resp.redirect(redirected.getLocation(), false);
+            return 0;
+        } catch(DownloadException forceDownload) {
+            try {
+                resp.getHeaders().add("Content-disposition",
+                                      String.format("attachment; filename=%s", forceDownload.mFilename));
+                resp.sendHeaders(200, forceDownload.mData.length, -1,
+                                 null, forceDownload.mMimeType, null);
                 OutputStream body = resp.getBody();
+                if (body == null) {
+                    return 0; // hmmm... getBody() can return null.
+                }
                 try {
-                    body.write(appResult.getData());
+                    body.write(forceDownload.mData);
                 } finally {
                     body.close();
                 }
                 return 0;
-            } catch(AccessDeniedException accessDenied) {
-                resp.sendError(403, accessDenied.getMessage());
-                return 0;
-            } catch(NotFoundException notFound) {
-                resp.sendError(404, notFound.getMessage());
-                return 0;
-            } catch(RedirectException redirected) {
-                resp.redirect(redirected.getLocation(), false);
-                return 0;
-            } catch(DownloadException forceDownload) {
-                try {
-                    resp.getHeaders().add("Content-disposition",
-                                          String.format("attachment; filename=%s", forceDownload.mFilename));
-                    resp.sendHeaders(200, forceDownload.mData.length, -1,
-                                     null, forceDownload.mMimeType, null);
-                    OutputStream body = resp.getBody();
-                    if (body == null) {
-                        return 0; // hmmm... getBody() can return null.
-                    }
-                    try {
-                        body.write(forceDownload.mData);
-                    } finally {
-                        body.close();
-                    }
-                    return 0;
-                } catch (IOException ioe) {
-                    // Totally hosed. We already sent the headers so we can't send a response.
-                    ioe.printStackTrace();
-                    return 0;
-                }
-            } catch(ChildContainerException serverError) {
-                // This also handles ServerErrorException.
-                resp.sendError(500, serverError.getMessage());
+            } catch (IOException ioe) {
+                // Totally hosed. We already sent the headers so we can't send a response.
+                ioe.printStackTrace();
                 return 0;
             }
+        } catch(ChildContainerException serverError) {
+            // This also handles ServerErrorException.
+            resp.sendError(500, serverError.getMessage());
+            return 0;
+        } finally {
+            request.mQuery.release();
         }
     }
 }
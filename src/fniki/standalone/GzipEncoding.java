@@ -0,0 +1,167 @@
+/* Negotiated gzip Content-Encoding for the standalone web server.
+ *
+ * Copyright (C) 2010, 2011 Darrell Karbott
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ * Author: djk@isFiaD04zgAgnrEC5XJt1i4IE7AkNPqhBG5bONi6Yks
+ *
+ *  This file was developed as component of
+ * "fniki" (a wiki implementation running over Freenet).
+ */
+
+package fniki.standalone;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import net.freeutils.httpserver.HTTPServer;
+
+import fniki.wiki.ChildContainerResult;
+
+// INTENT: Keep content coding out of HTTPServer and WikiApp. It only matters for
+//         the standalone server. The plugin gets it from fproxy.
+class GzipEncoding {
+    // Not worth the cpu below this. The gzip header and trailer alone are 18 bytes.
+    final static int MIN_LENGTH = 1024;
+
+    private final static int BUFFER_SIZE = 16 * 1024;
+
+    // The fixed 10 byte gzip header. RFC1952 2.3.
+    private final static byte[] HEADER = new byte[] {
+        (byte)0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte)0xff };
+
+    ////////////////////////////////////////////////////////////
+    // Pooled because making a Deflater allocates native zlib state.
+    private final static int MAX_POOLED_DEFLATERS = 4;
+    private final static List<Deflater> sDeflaterPool = new ArrayList<Deflater>();
+
+    private static Deflater takeDeflater() {
+        synchronized (sDeflaterPool) {
+            if (!sDeflaterPool.isEmpty()) {
+                return sDeflaterPool.remove(sDeflaterPool.size() - 1);
+            }
+        }
+        return new Deflater(Deflater.DEFAULT_COMPRESSION, true /* raw, we write the gzip wrapper */);
+    }
+
+    private static void releaseDeflater(Deflater deflater) {
+        deflater.reset();
+        synchronized (sDeflaterPool) {
+            if (sDeflaterPool.size() < MAX_POOLED_DEFLATERS) {
+                sDeflaterPool.add(deflater);
+                return;
+            }
+        }
+        deflater.end();
+    }
+
+    ////////////////////////////////////////////////////////////
+    // Results from the RenderCache, including the static files from the jar, are
+    // shared between requests, so each one is only compressed once. Weak so
+    // results which weren't cached don't hang around.
+    private final static Map<ChildContainerResult, byte[]> sEncoded =
+        Collections.synchronizedMap(new WeakHashMap<ChildContainerResult, byte[]>());
+
+    // True if the client listed gzip in Accept-Encoding, without q=0.
+    static boolean isAccepted(HTTPServer.Request req) {
+        String header = req.getHeaders().get("Accept-Encoding");
+        if (header == null) {
+            return false;
+        }
+        for (String coding : HTTPServer.splitElements(header)) {
+            String[] fields = HTTPServer.split(coding, ';');
+            if (!fields[0].trim().equalsIgnoreCase("gzip")) {
+                continue;
+            }
+            for (int index = 1; index < fields.length; index++) {
+                String param = fields[index].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        return Float.parseFloat(param.substring(2)) > 0.0f;
+                    } catch (NumberFormatException nfe) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    // Images etc. are already compressed.
+    static boolean isWorthEncoding(ChildContainerResult result) {
+        String mimeType = result.getMimeType();
+        return result.getData().length >= MIN_LENGTH &&
+            (mimeType.startsWith("text/") ||
+             mimeType.endsWith("/xml") ||
+             mimeType.endsWith("+xml") ||
+             mimeType.endsWith("/javascript"));
+    }
+
+    // A different representation needs a different strong ETag. RFC2616#13.3.3.
+    static String getETag(ChildContainerResult result) {
+        String etag = result.getETag();
+        return etag.substring(0, etag.length() - 1) + "-gzip\"";
+    }
+
+    static byte[] encode(ChildContainerResult result) {
+        byte[] encoded = sEncoded.get(result);
+        if (encoded == null) {
+            encoded = gzip(result.getData());
+            sEncoded.put(result, encoded);
+        }
+        return encoded;
+    }
+
+    static byte[] gzip(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 3 + HEADER.length + 8);
+        out.write(HEADER, 0, HEADER.length);
+
+        Deflater deflater = takeDeflater();
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] buffer = new byte[Math.min(BUFFER_SIZE, data.length + 64)];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            releaseDeflater(deflater);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        writeIntLE(out, (int)crc.getValue());
+        writeIntLE(out, data.length); // ISIZE, i.e. length mod 2^32
+        return out.toByteArray();
+    }
+
+    private static void writeIntLE(ByteArrayOutputStream out, int value) {
+        out.write(value & 0xff);
+        out.write((value >> 8) & 0xff);
+        out.write((value >> 16) & 0xff);
+        out.write((value >> 24) & 0xff);
+    }
+}
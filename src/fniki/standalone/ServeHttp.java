@@ -27,10 +27,21 @@ import java.io.IOException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileInputStream;
+import java.io.OutputStream;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import net.freeutils.httpserver.HTTPServer;
 
 import wormarc.IOUtil;
+import wormarc.ThresholdLinkDataFactory;
+import wormarc.io.BlockCache;
+import wormarc.io.ChkIndex;
 import fniki.wiki.ArchiveManager;
 import fniki.wiki.Configuration;
 import fniki.wiki.ByteStore;
@@ -39,6 +50,23 @@ import fniki.wiki.WikiApp;
 public class ServeHttp {
     private final static int DEFAULT_PORT = 8080;
     private final static String STATE_FILE = "jfnikidb.dat";
+    // Next to the state file.
+    private final static String BLOCK_CACHE_DIR = "jfniki_blocks";
+    private final static String CHK_INDEX_FILE = "jfniki_chks.dat";
+
+    // HTTP server tuning. Set with -D on the java command line.
+    // "auto" uses virtual threads if the jvm has them, otherwise "bounded".
+    private final static String HTTP_EXECUTOR = System.getProperty("jfniki.http.executor", "auto");
+    private final static int HTTP_THREADS = Integer.getInteger("jfniki.http.threads", 32);
+    private final static int HTTP_QUEUE = Integer.getInteger("jfniki.http.queue", 64);
+    private final static int HTTP_MAX_CONNECTIONS = Integer.getInteger("jfniki.http.max_connections", 256);
+    private final static int HTTP_IDLE_TIMEOUT_MS = Integer.getInteger("jfniki.http.idle_timeout_ms", 10000);
+    // 0 means don't log them. They are always at HTTP_STATS_PATH.
+    private final static int HTTP_STATS_INTERVAL_S = Integer.getInteger("jfniki.http.stats_interval_s", 0);
+    private final static String HTTP_STATS_PATH = "/jfniki_http_stats";
+    // Link bytes per archive before the rest are memory mapped. -1 keeps them all on the heap.
+    private final static long MAPPED_LINKS_THRESHOLD =
+        Long.getLong("jfniki.mapped_links_threshold", ThresholdLinkDataFactory.DEFAULT_THRESHOLD);
 
     private final static String HELP_TEXT =
         "ServeHttp: Experimental distributed anonymous wiki over Freenet + FMS\n" +
@@ -55,6 +83,14 @@ public class ServeHttp {
         "java -jar jfniki.jar path/to/" +
         STATE_FILE + " [SSK@/XXX...XXX/0123456789abcdef]\n\n" +
         "NOTES:\nfreenet.jar MUST be in your classpath.\n" +
+        "The web server can be tuned with these system properties:\n" +
+        "-Djfniki.http.executor=auto|virtual|bounded|cached (default auto)\n" +
+        "-Djfniki.http.threads=N -Djfniki.http.queue=N (bounded only)\n" +
+        "-Djfniki.http.max_connections=N (0 for no limit) -Djfniki.http.idle_timeout_ms=N\n" +
+        "-Djfniki.http.stats_interval_s=N logs the connection counts every N seconds.\n" +
+        "The counts are also at http://127.0.0.1:<listen_port>" + HTTP_STATS_PATH + "\n" +
+        "-Djfniki.mapped_links_threshold=N keeps up to N bytes of each archive's history\n" +
+        "on the heap and memory maps the rest (-1 for never).\n" +
         "There is already a *nix wrapper script. See ./script/jfniki.sh\n" +
         "If you use the file name '" + STATE_FILE +
         "' the app will use\n" +
@@ -96,6 +132,90 @@ public class ServeHttp {
         }
     }
 
+    private static String formatHttpStats(HTTPServer server) {
+        return String.format("HTTP: %d active, %d queued, %d rejected connections.",
+                             server.getActiveConnections(),
+                             server.getQueuedConnections(),
+                             server.getRejectedConnections());
+    }
+
+    // Plain text, so it is easy to watch with curl while the server is loaded.
+    private static class HttpStatsHandler implements HTTPServer.ContextHandler {
+        private final HTTPServer mServer;
+        public HttpStatsHandler(HTTPServer server) {
+            mServer = server;
+        }
+
+        public int serve(HTTPServer.Request req, HTTPServer.Response resp) throws IOException {
+            byte[] data = (formatHttpStats(mServer) + "\n").getBytes(IOUtil.UTF8);
+            resp.getHeaders().add("Cache-Control", "no-cache");
+            resp.sendHeaders(200, data.length, 0, null, "text/plain; charset=utf-8", null);
+            OutputStream body = resp.getBody();
+            try {
+                body.write(data);
+            } finally {
+                body.close();
+            }
+            return 0;
+        }
+    }
+
+    private static void startLoggingHttpStats(final HTTPServer server, final int intervalSeconds) {
+        Thread logger = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (true) {
+                            Thread.sleep(intervalSeconds * 1000L);
+                            System.err.println(formatHttpStats(server));
+                        }
+                    } catch (InterruptedException ie) {
+                        // NOP, exit.
+                    }
+                }
+            }, "jfniki_http_stats");
+        logger.setDaemon(true);
+        logger.start();
+    }
+
+    // Returns null if the jvm doesn't have virtual threads. i.e. before Java 21.
+    private static Executor makeVirtualThreadExecutor() {
+        try {
+            // Reflection so that this still builds and runs on old jvms.
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (Executor)factory.invoke(null);
+        } catch (Exception notAvailable) {
+            return null;
+        }
+    }
+
+    private static Executor makeHttpExecutor() {
+        if (HTTP_EXECUTOR.equals("cached")) {
+            return Executors.newCachedThreadPool(); // What HTTPServer does by default.
+        }
+
+        if (HTTP_EXECUTOR.equals("auto") || HTTP_EXECUTOR.equals("virtual")) {
+            Executor executor = makeVirtualThreadExecutor();
+            if (executor != null) {
+                System.err.println("HTTP: Using virtual threads.");
+                return executor;
+            }
+            if (HTTP_EXECUTOR.equals("virtual")) {
+                System.err.println("HTTP: This jvm doesn't have virtual threads.");
+            }
+        } else if (!HTTP_EXECUTOR.equals("bounded")) {
+            throw new IllegalArgumentException("Unknown jfniki.http.executor: " + HTTP_EXECUTOR);
+        }
+
+        // The queue is the accept backlog. When it is full HTTPServer sends a 503.
+        ThreadPoolExecutor executor =
+            new ThreadPoolExecutor(HTTP_THREADS, HTTP_THREADS, 60, TimeUnit.SECONDS,
+                                   new LinkedBlockingQueue<Runnable>(HTTP_QUEUE));
+        executor.allowCoreThreadTimeOut(true);
+        System.err.println(String.format("HTTP: Using %d threads, queueing up to %d connections.",
+                                         HTTP_THREADS, HTTP_QUEUE));
+        return executor;
+    }
+
     public static void main(String[] args) throws Exception {
         if (args.length > 2 || args.length < 1) {
             System.err.println(HELP_TEXT);
@@ -103,6 +223,7 @@ public class ServeHttp {
         }
 
         ArchiveManager archiveManager = new ArchiveManager();
+        archiveManager.setMappedLinksThreshold(MAPPED_LINKS_THRESHOLD);
         WikiApp wikiApp = new WikiApp(archiveManager, true);
 
         if(wikiApp.getContext().getString("container_prefix", null) == null) {
@@ -118,6 +239,15 @@ public class ServeHttp {
             if (asFile.getName().equals(STATE_FILE)) {
                 System.out.println("Using app state file: " + asFile.getAbsolutePath());
                 archiveManager.setByteStore(new FileByteStore(asFile));
+                File blockDir = new File(asFile.getAbsoluteFile().getParentFile(), BLOCK_CACHE_DIR);
+                try {
+                    archiveManager.setBlockCache(new BlockCache(blockDir));
+                    System.out.println("Caching blocks in: " + blockDir.getAbsolutePath());
+                } catch (IOException ioe) {
+                    System.out.println("Couldn't create block cache: " + ioe.getMessage());
+                }
+                archiveManager.setSha1ToChk(new ChkIndex(new File(asFile.getAbsoluteFile().getParentFile(),
+                                                                  CHK_INDEX_FILE)));
                 try {
                     wikiApp.getContext().restoreAppState();
                     System.out.println("Loaded saved state.");
@@ -151,12 +281,19 @@ public class ServeHttp {
             };
 
         HTTPServer server = new HTTPServer(listenPort);
+        server.setExecutor(makeHttpExecutor());
+        server.setMaxConnections(HTTP_MAX_CONNECTIONS);
+        server.setSocketTimeout(HTTP_IDLE_TIMEOUT_MS);
         HTTPServer.VirtualHost host = server.getVirtualHost(null); // default host
         host.setAllowGeneratedIndex(false);
         host.setDirectoryIndex("/"); // Keep from sending default "index.html"
         host.addContext(containerPrefix, new FnikiContextHandler(wikiApp));
+        host.addContext(HTTP_STATS_PATH, new HttpStatsHandler(server));
         host.addContext("/", defaultRedirect);
         server.start();
+        if (HTTP_STATS_INTERVAL_S > 0) {
+            startLoggingHttpStats(server, HTTP_STATS_INTERVAL_S);
+        }
 
         System.err.println(String.format("Serving wiki on: http://127.0.0.1:%d%s",
                                          listenPort, containerPrefix));
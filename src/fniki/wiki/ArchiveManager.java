@@ -27,6 +27,7 @@ package fniki.wiki;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintStream;
 
 import java.util.regex.Pattern;
@@ -43,14 +44,23 @@ import java.util.Set;
 
 import fmsutil.FMSUtil;
 import wormarc.Archive;
+import wormarc.ArchiveResolver;
 import wormarc.AuditArchive;
+import wormarc.CachingArchiveResolver;
 import wormarc.ExternalRefs;
+import wormarc.FileCache;
 import wormarc.FileManifest;
 import wormarc.IOUtil;
+import wormarc.LinkDataFactory;
 import wormarc.LinkDigest;
+import wormarc.RamLinkDataFactory;
 import wormarc.RootObjectKind;
+import wormarc.ThresholdLinkDataFactory;
+import wormarc.io.BlockCache;
+import wormarc.io.FCPConnectionPool;
 import wormarc.io.FreenetIO;
 import wormarc.io.ByteArrayIO;
+import wormarc.io.InputStreamIO;
 
 public class ArchiveManager {
     public final static String FCP_HOST = "127.0.0.1";
@@ -62,6 +72,8 @@ public class ArchiveManager {
     public final static String BISS_NAME = "testwiki";
     // Maximum number of articles to read from FMS.
     private final static int MAX_ARTICLES = 200;
+    // CHKs inserted per block. read() hedges across them.
+    private final static int INSERT_REDUNDANCY = 2;
 
     String mFcpHost = FCP_HOST;
     int mFcpPort = FCP_PORT;
@@ -82,6 +94,9 @@ public class ArchiveManager {
     // Block hex digest to CHK key map.
     Map<String, String> mSha1ToChk = new HashMap<String, String>();
 
+    // Parent versions the change log already resolved.
+    private final CachingArchiveResolver.Cache mResolvedArchives = new CachingArchiveResolver.Cache();
+
     // Name to theme map for freesite insertion.
     Map<String, SiteTheme> mThemeMap = new HashMap<String, SiteTheme>();
     String mCurrentThemeName = "default";
@@ -103,6 +118,23 @@ public class ArchiveManager {
 
     ByteStore mByteStore;
 
+    // Shared by every FreenetIO and FcpTools we make. Replaced if the host or port changes.
+    FCPConnectionPool mFcpPool;
+
+    // On disk blocks shared by primary and secondary loads. null means no cache.
+    BlockCache mBlockCache;
+
+    // Of the last insert or reinsert. Read by the UI thread.
+    volatile FreenetIO.InsertProgress mInsertProgress;
+
+    // Reconstructed page text, shared by every archive we load.
+    // Safe because chain heads are content addressed.
+    FileCache mFileCache = new FileCache(16 * 1024 * 1024);
+
+    // Per archive, link bytes past this go to memory mapped files instead of the heap.
+    // -1 means always keep them on the heap.
+    long mMappedLinksThreshold = ThresholdLinkDataFactory.DEFAULT_THRESHOLD;
+
     public ArchiveManager() {
         mThemeMap.put("default", buildDefaultSiteTheme());
     }
@@ -161,6 +193,31 @@ public class ArchiveManager {
 
     public String getSecondaryUri() { return mSecondaryUri; }
 
+    public FileCache getFileCache() { return mFileCache; }
+
+    // e.g. a wormarc.io.ChkIndex, so inserts after a restart skip blocks
+    // that are already in Freenet. Keeps the entries learned so far.
+    public void setSha1ToChk(Map<String, String> table) {
+        synchronized(mSha1ToChk) {
+            table.putAll(mSha1ToChk);
+        }
+        mSha1ToChk = table;
+    }
+
+    public void setBlockCache(BlockCache cache) { mBlockCache = cache; }
+
+    public void setMappedLinksThreshold(long value) { mMappedLinksThreshold = value; }
+
+    // A new one for every archive we load, parents resolve() loads included,
+    // so the mapped files go away with the archive.
+    private LinkDataFactory makeLinkDataFactory() {
+        if (mMappedLinksThreshold < 0) {
+            return new RamLinkDataFactory();
+        }
+        return new ThresholdLinkDataFactory(mMappedLinksThreshold);
+    }
+    public BlockCache getBlockCache() { return mBlockCache; }
+
     // REQUIRES: Configuration already validated.
     public void updateFromConfiguration(Configuration config) {
         // Can throw.
@@ -190,7 +247,8 @@ public class ArchiveManager {
         }
         FreenetIO io = makeIO();
         io.setRequestUri(uri);
-        Archive archive = Archive.load(io);
+        Archive archive = Archive.load(io, makeLinkDataFactory());
+        archive.setFileCache(mFileCache);
         validateUriHashes(archive, uri, true);
         FileManifest manifest = FileManifest.fromArchiveRootObject(archive);
 
@@ -220,7 +278,8 @@ public class ArchiveManager {
     public void load(String uri) throws IOException { load(uri, false); }
 
     public void createEmptyArchive() throws IOException {
-        mArchive = new Archive();
+        mArchive = new Archive(makeLinkDataFactory());
+        mArchive.setFileCache(mFileCache);
         mFileManifest = FileManifest.fromArchiveRootObject(mArchive);
         mOverlay = new LocalWikiChanges(mArchive, mFileManifest); // DCI: why copy ?
         mParentUri = null;
@@ -233,8 +292,49 @@ public class ArchiveManager {
         }
     }
 
+    private synchronized FCPConnectionPool getFcpPool() {
+        if (mFcpPool != null &&
+            (!mFcpPool.getHost().equals(mFcpHost) || mFcpPool.getPort() != mFcpPort)) {
+            mFcpPool.close();
+            mFcpPool = null;
+        }
+        if (mFcpPool == null) {
+            mFcpPool = new FCPConnectionPool(mFcpHost, mFcpPort, "jfniki_");
+        }
+        return mFcpPool;
+    }
+
+    // Connection counts and per request latencies.
+    // null before the first insert.
+    public FreenetIO.InsertProgress getInsertProgress() { return mInsertProgress; }
+
+    public synchronized String getFcpStats() {
+        return mFcpPool == null ? "No FCP requests yet.\n" : mFcpPool.getStats();
+    }
+
+    // Safe to call more than once. Later requests reopen the pool.
+    public synchronized void closeFcpConnections() {
+        if (mFcpPool != null) {
+            mFcpPool.close();
+            mFcpPool = null;
+        }
+    }
+
     private FreenetIO makeIO() {
-        return new FreenetIO(mFcpHost, mFcpPort, null, mSha1ToChk);
+        FreenetIO io = new FreenetIO(mFcpHost, mFcpPort, null, mSha1ToChk);
+        io.setConnectionPool(getFcpPool());
+        io.setBlockCache(mBlockCache);
+        io.setRedundancy(INSERT_REDUNDANCY);
+        // For the parents resolve() loads.
+        io.setLinkDataFactorySource(new FreenetIO.LinkDataFactorySource() {
+                public LinkDataFactory makeLinkDataFactory() {
+                    return ArchiveManager.this.makeLinkDataFactory();
+                }
+            });
+        // Next versions of the wikis we already have usually share most blocks.
+        io.addLocalArchive(mArchive);
+        io.addLocalArchive(mSecondaryArchive);
+        return io;
     }
 
     private static String getExternalRefDigest(Archive archive, int kind) throws IOException {
@@ -342,6 +442,8 @@ public class ArchiveManager {
         FreenetIO io = makeIO();
         io.setInsertUri(insertUri);
         io.setIgnoreChkCache(true); // Force re-insert of all chks.
+        mInsertProgress = new FreenetIO.InsertProgress();
+        io.setInsertProgress(mInsertProgress);
         out.println("Writing to Freenet...");
         copy.write(io);
 
@@ -398,6 +500,8 @@ public class ArchiveManager {
         // Push the updated version into Freenet.
         FreenetIO io = makeIO();
         io.setInsertUri(insertUri);
+        mInsertProgress = new FreenetIO.InsertProgress();
+        io.setInsertProgress(mInsertProgress);
         out.println("Writing to Freenet...");
         copy.write(io);
 
@@ -479,9 +583,9 @@ public class ArchiveManager {
         ExternalRefs.Reference head =
             new ExternalRefs.Reference(ExternalRefs.KIND_FREENET, mParentUri);
 
-        FreenetIO freenetResolver = makeIO();
-        Archive archive = freenetResolver.resolve(head);
-        AuditArchive.getManifestChangeLog(head, archive, freenetResolver, callback);
+        ArchiveResolver resolver = new CachingArchiveResolver(makeIO(), mResolvedArchives);
+        Archive archive = resolver.resolve(head);
+        AuditArchive.getManifestChangeLog(head, archive, resolver, callback);
     }
 
     public List<FMSUtil.BISSRecord> getRecentWikiVersions(PrintStream out) throws IOException {
@@ -614,19 +718,23 @@ public class ArchiveManager {
         out.println("Looking up latest versions...");
         out.println("----------------------------------------");
 
-        FcpTools runner = new  FcpTools(mFcpHost, mFcpPort, "jfniki");
+        FcpTools runner = new  FcpTools(getFcpPool());
 
         FcpTools.setDebugOutput(out);
-        for (Map.Entry<String, Integer> entry : latest.entrySet()) {
-            String usk = String.format("%s%d/", entry.getKey(), entry.getValue());
-            FcpTools.CheckUsk cmd = runner.sendCheckUsk(usk);
-            runner.waitUntilAllFinished();
-
-            if (!cmd.getUri().equals(usk)) {
-                String[] fields = cmd.getUri().split("/");
-                latest.put(entry.getKey(),
-                           Integer.parseInt(fields[fields.length -1]));
+        try {
+            for (Map.Entry<String, Integer> entry : latest.entrySet()) {
+                String usk = String.format("%s%d/", entry.getKey(), entry.getValue());
+                FcpTools.CheckUsk cmd = runner.sendCheckUsk(usk);
+                runner.waitUntilAllFinished();
+
+                if (!cmd.getUri().equals(usk)) {
+                    String[] fields = cmd.getUri().split("/");
+                    latest.put(entry.getKey(),
+                               Integer.parseInt(fields[fields.length -1]));
+                }
             }
+        } finally {
+            runner.disconnect();
         }
 
         out.println("----------------------------------------");
@@ -642,19 +750,18 @@ public class ArchiveManager {
     ////////////////////////////////////////////////////////////
 
     public String[] loadArchiveFromBlob(byte[] blob, boolean isSecondary) throws IOException {
+        return loadArchiveFromStream(new ByteArrayInputStream(blob), isSecondary);
+    }
+
+    // The caller must close blob.
+    public String[] loadArchiveFromStream(InputStream blob, boolean isSecondary) throws IOException {
         if (isSecondary && mFileManifest == null) {
             throw new IOException("Can't load secondary archive because no primary archive is loaded yet!");
         }
 
-        ByteArrayIO io = new ByteArrayIO();
-        io.setData(blob);
-        Archive archive;
-        try {
-            archive = Archive.load(io);
-        } finally {
-            // Releases blob memory, but not metadata.
-            io.release();
-        }
+        InputStreamIO io = new InputStreamIO(blob);
+        Archive archive = Archive.load(io, makeLinkDataFactory());
+        archive.setFileCache(mFileCache);
 
         // uri|nttp_group|wiki_name
         String[] metaData = io.getMetaData().split("\\|");
@@ -744,16 +851,20 @@ public class ArchiveManager {
                                                              cfg.getTemplate(),
                                                              cfg.getStaticFiles()).export();
 
-        FcpTools runner = new  FcpTools(mFcpHost, mFcpPort, "jfniki");
+        FcpTools runner = new  FcpTools(getFcpPool());
         FcpTools.setDebugOutput(out);
 
-        FcpTools.InsertFreesite cmd = runner.sendInsertFreesite(insertUri,
-                                                                dataSource,
-                                                                cfg.getDefaultPage());
-        runner.waitUntilAllFinished();
-        cmd.raiseOnFailure();
+        try {
+            FcpTools.InsertFreesite cmd = runner.sendInsertFreesite(insertUri,
+                                                                    dataSource,
+                                                                    cfg.getDefaultPage());
+            runner.waitUntilAllFinished();
+            cmd.raiseOnFailure();
 
-        return cmd.getUri();
+            return cmd.getUri();
+        } finally {
+            runner.disconnect();
+        }
     }
 
     private static SiteTheme buildDefaultSiteTheme() {
@@ -772,7 +883,12 @@ public class ArchiveManager {
         }
     }
 
-    public void loadSiteTheme(String themeFileName, byte[] zipFileBytes) throws IOException {
+    // The caller must close zipFile.
+    public void loadSiteTheme(String themeFileName, InputStream zipFile) throws IOException {
+        if (themeFileName == null || zipFile == null) {
+            throw new IOException("No theme file uploaded.");
+        }
+
         String[] fields = themeFileName.split("\\.");
         if (fields.length < 2 || (!fields[fields.length - 1].toLowerCase().equals("zip"))) {
             throw new IOException("Expected a zip file: " + themeFileName);
@@ -786,7 +902,7 @@ public class ArchiveManager {
             throw new IOException("Illegal theme name: " + name);
         }
 
-        SiteTheme theme = SiteTheme.fromZipStream(new ByteArrayInputStream(zipFileBytes));
+        SiteTheme theme = SiteTheme.fromZipStream(zipFile);
         mThemeMap.put(name, theme);
     }
 
@@ -32,4 +32,9 @@ public interface ChildContainerResult {
     String getTitle();
     // 0 means don't refresh
     int getMetaRefreshSeconds();
+
+    // Quoted strong entity tag for getData(). See RFC2616#3.11.
+    String getETag();
+    // True if the data served from this URL never changes. e.g. images from the jar.
+    boolean isImmutable();
 }
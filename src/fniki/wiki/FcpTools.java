@@ -52,6 +52,7 @@ import net.pterodactylus.fcp.SimpleProgress;
 import net.pterodactylus.fcp.Verbosity;
 
 import wormarc.IOUtil;
+import wormarc.io.FCPConnectionPool;
 
 class FcpTools {
     ////////////////////////////////////////////////////////////
@@ -91,6 +92,7 @@ class FcpTools {
 
         protected boolean mDone = false;
         protected String mFailureMsg = "";
+        protected long mStartMs;
 
         protected abstract void handleData(long length, InputStream data) throws IOException;
         protected abstract FcpMessage getStartMessage() throws IOException;
@@ -255,6 +257,9 @@ class FcpTools {
 
     private List<Command> mPending = new ArrayList<Command>();
     private FcpConnection mConnection;
+    // null if we own the connection.
+    private FCPConnectionPool mPool;
+    private boolean mDisconnected;
 
     public FcpTools(String host, int port, String clientName)
         throws IOException, InterruptedException  {
@@ -264,8 +269,22 @@ class FcpTools {
         waitUntilAllFinished();
     }
 
+    // Borrows an already hello'd connection. disconnect() gives it back.
+    public FcpTools(FCPConnectionPool pool) throws IOException {
+        mPool = pool;
+        mConnection = pool.acquire();
+    }
+
     public synchronized void disconnect() {
-        mConnection.disconnect();
+        if (mDisconnected) {
+            return;
+        }
+        mDisconnected = true;
+        if (mPool == null) {
+            mConnection.disconnect();
+            return;
+        }
+        mPool.release(mConnection, mPending.isEmpty());
     }
 
     protected synchronized HelloCommand sendClientHello(String clientName) throws IOException  {
@@ -294,6 +313,7 @@ class FcpTools {
         }
         mPending.add(cmd);
         mConnection.addFcpListener(cmd);
+        cmd.mStartMs = System.currentTimeMillis();
         boolean raised = true;
         try {
             debug("Starting: " + cmd.mName);
@@ -315,7 +335,12 @@ class FcpTools {
             if (!mPending.contains(cmd)) {
                 return;
             }
-            debug("Finished: " + cmd.mName + (cmd.mFailureMsg.equals("") ? ": SUCCEEDED" : ": FAILED: " + cmd.mFailureMsg));
+            long latencyMs = System.currentTimeMillis() - cmd.mStartMs;
+            debug("Finished: " + cmd.mName + (cmd.mFailureMsg.equals("") ? ": SUCCEEDED" : ": FAILED: " + cmd.mFailureMsg) +
+                  String.format(" (%d ms)", latencyMs));
+            if (mPool != null) {
+                mPool.recordLatency(cmd.mName, latencyMs);
+            }
             mPending.remove(cmd);
             mConnection.removeFcpListener(cmd);
             notifyAll();
@@ -783,7 +783,7 @@ public class GraphLog {
     // File format:
     // <child_rev> <parent_rev>
     // one entry per line, lines starting with # and // are ignored.
-    private final static List<GraphEdge> readEdgesFromFile(String fileName) throws IOException {
+    public final static List<GraphEdge> readEdgesFromFile(String fileName) throws IOException {
         List<GraphEdge> list = new ArrayList<GraphEdge>();
 
         LineNumberReader reader = new LineNumberReader(new FileReader(fileName));
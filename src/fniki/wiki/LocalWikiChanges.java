@@ -46,9 +46,11 @@ public class LocalWikiChanges implements WikiTextStorage, FileManifest.IO {
     final static class LocalChange {
         public final String mData;
         public final boolean mDeleted;
-        LocalChange(String data, boolean deleted) {
+        public final LinkDigest mDigest; // null if deleted.
+        LocalChange(String data, boolean deleted) throws IOException {
             mData = data;
             mDeleted = deleted;
+            mDigest = deleted ? null : IOUtil.getFileDigest(IOUtil.toStreamAsUtf8(data));
         }
     }
 
@@ -90,6 +92,17 @@ public class LocalWikiChanges implements WikiTextStorage, FileManifest.IO {
         mMap.put(name, new LocalChange(text, false));
     }
 
+    public LinkDigest getPageDigest(String name) throws IOException {
+        if (mMap.containsKey(name)) {
+            return mMap.get(name).mDigest;
+        }
+
+        if (!mBaseVersion.contains(name)) {
+            return null;
+        }
+        return mBaseVersion.getFileDigest(name);
+    }
+
     public List<String> getNames() throws IOException {
         Set<String> baseNames = new HashSet(mBaseVersion.allFiles()); // Must copy!
 
@@ -147,7 +160,7 @@ public class LocalWikiChanges implements WikiTextStorage, FileManifest.IO {
             if (mMap.get(name).mDeleted) {
                 map.remove(name);
             } else { // Either added or modified.
-                map.put(name, IOUtil.getFileDigest(getFile(name)));
+                map.put(name, mMap.get(name).mDigest);
             }
         }
         return map;
@@ -24,8 +24,13 @@
 
 package fniki.wiki;
 
+import java.io.IOException;
+import java.io.InputStream;
+
 public interface Query {
     boolean containsKey(String paramName);
     String get(String paramName);
     byte[] getBytes(String paramName);
+    // Use this instead of getBytes() for file uploads. Returns null if the parameter isn't set.
+    InputStream getInputStream(String paramName) throws IOException;
 }
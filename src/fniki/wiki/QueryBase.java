@@ -24,7 +24,12 @@
 
 package fniki.wiki;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 
 import java.util.Arrays;
@@ -37,6 +42,10 @@ import wormarc.IOUtil;
 
 public abstract class QueryBase implements Query {
     protected Map<String, byte[]> mParamTable = new HashMap<String, byte[]>();
+    // Uploaded files are spooled to disk instead of being kept in mParamTable.
+    protected Map<String, File> mFileTable = new HashMap<String, File>();
+
+    protected final static int BUFFER_SIZE = 64 * 1024;
 
     // MUST contain every parameter used by any ChildContainer.
     protected final static String PARAMS[] = new String[] {
@@ -63,13 +72,13 @@ public abstract class QueryBase implements Query {
     }
 
     public boolean containsKey(String paramName) {
-        return mParamTable.containsKey(paramName);
+        return mParamTable.containsKey(paramName) || mFileTable.containsKey(paramName);
     }
 
     // Can throw a RuntimeException if the parameter value isn't a UTF8 string.
     public String get(String paramName) {
         try {
-            byte[] bytes = mParamTable.get(paramName);
+            byte[] bytes = getBytes(paramName);
             if (bytes == null) {
                 return null;
             }
@@ -80,8 +89,39 @@ public abstract class QueryBase implements Query {
         }
     }
 
+    // Can throw a RuntimeException if a spooled upload can't be read back.
     public byte[] getBytes(String paramName) {
-        return mParamTable.get(paramName);
+        File file = mFileTable.get(paramName);
+        if (file == null) {
+            return mParamTable.get(paramName);
+        }
+        try {
+            return IOUtil.readFully(file.getPath());
+        } catch (IOException ioe) {
+            throw new RuntimeException("Couldn't read uploaded file.", ioe);
+        }
+    }
+
+    public InputStream getInputStream(String paramName) throws IOException {
+        File file = mFileTable.get(paramName);
+        if (file != null) {
+            return new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        }
+        byte[] bytes = mParamTable.get(paramName);
+        if (bytes == null) {
+            return null;
+        }
+        return new ByteArrayInputStream(bytes);
+    }
+
+    // Deletes any spooled uploads. Call this once the request is done.
+    public void release() {
+        for (File file : mFileTable.values()) {
+            if (!file.delete()) {
+                file.deleteOnExit(); // Hmmm... still open on Windows?
+            }
+        }
+        mFileTable.clear();
     }
 
     // Subclass should define this and call it once after construction.
@@ -0,0 +1,138 @@
+/* Bounded cache of filtered page view html.
+ *
+ * Copyright (C) 2010, 2011 Darrell Karbott
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ * Author: djk@isFiaD04zgAgnrEC5XJt1i4IE7AkNPqhBG5bONi6Yks
+ *
+ *  This file was developed as component of
+ * "fniki" (a wiki implementation running over Freenet).
+ */
+
+package fniki.wiki;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Maps keys built by WikiApp from the page, header and footer digests
+// and the render settings to the final, filtered result.
+//
+// Unlike FileCache, entries CAN go stale. Pages with macros and links
+// depend on the rest of the wiki. WikiApp calls removeMacroPages() or
+// clear() after anything which could have changed that.
+//
+// The cached results are shared. Callers MUST NOT modify them.
+public class RenderCache {
+    public final static long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+    private final static class Entry {
+        public final ChildContainerResult mResult;
+        public final boolean mUsesMacros;
+        Entry(ChildContainerResult result, boolean usesMacros) {
+            mResult = result;
+            mUsesMacros = usesMacros;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> mEntries =
+        new LinkedHashMap<String, Entry>(64, 0.75f, true); // Access order == LRU.
+    private final long mMaxBytes;
+    private long mBytes;
+
+    // Incremented on every invalidation. See put().
+    private long mGeneration;
+
+    private long mHits;
+    private long mMisses;
+
+    public RenderCache(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes < 0");
+        }
+        mMaxBytes = maxBytes;
+    }
+
+    public RenderCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    // Returns null if the page isn't cached.
+    public synchronized ChildContainerResult get(String key) {
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return entry.mResult;
+    }
+
+    // Read this before rendering and pass it to put(), so that a result
+    // rendered before an invalidation is never cached after it.
+    public synchronized long getGeneration() { return mGeneration; }
+
+    public synchronized void put(String key, ChildContainerResult result, boolean usesMacros,
+                                 long generation) {
+        if (key == null || result == null) {
+            throw new IllegalArgumentException("null argument");
+        }
+        if (generation != mGeneration) {
+            return; // Might be stale already.
+        }
+        int length = result.getData().length;
+        if (length > mMaxBytes) {
+            return; // Would just flush everything else.
+        }
+
+        Entry previous = mEntries.put(key, new Entry(result, usesMacros));
+        if (previous != null) {
+            mBytes -= previous.mResult.getData().length;
+        }
+        mBytes += length;
+
+        Iterator<Map.Entry<String, Entry>> itr = mEntries.entrySet().iterator();
+        while (mBytes > mMaxBytes && itr.hasNext()) {
+            Map.Entry<String, Entry> eldest = itr.next();
+            mBytes -= eldest.getValue().mResult.getData().length;
+            itr.remove();
+        }
+    }
+
+    // For edits which can't change anything but the macro output.
+    public synchronized void removeMacroPages() {
+        Iterator<Map.Entry<String, Entry>> itr = mEntries.entrySet().iterator();
+        while (itr.hasNext()) {
+            Entry entry = itr.next().getValue();
+            if (entry.mUsesMacros) {
+                mBytes -= entry.mResult.getData().length;
+                itr.remove();
+            }
+        }
+        mGeneration++;
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+        mBytes = 0;
+        mGeneration++;
+    }
+
+    public synchronized String pretty() {
+        return String.format("RenderCache: %d pages, %d/%d bytes, hits=%d, misses=%d",
+                             mEntries.size(), mBytes, mMaxBytes, mHits, mMisses);
+    }
+}
@@ -70,6 +70,7 @@ public class SiteTheme implements Serializable {
             String template = null;
             String defaultPage = null;
             List<FileInfo> staticFiles = new ArrayList<FileInfo>();
+            byte[] chunk = new byte[16 * 1024];
             while (true) {
                 ZipEntry entry = zin.getNextEntry();
                 if (entry == null) {
@@ -87,10 +88,8 @@ public class SiteTheme implements Serializable {
                 // Read a single file from the zip.
                 ByteArrayOutputStream buffer = new ByteArrayOutputStream();
                 inner_while: while (true) {
-                    // Really read one byte at a time. These files should be small.
-                    // Revisit later if this is a problem.
-                    int byteValue = zin.read();
-                    if (byteValue == -1) {
+                    int count = zin.read(chunk);
+                    if (count == -1) {
                         buffer.flush(); // Cargo cult?
                         if (name.equals("theme/config/template.html")) {
                             template = new String(buffer.toByteArray(), IOUtil.UTF8);
@@ -107,7 +106,7 @@ public class SiteTheme implements Serializable {
                         }
                         break inner_while;
                     }
-                    buffer.write(byteValue);
+                    buffer.write(chunk, 0, count);
                 } // inner while
                 zin.closeEntry();
             } // outer while
@@ -23,20 +23,35 @@
  */
 package fniki.wiki;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import wormarc.IOUtil;
+
 public class StaticResult implements ChildContainerResult {
     private final String mEncoding;
     private final String mMimeType;
     private final byte[] mData;
     private final String mTitle;
     private final int mMetaRefreshSeconds;
+    private final boolean mImmutable;
+
+    // Computed the first time it is needed. Results can be cached and shared. See RenderCache.
+    private volatile String mETag;
 
     public StaticResult(String encoding, String mimeType, String title, int refreshSeconds,
-                        byte[] data) {
+                        byte[] data, boolean immutable) {
         mEncoding = encoding;
         mMimeType = mimeType;
         mTitle = title;
         mMetaRefreshSeconds = refreshSeconds;
         mData = data;
+        mImmutable = immutable;
+    }
+
+    public StaticResult(String encoding, String mimeType, String title, int refreshSeconds,
+                        byte[] data) {
+        this(encoding, mimeType, title, refreshSeconds, data, false);
     }
 
     public String getEncoding() { return mEncoding; }
@@ -44,5 +59,23 @@ public class StaticResult implements ChildContainerResult {
     public byte[] getData() { return mData; }
     public String getTitle() { return mTitle; }
     public int getMetaRefreshSeconds() { return mMetaRefreshSeconds; }
+    public boolean isImmutable() { return mImmutable; }
+
+    // The SHA1 of the data actually served. Wiki pages depend on more than
+    // their own wikitext, e.g. links to missing pages, so a tag built from
+    // the inputs could miss a change.
+    public String getETag() {
+        String etag = mETag;
+        if (etag == null) {
+            try {
+                etag = "\"" + IOUtil.getFileDigest(new ByteArrayInputStream(mData)) + "\"";
+            } catch (IOException ioe) {
+                // Can't happen for a ByteArrayInputStream.
+                throw new RuntimeException("Couldn't digest data???", ioe);
+            }
+            mETag = etag;
+        }
+        return etag;
+    }
 }
 
@@ -30,14 +30,18 @@ import java.io.InputStream;
 import java.io.IOException;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import wormarc.FileManifest;
 import wormarc.IOUtil;
+import wormarc.LinkDigest;
 
 import static fniki.wiki.HtmlUtils.*;
 import static fniki.wiki.Validations.*;
@@ -90,8 +94,16 @@ public class WikiApp implements ChildContainer {
     // Time to wait for FCP before giving up on inverting private key.
     private final static int INVERT_TIMEOUT_MS = 30 * 1000;
 
-    // Delegate to implement WikiContext.
-    private final WikiContext mWikiContext = new WikiContextImplementation();
+    // WikiContainer actions which don't change anything.
+    private final static Set<String> READ_ONLY_ACTIONS =
+        new HashSet<String>(Arrays.asList("view", "viewparent", "viewrebase"));
+
+    // WikiContainer actions which change at most one page.
+    private final static Set<String> PAGE_EDIT_ACTIONS =
+        new HashSet<String>(Arrays.asList("save", "delete", "revert", "rebased"));
+
+    // Delegate to implement WikiContext. Not bound to any request.
+    private final WikiContext mWikiContext = new WikiContextImplementation(null);
 
     // Delegate to implement link, image and macro handling in wikitext.
     private final FreenetWikiTextParser.ParserDelegate mParserDelegate;
@@ -102,8 +114,15 @@ public class WikiApp implements ChildContainer {
     // The current UI state.
     private ChildContainer mState;
 
-    // Transient, per request state.
-    private Request mRequest;
+    // INTENT: Page views and static files are served concurrently, holding the
+    // read lock. Everything else, including every UI state transition, holds
+    // the write lock. So nothing in the UI changes the archive or overlay
+    // under a reader. Background tasks only run in modal states, which never
+    // take the read path.
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+
+    // Filtered results for "view" requests and static files. See getRenderCacheKey().
+    private final RenderCache mRenderCache = new RenderCache();
 
     private ArchiveManager mArchiveManager;
 
@@ -111,7 +130,8 @@ public class WikiApp implements ChildContainer {
 
     // Belt and braces. Run the ContentFilter from the Freenet fred codebase
     // over all output before serving it.
-    private ContentFilter mFilter;
+    // Replaced by setContainerPrefix(), which the plugin calls on every request.
+    private volatile ContentFilter mFilter;
 
     private String mFproxyPrefix = FPROXY_PREFIX;
     private boolean mAllowImages = ALLOW_IMAGES;
@@ -277,14 +297,170 @@ public class WikiApp implements ChildContainer {
         return setState(request, mRoutes.get("from_code/wiki_container"));
     }
 
-    // All requests are serialized! Hmmmm....
-    public synchronized ChildContainerResult handle(WikiContext context)
+    // Returns null unless the request can be handled without changing any state.
+    // Caller MUST hold the read lock.
+    private ChildContainer routeReadOnlyRequest(WikiContext request) {
+        if (!mDidStartupRedirect) {
+            return null;
+        }
+
+        String path = request.getPath();
+        ChildContainer route = mRoutes.get(path);
+        if (route instanceof StaticFile || route instanceof StaticWikiText) {
+            // Doesn't need the transition into the new state. See routeRequest().
+            return route;
+        }
+
+        if (mState instanceof ModalContainer ||
+            route != null ||
+            path.indexOf("/") != -1 ||
+            !READ_ONLY_ACTIONS.contains(request.getAction())) {
+            return null;
+        }
+
+        return mRoutes.get("from_code/wiki_container");
+    }
+
+    // Returns null if the result of the request shouldn't be cached.
+    //
+    // The key covers the wikitext and the render settings. Everything else
+    // the page depends on is handled by invalidating. See invalidateRenderCache().
+    // Caller MUST hold the read lock.
+    private String getRenderCacheKey(WikiContext request, ChildContainer childContainer)
+        throws IOException {
+        if (childContainer instanceof StaticFile) {
+            // Only depends on the content filter settings.
+            return String.format("%s|%s|%s", request.getPath(), containerPrefix(), mFproxyPrefix);
+        }
+
+        if (childContainer != mRoutes.get("from_code/wiki_container") ||
+            !request.getAction().equals("view")) {
+            return null;
+        }
+
+        String name = WikiContainer.toPageName(request.getTitle());
+        WikiTextStorage storage = mArchiveManager.getStorage();
+        LinkDigest pageDigest = storage.getPageDigest(name);
+        if (pageDigest == null) {
+            // Rendered from PageDoesNotExist, default_wikitext, etc. Not worth tracking.
+            return null;
+        }
+
+        return String.format("%s|%s|%s|%s|%b|%s|%s|%b|%b",
+                             name,
+                             pageDigest,
+                             storage.getPageDigest(WikiTextUtils.HEADER_PAGE),
+                             storage.getPageDigest(WikiTextUtils.FOOTER_PAGE),
+                             storage.hasLocalChange(name), // Shown in the footer.
+                             containerPrefix(),
+                             mFproxyPrefix,
+                             mAllowImages,
+                             mCreateOuterHtml);
+    }
+
+    // Conservative. Anything but a page edit from the normal wiki UI state
+    // clears everything.
+    // Caller MUST hold the write lock.
+    private void invalidateRenderCache(ChildContainer previousState, ChildContainer childContainer,
+                                       String editedPage, boolean existed) throws IOException {
+        ChildContainer wikiContainer = mRoutes.get("from_code/wiki_container");
+        if (previousState != wikiContainer || childContainer != wikiContainer) {
+            // Config changes, loaded versions, finished background tasks, etc.
+            mRenderCache.clear();
+            return;
+        }
+
+        if (editedPage == null) {
+            // e.g. "edit", which only shows the editor.
+            return;
+        }
+
+        if (existed != mArchiveManager.getStorage().hasPage(editedPage)) {
+            // Added or deleted. Changes TitleIndex and every link to the page.
+            mRenderCache.clear();
+            return;
+        }
+
+        // Otherwise it's enough that the page's own digest changed, except for
+        // pages whose macros list changes.
+        mRenderCache.removeMacroPages();
+    }
+
+    // Returns the name of the page the request would change, or null.
+    private String getEditedPage(WikiContext request, ChildContainer childContainer) {
+        if (childContainer != mRoutes.get("from_code/wiki_container") ||
+            !PAGE_EDIT_ACTIONS.contains(request.getAction())) {
+            return null;
+        }
+        if (request.getAction().equals("save")) {
+            // Name is included in the query data. See WikiContainer.handleSave().
+            return request.getQuery().get("savepage");
+        }
+        return WikiContainer.toPageName(request.getTitle());
+    }
+
+    // context MUST come from getContext(Request).
+    public ChildContainerResult handle(WikiContext context)
         throws ChildContainerException {
         try {
-            ChildContainer childContainer = routeRequest(context);
-            //System.err.println("Request routed to: " + childContainer.getClass().getName());
+            ChildContainerResult unfiltered = null;
+            boolean handled = false;
+            String cacheKey = null;
+            boolean usesMacros = false;
+            long generation = 0;
+            mLock.readLock().lock();
+            try {
+                ChildContainer childContainer = routeReadOnlyRequest(context);
+                if (childContainer != null) {
+                    cacheKey = getRenderCacheKey(context, childContainer);
+                    if (cacheKey != null) {
+                        ChildContainerResult cached = mRenderCache.get(cacheKey);
+                        if (cached != null) {
+                            return cached;
+                        }
+                        generation = mRenderCache.getGeneration();
+                    }
+
+                    unfiltered = childContainer.handle(context);
+                    handled = true;
 
-            return mFilter.filter(childContainer.handle(context));
+                    if (cacheKey != null && !(childContainer instanceof StaticFile)) {
+                        // Hmmm... cheaper than tracking which macros the parser ran.
+                        usesMacros = WikiTextUtils.getPageWithHeaderAndFooter(
+                            mArchiveManager.getStorage(),
+                            WikiContainer.toPageName(context.getTitle())).indexOf("<<<") != -1;
+                    }
+                }
+            } finally {
+                mLock.readLock().unlock();
+            }
+
+            if (!handled) {
+                mLock.writeLock().lock();
+                try {
+                    ChildContainer previousState = mState;
+                    ChildContainer childContainer = routeRequest(context);
+                    //System.err.println("Request routed to: " + childContainer.getClass().getName());
+                    String editedPage = getEditedPage(context, childContainer);
+                    boolean existed = (editedPage != null) &&
+                        mArchiveManager.getStorage().hasPage(editedPage);
+                    try {
+                        unfiltered = childContainer.handle(context);
+                    } finally {
+                        // Page edits always end with a redirect, so this MUST be in a finally.
+                        invalidateRenderCache(previousState, childContainer, editedPage, existed);
+                    }
+                } finally {
+                    mLock.writeLock().unlock();
+                }
+            }
+
+            // Doesn't touch the app, so no need to hold either lock.
+            ChildContainerResult filtered = mFilter.filter(unfiltered);
+            if (cacheKey != null) {
+                mRenderCache.put(cacheKey, filtered, usesMacros, generation);
+            }
+            return filtered;
         } catch (ChildContainerException cce) {
             // Normal, used to do redirection.
             throw cce;
@@ -341,7 +517,8 @@ public class WikiApp implements ChildContainer {
 
 
     ////////////////////////////////////////////////////////////
-    public void setRequest(Request request) {
+    // Returns a context for handling just this request.
+    public WikiContext getContext(Request request) {
         // Fail immediately if there are problems in the glue code.
         if (request == null) {
             throw new IllegalArgumentException("request == null");
@@ -358,7 +535,7 @@ public class WikiApp implements ChildContainer {
         if (request.getQuery().get("title") == null) {
             throw new RuntimeException("Assertion Failure: request.getTitle() == null");
         }
-        mRequest = request;
+        return new WikiContextImplementation(request);
     }
 
     ////////////////////////////////////////////////////////////
@@ -368,6 +545,13 @@ public class WikiApp implements ChildContainer {
     // implement WikiContext directly to prevent unintended coupling from creeping
     // into the code.
     private class WikiContextImplementation implements WikiContext {
+        // null for mWikiContext, which isn't bound to a request.
+        private final Request mRequest;
+
+        WikiContextImplementation(Request request) {
+            mRequest = request;
+        }
+
         public WikiTextStorage getStorage() throws IOException { return mArchiveManager.getStorage(); }
         public WikiTextChanges getRemoteChanges() throws IOException { return mArchiveManager.getRemoteChanges(); }
         public boolean isUnmodified() { return mArchiveManager.isUnmodified();}
@@ -594,7 +778,7 @@ public class WikiApp implements ChildContainer {
             t.printStackTrace();
         }
 
-        // Delegate to the mRequest helper instance set with WikiApp.setRequest().
+        // Delegate to the mRequest helper instance passed to WikiApp.getContext(Request).
         public String getPath() { return mRequest.getPath(); }
         public Query getQuery() { return mRequest.getQuery(); }
 
@@ -27,9 +27,13 @@ package fniki.wiki;
 import java.io.IOException;
 import java.util.List;
 
+import wormarc.LinkDigest;
+
 public interface WikiTextStorage {
     boolean hasPage(String name) throws IOException;
     String getPage(String name) throws IOException;
+    // SHA1 of the page's UTF8 bytes, or null if there is no such page.
+    LinkDigest getPageDigest(String name) throws IOException;
     void putPage(String name, String text) throws IOException;
     List<String> getNames() throws IOException;
     void deletePage(String name) throws IOException;
@@ -27,8 +27,8 @@ package fniki.wiki;
 import java.io.IOException;
 
 public class WikiTextUtils {
-    private final static String FOOTER_PAGE = "__meta__footer__";
-    private final static String HEADER_PAGE = "__meta__header__";
+    public final static String FOOTER_PAGE = "__meta__footer__";
+    public final static String HEADER_PAGE = "__meta__header__";
     private static String getTemplateWikiText(WikiTextStorage storage,
                                               String templatePage,
                                               String name)
@@ -57,14 +57,16 @@ public abstract class AsyncTaskContainer implements ChildContainer, ModalContain
     protected ByteArrayOutputStream mBuffer = new ByteArrayOutputStream();
     protected boolean mUIRunning = false;
     protected String mExitPage = "/";
+    // Subclasses can set this in their constructor.
+    protected int mRefreshSeconds = 15;
 
     // IMPORTANT: See hacks in WikiContentFilter.EXCEPTIONS if this stops working.
-    // 15 second refresh if the task isn't finished.
+    // mRefreshSeconds refresh if the task isn't finished.
     protected int getMetaRefreshSeconds() {
         if (isFinished()) {
             return 0;
         }
-        return 15;
+        return mRefreshSeconds;
     }
 
     // DCI: make these return a string? To get rid of no return value warnings
@@ -25,6 +25,7 @@
 package fniki.wiki.child;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintStream;
 
 import fniki.wiki.ArchiveManager;
@@ -46,16 +47,22 @@ public class Importing implements ChildContainer {
                 context.raiseAccessDenied("Illegal parameters");
             }
 
-            byte[] blob = context.getQuery().getBytes("upload");
-            if (blob == null) {
-                context.raiseAccessDenied("Illegal parameters");
-            }
-
             boolean secondary = false;
             if (context.getQuery().get("secondary") != null) {
                 secondary = context.getQuery().get("secondary").toLowerCase().equals("true");
             }
-            String[] metaData = mArchiveManager.loadArchiveFromBlob(blob, secondary);
+
+            // Stream it, so a big archive is never all in RAM as one blob.
+            InputStream blob = context.getQuery().getInputStream("upload");
+            if (blob == null) {
+                context.raiseAccessDenied("Illegal parameters");
+            }
+            String[] metaData;
+            try {
+                metaData = mArchiveManager.loadArchiveFromStream(blob, secondary);
+            } finally {
+                blob.close();
+            }
             String group = metaData[1];
             String name = metaData[2];
             if (!(group.equals("")) || name.equals("")) {
@@ -72,7 +79,7 @@ public class Importing implements ChildContainer {
                               "Redirecting...");
         } catch (IOException ioe)  {
             // DCI: Later, do better.
-            throw new ServerErrorException("Unexpected error calling mArchiveManager.loadArchiveFromBlob()");
+            throw new ServerErrorException("Unexpected error calling mArchiveManager.loadArchiveFromStream()");
         }
         return null; // Ureachable
     }
@@ -25,6 +25,7 @@
 package fniki.wiki.child;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
@@ -90,8 +91,14 @@ public class InsertingFreesite extends AsyncTaskContainer {
     }
 
     private void handleThemeUpload(WikiContext context) throws ChildContainerException, IOException {
-        mArchiveManager.loadSiteTheme(context.getQuery().get("upload.filename"),
-                                      context.getQuery().getBytes("upload"));
+        InputStream zipFile = context.getQuery().getInputStream("upload");
+        try {
+            mArchiveManager.loadSiteTheme(context.getQuery().get("upload.filename"), zipFile);
+        } finally {
+            if (zipFile != null) {
+                zipFile.close();
+            }
+        }
         sendRedirect(context, context.getPath());
     }
 
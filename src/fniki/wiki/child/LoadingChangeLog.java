@@ -44,10 +44,13 @@ import fniki.wiki.WikiContext;
 public class LoadingChangeLog extends AsyncTaskContainer
     implements AuditArchive.ChangeLogCallback {
     private StringBuilder mListHtml = new StringBuilder();
+    private int mEntryCount;
     private String mPath;
     private String mContainerPrefix;
     public LoadingChangeLog(ArchiveManager archiveManager) {
         super(archiveManager);
+        // Entries show up as they are read, so refresh sooner than the default.
+        mRefreshSeconds = 5;
     }
 
     public synchronized String getListHtml() {
@@ -126,11 +129,15 @@ public class LoadingChangeLog extends AsyncTaskContainer
     public boolean doWork(PrintStream out) throws Exception {
         synchronized (this) {
             mListHtml = new StringBuilder();
+            mEntryCount = 0;
         }
 
         try {
             out.println("Reading the wiki changelog out of freenet. ");
             mArchiveManager.readChangeLog(out, this);
+            synchronized (this) {
+                out.println(String.format("Read %d versions.", mEntryCount));
+            }
             return true;
         } catch (IOException ioe) {
             out.println("Error reading log: " + ioe.getMessage());
@@ -142,6 +149,7 @@ public class LoadingChangeLog extends AsyncTaskContainer
                                               ExternalRefs.Reference newVer,
                                               FileManifest.Changes fromNewToOld) {
 
+        mEntryCount++;
         mListHtml.append("<br>");
         mListHtml.append(getShortVersionLink(mContainerPrefix, "/jfniki/changelog", oldVer.mExternalKey));
         mListHtml.append("<br>\n");
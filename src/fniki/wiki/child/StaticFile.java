@@ -48,7 +48,8 @@ public class StaticFile implements ChildContainer {
         try {
             InputStream resourceStream = StaticFile.class.getResourceAsStream(resourcePath);
             mResult = new StaticResult(encoding, mimeType, "not used", 0,
-                                       IOUtil.readAndClose(resourceStream));
+                                       IOUtil.readAndClose(resourceStream),
+                                       true /* Only changes with the jar. */);
         } catch (IOException ioe) {
             throw new RuntimeException("StaticFile couldn't read resource from jar.");
         }
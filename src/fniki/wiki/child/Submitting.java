@@ -31,6 +31,8 @@ import java.io.StringWriter;
 
 import static ys.wikiparser.Utils.*;
 
+import wormarc.io.FreenetIO;
+
 import fniki.wiki.ArchiveManager;
 import fniki.wiki.ChildContainer;
 import fniki.wiki.ChildContainerException;
@@ -43,6 +45,8 @@ public class Submitting extends AsyncTaskContainer {
     private boolean mReinserting = true;
     public Submitting(ArchiveManager archiveManager) {
         super(archiveManager);
+        // Show the insert progress more often than the default.
+        mRefreshSeconds = 5;
     }
 
     public String getHtml(WikiContext context) throws ChildContainerException {
@@ -92,6 +96,12 @@ public class Submitting extends AsyncTaskContainer {
                 body.print(escapeHTML(getOutput()));
                 body.println("</pre>");
             }
+            FreenetIO.InsertProgress progress = mArchiveManager.getInsertProgress();
+            if (getState() == STATE_WORKING && progress != null) {
+                body.println("<pre>");
+                body.print(escapeHTML(progress.toString()));
+                body.println("</pre>");
+            }
             addButtonsHtml(context, body, confirmTitle, cancelTitle);
             body.close();
             return buffer.toString();
@@ -68,9 +68,7 @@ public class WikiContainer implements ChildContainer {
                 // a link from a finished task page. e.g. changelog.
                 action = "view";
             }
-            // Convert spaces to '_' so you can type titles with spaces into
-            // the "Goto or Create Page" box.
-            String title = context.getTitle().trim().replace(" ", "_");
+            String title = toPageName(context.getTitle());
             if (!isAlphaNumOrUnder(title)) {
                 // Titles must be legal page names.
                 context.raiseAccessDenied("Couldn't work out query.");
@@ -90,6 +88,12 @@ public class WikiContainer implements ChildContainer {
         return null; // unreachable
     }
 
+    // Convert spaces to '_' so you can type titles with spaces into
+    // the "Goto or Create Page" box.
+    public static String toPageName(String title) {
+        return title.trim().replace(" ", "_");
+    }
+
     private String getHtmlForAction(WikiContext context, String action, String title)
         throws ChildContainerException, IOException {
 